@@ -0,0 +1,100 @@
+package io.thundra.merloc.aws.lambda.core.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of the buffers to read the requests into, so the buffers are reused across the invocations
+ * instead of allocating a new one (or keeping a fixed size one) for each request.
+ *
+ * Buffers are allocated in power of two size classes (from 16 KB up to 8 MB),
+ * so a buffer released by a request can be reused by the subsequent requests of the similar size.
+ * At most one buffer is kept per size class and the total size of the kept buffers is limited,
+ * so an occasional large request doesn't pin memory forever.
+ * Buffers larger than the largest size class are never pooled.
+ *
+ * @author serkan
+ */
+final class RequestBufferPool {
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 14; // 16KB
+    private static final int MAX_SIZE_CLASS_SHIFT = 23; // 8MB
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final AtomicReferenceArray<byte[]> buffers =
+            new AtomicReferenceArray<>(MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1);
+    private final AtomicLong retainedSize = new AtomicLong();
+    private final long maxRetainedSize;
+
+    /**
+     * @param maxRetainedSize the maximum total size in bytes of the buffers kept in the pool
+     */
+    RequestBufferPool(long maxRetainedSize) {
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    private static int sizeClassOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SIZE_CLASS_SHIFT) - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    /**
+     * Acquires a buffer of at least the given size.
+     * The acquired buffer should be released by {@link #release(byte[])} when it is not used anymore.
+     *
+     * @param minSize the minimum size of the buffer in bytes
+     * @return the acquired buffer
+     */
+    byte[] acquire(int minSize) {
+        int sizeClass = sizeClassOf(minSize);
+        if (sizeClass >= buffers.length()) {
+            return new byte[minSize];
+        }
+        byte[] buffer = buffers.getAndSet(sizeClass, null);
+        if (buffer != null) {
+            retainedSize.addAndGet(-buffer.length);
+            return buffer;
+        }
+        return new byte[1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)];
+    }
+
+    /**
+     * Grows the given full buffer to the next size class by keeping its content.
+     * The given buffer must not be used anymore (it is dropped as it is smaller than the request anyway).
+     *
+     * @param buffer the buffer to grow
+     * @return the grown buffer
+     */
+    byte[] grow(byte[] buffer) {
+        if (buffer.length >= MAX_ARRAY_SIZE) {
+            throw new OutOfMemoryError("Request is too large to be buffered");
+        }
+        int newSize = (int) Math.min((long) buffer.length << 1, MAX_ARRAY_SIZE);
+        byte[] newBuffer = acquire(newSize);
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        return newBuffer;
+    }
+
+    /**
+     * Releases the given buffer back to the pool.
+     * The released buffer must not be used anymore.
+     *
+     * @param buffer the buffer to release
+     */
+    void release(byte[] buffer) {
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass >= buffers.length() || buffer.length != 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)) {
+            // Not allocated by the pool
+            return;
+        }
+        if (retainedSize.addAndGet(buffer.length) > maxRetainedSize) {
+            retainedSize.addAndGet(-buffer.length);
+            return;
+        }
+        if (!buffers.compareAndSet(sizeClass, null, buffer)) {
+            // There is already a buffer kept for this size class
+            retainedSize.addAndGet(-buffer.length);
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package io.thundra.merloc.aws.lambda.core.handler;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * {@link ByteArrayInputStream} over the buffered request
+ * which also gives access to the underlying request bytes without copying them.
+ *
+ * @author serkan
+ */
+public class RequestInputStream extends ByteArrayInputStream {
+
+    private final int offset;
+
+    public RequestInputStream(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public RequestInputStream(byte[] buf, int offset, int length) {
+        super(buf, offset, length);
+        this.offset = offset;
+    }
+
+    /**
+     * Gets the underlying buffer. Must not be modified.
+     *
+     * @return the underlying buffer
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return the offset of the request in the underlying buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the request in bytes
+     */
+    public int getLength() {
+        return count - offset;
+    }
+
+}
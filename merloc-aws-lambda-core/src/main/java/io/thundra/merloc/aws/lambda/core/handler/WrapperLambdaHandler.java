@@ -11,14 +11,12 @@ import io.thundra.merloc.common.utils.ClassUtils;
 import io.thundra.merloc.common.utils.ExceptionUtils;
 import io.thundra.merloc.common.utils.StringUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -31,7 +29,10 @@ import java.util.function.Supplier;
  */
 public class WrapperLambdaHandler implements RequestStreamHandler {
 
-    private final ByteBuffer requestBuffer = ByteBuffer.allocate(3 * 1024 * 1024); // 3MB
+    private static final long MAX_RETAINED_REQUEST_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+    private static final RequestBufferPool REQUEST_BUFFER_POOL =
+            new RequestBufferPool(MAX_RETAINED_REQUEST_BUFFER_SIZE);
+
     private final Future<RequestStreamHandler> proxyLambdaHandlerFuture;
 
     public WrapperLambdaHandler() {
@@ -43,7 +44,13 @@ public class WrapperLambdaHandler implements RequestStreamHandler {
         return CompletableFuture.completedFuture(handler);
     }
 
-    private static RequestStreamHandler createProxyLambdaHandler() {
+    /**
+     * Creates the proxy handler which invokes the original handler
+     * configured by the <code>MERLOC_AWS_LAMBDA_HANDLER</code> environment variable.
+     *
+     * @return the created proxy handler
+     */
+    public static RequestStreamHandler createProxyLambdaHandler() {
         String handlerName = ConfigManager.getConfig(ConfigNames.LAMBDA_HANDLER);
         if (StringUtils.isNullOrEmpty(handlerName)) {
             throw new IllegalArgumentException(
@@ -113,46 +120,99 @@ public class WrapperLambdaHandler implements RequestStreamHandler {
     public void handleRequest(InputStream requestStream,
                               OutputStream responseStream,
                               Context context) throws IOException {
-        ByteArrayInputStream wrapperInputStream = wrapInputStream(requestStream);
-        wrapperInputStream.mark(0);
-
-        boolean continueRequest = true;
+        RequestInputStream wrapperInputStream = wrapInputStream(requestStream);
         try {
-            continueRequest = onRequest(wrapperInputStream, responseStream, context);
-        } catch (Throwable t) {
-            StdLogger.debug("Error occurred while on request", t);
-            ExceptionUtils.sneakyThrow(t);
-        }
+            wrapperInputStream.mark(0);
 
-        if (continueRequest) {
-            wrapperInputStream.reset();
-            RequestStreamHandler proxyLambdaHandler = null;
+            boolean continueRequest = true;
             try {
-                proxyLambdaHandler = proxyLambdaHandlerFuture.get();
-            } catch (InterruptedException e) {
-                throw new IOException("Unable to create handler", e);
-            } catch (ExecutionException e) {
-                throw new IOException("Unable to create handler", e.getCause());
+                continueRequest = onRequest(wrapperInputStream, responseStream, context);
+            } catch (Throwable t) {
+                StdLogger.debug("Error occurred while on request", t);
+                ExceptionUtils.sneakyThrow(t);
             }
-            if (proxyLambdaHandler != null) {
-                proxyLambdaHandler.handleRequest(wrapperInputStream, responseStream, context);
-            } else {
-                throw new IOException("Unable to create handler");
+
+            if (continueRequest) {
+                wrapperInputStream.reset();
+                invokeProxyLambdaHandler(wrapperInputStream, responseStream, context);
             }
+        } finally {
+            REQUEST_BUFFER_POOL.release(wrapperInputStream.getBuffer());
+        }
+    }
+
+    /**
+     * Invokes the original handler with the given request.
+     *
+     * @param requestStream  the request stream
+     * @param responseStream the response stream
+     * @param context        the context
+     * @throws IOException if the original handler couldn't be created or failed
+     */
+    protected void invokeProxyLambdaHandler(InputStream requestStream,
+                                            OutputStream responseStream,
+                                            Context context) throws IOException {
+        RequestStreamHandler proxyLambdaHandler = null;
+        try {
+            proxyLambdaHandler = proxyLambdaHandlerFuture.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Unable to create handler", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to create handler", e.getCause());
+        }
+        if (proxyLambdaHandler != null) {
+            proxyLambdaHandler.handleRequest(requestStream, responseStream, context);
+        } else {
+            throw new IOException("Unable to create handler");
         }
     }
 
-    private ByteArrayInputStream wrapInputStream(InputStream inputStream) throws IOException {
-        requestBuffer.clear();
-        while (inputStream.available() > 0) {
-            requestBuffer.put((byte) inputStream.read());
+    private static RequestInputStream wrapInputStream(InputStream inputStream) throws IOException {
+        return wrapInputStream(inputStream, REQUEST_BUFFER_POOL);
+    }
+
+    /**
+     * Visible for testing
+     */
+    static RequestInputStream wrapInputStream(InputStream inputStream,
+                                              RequestBufferPool requestBufferPool) throws IOException {
+        // Available bytes is only a hint for the initial buffer size as it might under-report,
+        // so the request is read until the end of the stream
+        byte[] buffer = requestBufferPool.acquire(inputStream.available());
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                // Don't grow the buffer if the request fits exactly
+                int b = inputStream.read();
+                if (b < 0) {
+                    break;
+                }
+                buffer = requestBufferPool.grow(buffer);
+                buffer[length++] = (byte) b;
+            }
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
         }
-        byte[] data = new byte[requestBuffer.position()];
-        requestBuffer.position(0);
-        requestBuffer.get(data);
-        return new ByteArrayInputStream(data);
+        // Refer to the buffer instead of copying the request
+        return new RequestInputStream(buffer, 0, length);
     }
 
+    /**
+     * Called with the buffered request before it is passed to the original handler.
+     *
+     * The buffer behind the request stream is reused by the subsequent requests
+     * once {@link #handleRequest(InputStream, OutputStream, Context)} returns,
+     * so it must be copied if it is going to be accessed after then.
+     *
+     * @param requestStream  the buffered request stream
+     * @param responseStream the response stream
+     * @param context        the context
+     * @return <code>true</code> if the request should be passed to the original handler,
+     *         <code>false</code> if it has already been handled
+     */
     protected boolean onRequest(InputStream requestStream, OutputStream responseStream, Context context) {
         return true;
     }
@@ -0,0 +1,208 @@
+package io.thundra.merloc.aws.lambda.core.handler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author serkan
+ */
+public class RequestBufferPoolTest {
+
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+    private static final long MAX_RETAINED_SIZE = 8 * MB;
+
+    /**
+     * Returns the data in small chunks and reports the given number of bytes as available,
+     * as the request stream might under-report its size
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final ByteArrayInputStream in;
+        private final int available;
+
+        private ChunkedInputStream(byte[] data, int available) {
+            this.in = new ByteArrayInputStream(data);
+            this.available = available;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, 1000));
+        }
+
+        @Override
+        public int available() {
+            return available;
+        }
+
+    }
+
+    private static byte[] generateRequest(int size) {
+        byte[] request = new byte[size];
+        new Random(size).nextBytes(request);
+        return request;
+    }
+
+    private static RequestInputStream wrap(RequestBufferPool pool, byte[] request, int available) throws IOException {
+        RequestInputStream requestStream =
+                WrapperLambdaHandler.wrapInputStream(new ChunkedInputStream(request, available), pool);
+        assertEquals(0, requestStream.getOffset());
+        assertEquals(request.length, requestStream.getLength());
+        assertArrayEquals(
+                request,
+                Arrays.copyOfRange(requestStream.getBuffer(), 0, requestStream.getLength()));
+        return requestStream;
+    }
+
+    @Test
+    public void buffersShouldBeAllocatedInPowerOfTwoSizeClasses() {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        assertEquals(16 * KB, pool.acquire(0).length);
+        assertEquals(16 * KB, pool.acquire(1).length);
+        assertEquals(16 * KB, pool.acquire(16 * KB).length);
+        assertEquals(32 * KB, pool.acquire(16 * KB + 1).length);
+        assertEquals(1 * MB, pool.acquire(1 * MB).length);
+        assertEquals(8 * MB, pool.acquire(8 * MB).length);
+        // Larger than the largest size class, so exactly the requested size is allocated
+        assertEquals(8 * MB + 1, pool.acquire(8 * MB + 1).length);
+    }
+
+    @Test
+    public void releasedBufferShouldBeReusedBySameSizeClass() {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        byte[] buffer = pool.acquire(20 * KB);
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(16 * KB));
+        assertSame(buffer, pool.acquire(30 * KB));
+        // Taken out of the pool, so it is not handed out twice
+        assertNotSame(buffer, pool.acquire(30 * KB));
+    }
+
+    @Test
+    public void atMostOneBufferShouldBeKeptPerSizeClass() {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        byte[] buffer1 = pool.acquire(64 * KB);
+        byte[] buffer2 = pool.acquire(64 * KB);
+        pool.release(buffer1);
+        pool.release(buffer2);
+
+        assertSame(buffer1, pool.acquire(64 * KB));
+        assertNotSame(buffer2, pool.acquire(64 * KB));
+    }
+
+    @Test
+    public void retainedSizeShouldBeCapped() {
+        RequestBufferPool pool = new RequestBufferPool(48 * KB);
+
+        byte[] buffer16KB = pool.acquire(16 * KB);
+        byte[] buffer32KB = pool.acquire(32 * KB);
+        byte[] buffer64KB = pool.acquire(64 * KB);
+        pool.release(buffer16KB);
+        pool.release(buffer32KB);
+        // Would exceed the cap
+        pool.release(buffer64KB);
+
+        assertNotSame(buffer64KB, pool.acquire(64 * KB));
+        assertSame(buffer32KB, pool.acquire(32 * KB));
+
+        // Acquired buffers are not counted anymore, so there is room for a 32KB buffer again
+        pool.release(buffer32KB);
+        assertSame(buffer32KB, pool.acquire(32 * KB));
+        assertSame(buffer16KB, pool.acquire(16 * KB));
+    }
+
+    @Test
+    public void buffersLargerThanLargestSizeClassShouldNeverBePooled() {
+        RequestBufferPool pool = new RequestBufferPool(Long.MAX_VALUE);
+
+        byte[] largeBuffer = pool.acquire(8 * MB + 1);
+        pool.release(largeBuffer);
+        assertNotSame(largeBuffer, pool.acquire(8 * MB + 1));
+
+        // Grown beyond the largest size class
+        byte[] grownBuffer = pool.grow(pool.acquire(8 * MB));
+        assertEquals(16 * MB, grownBuffer.length);
+        pool.release(grownBuffer);
+        assertNotSame(grownBuffer, pool.acquire(16 * MB));
+    }
+
+    @Test
+    public void buffersNotAllocatedByPoolShouldNotBePooled() {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        byte[] buffer = new byte[20 * KB];
+        pool.release(buffer);
+        assertEquals(32 * KB, pool.acquire(20 * KB).length);
+    }
+
+    @Test
+    public void grownBufferShouldKeepContent() {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        byte[] buffer = pool.acquire(16 * KB);
+        new Random(1).nextBytes(buffer);
+        byte[] grownBuffer = pool.grow(buffer);
+
+        assertEquals(32 * KB, grownBuffer.length);
+        assertArrayEquals(buffer, Arrays.copyOf(grownBuffer, buffer.length));
+    }
+
+    @Test
+    public void requestWhichFitsExactlyShouldNotGrowBuffer() throws IOException {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        // Buffer is full, so the end of the request is detected by a single byte probe
+        RequestInputStream requestStream = wrap(pool, generateRequest(16 * KB), 16 * KB);
+        assertEquals(16 * KB, requestStream.getBuffer().length);
+
+        // Available bytes are under-reported, so the buffer is grown only as long as there are more bytes
+        requestStream = wrap(pool, generateRequest(32 * KB), 0);
+        assertEquals(32 * KB, requestStream.getBuffer().length);
+    }
+
+    @Test
+    public void bufferShouldBeGrownIfAvailableBytesAreUnderReported() throws IOException {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        RequestInputStream requestStream = wrap(pool, generateRequest(40 * KB), 1);
+        assertEquals(64 * KB, requestStream.getBuffer().length);
+
+        requestStream = wrap(pool, generateRequest(16 * KB + 1), 16 * KB);
+        assertEquals(32 * KB, requestStream.getBuffer().length);
+
+        requestStream = wrap(pool, new byte[0], 0);
+        assertEquals(16 * KB, requestStream.getBuffer().length);
+    }
+
+    @Test
+    public void releasedRequestBufferShouldBeReusedByNextRequest() throws IOException {
+        RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+
+        RequestInputStream requestStream = wrap(pool, generateRequest(100 * KB), 100 * KB);
+        byte[] buffer = requestStream.getBuffer();
+        pool.release(buffer);
+
+        requestStream = wrap(pool, generateRequest(90 * KB), 90 * KB);
+        assertSame(buffer, requestStream.getBuffer());
+    }
+
+}
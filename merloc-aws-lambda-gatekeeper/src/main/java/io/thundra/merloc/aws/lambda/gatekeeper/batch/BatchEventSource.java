@@ -0,0 +1,95 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Batch event sources whose batches can be split.
+ *
+ * Each source defines the ordering key of its records, so the records with the same key are kept in order,
+ * and the identifier of its records to be reported in <code>batchItemFailures</code>.
+ *
+ * @author serkan
+ */
+enum BatchEventSource {
+
+    SQS("aws:sqs") {
+        @Override
+        String getOrderingKey(JsonNode record) {
+            // Only FIFO queues have message groups, messages of standard queues are not ordered
+            return getText(record.at("/attributes/MessageGroupId"));
+        }
+
+        @Override
+        String getItemIdentifier(JsonNode record) {
+            return getText(record.get("messageId"));
+        }
+    },
+    KINESIS("aws:kinesis") {
+        @Override
+        String getOrderingKey(JsonNode record) {
+            // Records of the same partition key in the same shard are ordered
+            String eventId = getText(record.get("eventID"));
+            String shardId = eventId != null && eventId.indexOf(':') > 0
+                    ? eventId.substring(0, eventId.indexOf(':'))
+                    : eventId;
+            return shardId + "/" + getText(record.at("/kinesis/partitionKey"));
+        }
+
+        @Override
+        String getItemIdentifier(JsonNode record) {
+            return getText(record.at("/kinesis/sequenceNumber"));
+        }
+    },
+    DYNAMODB("aws:dynamodb") {
+        @Override
+        String getOrderingKey(JsonNode record) {
+            // Records of the same item are ordered
+            JsonNode keys = record.at("/dynamodb/Keys");
+            return keys.isMissingNode() ? null : keys.toString();
+        }
+
+        @Override
+        String getItemIdentifier(JsonNode record) {
+            return getText(record.at("/dynamodb/SequenceNumber"));
+        }
+    };
+
+    private final String eventSource;
+
+    BatchEventSource(String eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    /**
+     * @param record the record of the batch
+     * @return the key of the records which must be processed in order,
+     *         <code>null</code> if the record can be processed in any order
+     */
+    abstract String getOrderingKey(JsonNode record);
+
+    /**
+     * @param record the record of the batch
+     * @return the identifier of the record to be reported in <code>batchItemFailures</code>
+     */
+    abstract String getItemIdentifier(JsonNode record);
+
+    static BatchEventSource of(JsonNode record) {
+        String eventSource = getText(record.get("eventSource"));
+        if (eventSource != null) {
+            for (BatchEventSource batchEventSource : values()) {
+                if (batchEventSource.eventSource.equals(eventSource)) {
+                    return batchEventSource;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getText(JsonNode node) {
+        if (node == null || node.isMissingNode() || node.isNull() || node.isContainerNode()) {
+            return null;
+        }
+        return node.asText();
+    }
+
+}
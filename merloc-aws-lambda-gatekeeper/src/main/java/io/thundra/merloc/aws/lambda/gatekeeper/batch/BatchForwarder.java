@@ -0,0 +1,147 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import io.thundra.merloc.common.logger.StdLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Forwards the sub-batches of a batch to the client and merges their <code>batchItemFailures</code>.
+ *
+ * At most the given number of sub-batches are forwarded to the client concurrently.
+ * A client (local AWS Lambda runtime) runs a single invocation of a function at a time by default,
+ * so sub-batches should only be forwarded concurrently when there are multiple clients to handle them.
+ * Sub-batches which the client couldn't handle are handed over to the fallback one by one
+ * as the actual handler is not known to be thread-safe.
+ *
+ * @author serkan
+ */
+public final class BatchForwarder {
+
+    private final Executor executor;
+
+    /**
+     * @param executor the executor to forward the sub-batches to the client in
+     */
+    public BatchForwarder(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Handles a sub-batch.
+     */
+    public interface SubBatchHandler {
+
+        /**
+         * @param subBatch the sub-batch to handle
+         * @return the response of the sub-batch,
+         *         <code>null</code> if the sub-batch couldn't be handled, so it should be handed over
+         * @throws Throwable if the sub-batch has failed
+         */
+        byte[] handle(SubBatch subBatch) throws Throwable;
+
+    }
+
+    /**
+     * Forwards the given sub-batches to the client.
+     *
+     * @param subBatches      the sub-batches of the batch
+     * @param parallelism     the maximum number of sub-batches to be forwarded to the client concurrently
+     * @param clientHandler   the handler to forward a sub-batch to the client
+     * @param fallbackHandler the handler to handle a sub-batch which the client couldn't handle
+     * @return the merged batch response,
+     *         <code>null</code> if the client couldn't handle any of the sub-batches,
+     *         so the whole batch should be handled by the actual handler
+     * @throws Throwable if a sub-batch has failed and its failure cannot be reported record by record
+     */
+    public byte[] forward(List<SubBatch> subBatches, int parallelism,
+                          SubBatchHandler clientHandler, SubBatchHandler fallbackHandler) throws Throwable {
+        StdLogger.debug(String.format(
+                "Forwarding batch to client as %d sub-batches (at most %d in parallel)",
+                subBatches.size(), parallelism));
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        List<CompletableFuture<byte[]>> clientFutures = new ArrayList<>(subBatches.size());
+        for (SubBatch subBatch : subBatches) {
+            permits.acquire();
+            CompletableFuture<byte[]> clientFuture;
+            try {
+                clientFuture =
+                        CompletableFuture.supplyAsync(
+                                () -> {
+                                    try {
+                                        return clientHandler.handle(subBatch);
+                                    } catch (Throwable t) {
+                                        throw new SubBatchException(t);
+                                    } finally {
+                                        permits.release();
+                                    }
+                                },
+                                executor);
+            } catch (Throwable t) {
+                permits.release();
+                throw t;
+            }
+            clientFutures.add(clientFuture);
+        }
+
+        BatchItemFailures batchItemFailures = new BatchItemFailures();
+        List<SubBatch> fallbackSubBatches = new ArrayList<>();
+        List<SubBatch> failedSubBatches = new ArrayList<>();
+        Throwable firstError = null;
+        for (int i = 0; i < subBatches.size(); i++) {
+            try {
+                byte[] subBatchResponse = clientFutures.get(i).get();
+                if (subBatchResponse == null) {
+                    fallbackSubBatches.add(subBatches.get(i));
+                } else {
+                    batchItemFailures.addResponse(subBatchResponse);
+                }
+            } catch (ExecutionException e) {
+                failedSubBatches.add(subBatches.get(i));
+                if (firstError == null) {
+                    Throwable cause = e.getCause();
+                    firstError = cause instanceof SubBatchException ? cause.getCause() : cause;
+                }
+            }
+        }
+        if (fallbackSubBatches.size() == subBatches.size()) {
+            StdLogger.debug(
+                    "Client couldn't handle any of the sub-batches, so forwarding batch to the actual handler");
+            return null;
+        }
+        for (SubBatch subBatch : fallbackSubBatches) {
+            try {
+                batchItemFailures.addResponse(fallbackHandler.handle(subBatch));
+            } catch (Throwable t) {
+                failedSubBatches.add(subBatch);
+                if (firstError == null) {
+                    firstError = t;
+                }
+            }
+        }
+        if (firstError != null) {
+            if (!batchItemFailures.isReported()) {
+                // Failures reported record by record would be ignored,
+                // so fail the whole batch as it would fail without splitting
+                throw firstError;
+            }
+            for (SubBatch failedSubBatch : failedSubBatches) {
+                batchItemFailures.addFailedSubBatch(failedSubBatch);
+            }
+        }
+        return batchItemFailures.toResponse();
+    }
+
+    private static final class SubBatchException extends RuntimeException {
+
+        private SubBatchException(Throwable cause) {
+            super(cause);
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.thundra.merloc.common.logger.StdLogger;
+
+import java.io.IOException;
+
+/**
+ * Merges the <code>batchItemFailures</code> of the sub-batch responses into a single batch response.
+ *
+ * Sub-batch responses without <code>batchItemFailures</code> (for example, when the function doesn't report them)
+ * are considered as all the records of the sub-batch have succeeded.
+ * Failed sub-batches can only be reported record by record if the function is known to report
+ * <code>batchItemFailures</code>, otherwise the reported failures would be ignored by the event source.
+ *
+ * @author serkan
+ */
+public final class BatchItemFailures {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String BATCH_ITEM_FAILURES_ATTRIBUTE_NAME = "batchItemFailures";
+    private static final String ITEM_IDENTIFIER_ATTRIBUTE_NAME = "itemIdentifier";
+
+    private final ArrayNode failures = OBJECT_MAPPER.createArrayNode();
+    private boolean reported;
+
+    /**
+     * Adds the failures reported in the given sub-batch response.
+     *
+     * @param response the response of the sub-batch
+     */
+    public void addResponse(byte[] response) {
+        if (response == null || response.length == 0) {
+            return;
+        }
+        JsonNode root;
+        try {
+            root = OBJECT_MAPPER.readTree(response);
+        } catch (Exception e) {
+            StdLogger.debug("Sub-batch response is not JSON, so considering all of its records as succeeded");
+            return;
+        }
+        JsonNode subBatchFailures = root != null ? root.get(BATCH_ITEM_FAILURES_ATTRIBUTE_NAME) : null;
+        if (subBatchFailures != null && subBatchFailures.isArray()) {
+            failures.addAll((ArrayNode) subBatchFailures);
+            reported = true;
+        }
+    }
+
+    /**
+     * Adds all the records of the given sub-batch as failed.
+     *
+     * @param subBatch the failed sub-batch
+     */
+    public void addFailedSubBatch(SubBatch subBatch) {
+        for (String itemIdentifier : subBatch.getItemIdentifiers()) {
+            failures.addObject().put(ITEM_IDENTIFIER_ATTRIBUTE_NAME, itemIdentifier);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if any of the sub-batch responses has reported <code>batchItemFailures</code>,
+     *         so the function is known to report them, <code>false</code> otherwise
+     */
+    public boolean isReported() {
+        return reported;
+    }
+
+    /**
+     * @return the merged batch response
+     * @throws IOException if the response cannot be serialized
+     */
+    public byte[] toResponse() throws IOException {
+        ObjectNode root = OBJECT_MAPPER.createObjectNode();
+        root.set(BATCH_ITEM_FAILURES_ATTRIBUTE_NAME, failures);
+        return OBJECT_MAPPER.writeValueAsBytes(root);
+    }
+
+}
@@ -0,0 +1,131 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the SQS, Kinesis and DynamoDB Streams batch events into sub-batches to be processed in parallel.
+ *
+ * Records with the same ordering key (message group of FIFO queues, partition key of shards and item keys)
+ * are always put into the same sub-batch in their original order, so their processing order is preserved.
+ * Records are spread to the sub-batches as evenly as their ordering keys allow.
+ *
+ * @author serkan
+ */
+public final class BatchSplitter {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String RECORDS_ATTRIBUTE_NAME = "Records";
+
+    private final int maxSubBatchCount;
+
+    /**
+     * @param maxSubBatchCount the maximum number of the sub-batches to split a batch into
+     */
+    public BatchSplitter(int maxSubBatchCount) {
+        this.maxSubBatchCount = maxSubBatchCount;
+    }
+
+    /**
+     * Splits the given request if it is a supported batch event.
+     *
+     * @param data   the buffer of the request
+     * @param offset the offset of the request in the buffer
+     * @param length the length of the request
+     * @return the sub-batches,
+     *         <code>null</code> if the request is not a supported batch event or it cannot be split
+     * @throws IOException if the sub-batches cannot be serialized
+     */
+    public List<SubBatch> split(byte[] data, int offset, int length) throws IOException {
+        JsonNode root;
+        try {
+            root = OBJECT_MAPPER.readTree(OBJECT_MAPPER.getFactory().createParser(data, offset, length));
+        } catch (Exception e) {
+            // Not a JSON request, so it is not a batch event
+            return null;
+        }
+        if (root == null || !root.isObject()) {
+            return null;
+        }
+        JsonNode records = root.get(RECORDS_ATTRIBUTE_NAME);
+        if (records == null || !records.isArray() || records.size() < 2) {
+            return null;
+        }
+        BatchEventSource eventSource = BatchEventSource.of(records.get(0));
+        if (eventSource == null) {
+            return null;
+        }
+
+        // Group the records by their ordering keys in their original order
+        Map<String, List<Integer>> orderedGroupMap = new LinkedHashMap<>();
+        List<List<Integer>> groups = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            JsonNode record = records.get(i);
+            if (BatchEventSource.of(record) != eventSource) {
+                // Mixed batches are not expected from the event sources
+                return null;
+            }
+            String orderingKey = eventSource.getOrderingKey(record);
+            if (orderingKey == null) {
+                groups.add(Collections.singletonList(i));
+            } else {
+                List<Integer> group = orderedGroupMap.get(orderingKey);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    orderedGroupMap.put(orderingKey, group);
+                    groups.add(group);
+                }
+                group.add(i);
+            }
+        }
+        int subBatchCount = Math.min(maxSubBatchCount, groups.size());
+        if (subBatchCount < 2) {
+            return null;
+        }
+
+        // Assign the largest groups first, each to the least loaded sub-batch
+        List<List<Integer>> sortedGroups = new ArrayList<>(groups);
+        sortedGroups.sort((g1, g2) -> Integer.compare(g2.size(), g1.size()));
+        List<List<Integer>> subBatchRecordIndexes = new ArrayList<>(subBatchCount);
+        for (int i = 0; i < subBatchCount; i++) {
+            subBatchRecordIndexes.add(new ArrayList<>());
+        }
+        for (List<Integer> group : sortedGroups) {
+            List<Integer> leastLoaded = subBatchRecordIndexes.get(0);
+            for (List<Integer> recordIndexes : subBatchRecordIndexes) {
+                if (recordIndexes.size() < leastLoaded.size()) {
+                    leastLoaded = recordIndexes;
+                }
+            }
+            leastLoaded.addAll(group);
+        }
+
+        List<SubBatch> subBatches = new ArrayList<>(subBatchCount);
+        for (List<Integer> recordIndexes : subBatchRecordIndexes) {
+            // Keep the original order of the records
+            Collections.sort(recordIndexes);
+            ArrayNode subBatchRecords = OBJECT_MAPPER.createArrayNode();
+            List<String> itemIdentifiers = new ArrayList<>(recordIndexes.size());
+            for (int recordIndex : recordIndexes) {
+                JsonNode record = records.get(recordIndex);
+                subBatchRecords.add(record);
+                itemIdentifiers.add(eventSource.getItemIdentifier(record));
+            }
+            ObjectNode subBatchRoot = OBJECT_MAPPER.createObjectNode();
+            subBatchRoot.setAll((ObjectNode) root);
+            subBatchRoot.set(RECORDS_ATTRIBUTE_NAME, subBatchRecords);
+            subBatches.add(new SubBatch(OBJECT_MAPPER.writeValueAsBytes(subBatchRoot), itemIdentifiers));
+        }
+        return subBatches;
+    }
+
+}
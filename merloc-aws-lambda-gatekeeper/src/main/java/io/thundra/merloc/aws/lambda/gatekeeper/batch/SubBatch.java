@@ -0,0 +1,34 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import java.util.List;
+
+/**
+ * Part of a batch event to be processed separately.
+ *
+ * @author serkan
+ */
+public final class SubBatch {
+
+    private final byte[] request;
+    private final List<String> itemIdentifiers;
+
+    SubBatch(byte[] request, List<String> itemIdentifiers) {
+        this.request = request;
+        this.itemIdentifiers = itemIdentifiers;
+    }
+
+    /**
+     * @return the batch event which only contains the records of this sub-batch
+     */
+    public byte[] getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the identifiers of the records of this sub-batch in order
+     */
+    public List<String> getItemIdentifiers() {
+        return itemIdentifiers;
+    }
+
+}
@@ -8,8 +8,27 @@ public interface ConfigNames extends io.thundra.merloc.aws.lambda.core.config.Co
     String ENABLE = "merloc.enable";
     String BROKER_URL_CONFIG_NAME = "merloc.broker.url";
     String BROKER_CONNECTION_NAME_CONFIG_NAME = "merloc.broker.connection.name";
+    String BROKER_CONNECTION_PERSISTENT_CONFIG_NAME = "merloc.broker.connection.persistent";
     String BROKER_REQUEST_WAIT_MARGIN_CONFIG_NAME = "merloc.broker.request.wait.margin";
     String API_KEY_CONFIG_NAME = "merloc.apikey";
     String CLIENT_ACCESS_INTERVAL_ON_FAILURE = "merloc.client.access.interval.on.failure";
+    String CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE = "merloc.client.access.max.interval.on.failure";
+    String CLIENT_ACCESS_WINDOW_SIZE = "merloc.client.access.window.size";
+    String CLIENT_ACCESS_MINIMUM_COUNT = "merloc.client.access.minimum.count";
+    String CLIENT_ACCESS_FAILURE_RATE_THRESHOLD = "merloc.client.access.failure.rate.threshold";
+    String CLIENT_ACCESS_SLOW_THRESHOLD = "merloc.client.access.slow.threshold";
+    String CLIENT_ACCESS_SLOW_RATE_THRESHOLD = "merloc.client.access.slow.rate.threshold";
+    String CLIENT_PRESENCE_TTL_CONFIG_NAME = "merloc.client.presence.ttl";
+    String CLIENT_POOL_ENABLE_CONFIG_NAME = "merloc.client.pool.enable";
+    // Both the client and the actual handler might execute the same request, so side effects might be duplicated
+    String HEDGE_DELAY_CONFIG_NAME = "merloc.hedge.delay";
+    String SHADOW_ENABLE_CONFIG_NAME = "merloc.shadow.enable";
+    String SHADOW_SAMPLING_RATE_CONFIG_NAME = "merloc.shadow.sampling.rate";
+    String SHADOW_BUFFER_SIZE_CONFIG_NAME = "merloc.shadow.buffer.size";
+    String SHADOW_BUDGET_CONFIG_NAME = "merloc.shadow.budget";
+    String ROUTING_RULES_CONFIG_NAME = "merloc.routing.rules";
+    String METRICS_ENABLE_CONFIG_NAME = "merloc.metrics.enable";
+    String RESPONSE_STREAMING_ENABLE_CONFIG_NAME = "merloc.response.streaming.enable";
+    String BATCH_SPLIT_COUNT_CONFIG_NAME = "merloc.batch.split.count";
 
 }
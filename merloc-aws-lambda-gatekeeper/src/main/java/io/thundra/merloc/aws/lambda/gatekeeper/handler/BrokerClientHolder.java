@@ -0,0 +1,308 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.IdUtils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds a single broker connection to be reused across warm invocations.
+ *
+ * As the Lambda container is frozen between invocations,
+ * the connection might have been dropped silently (by broker, load balancer, NAT, etc ...) while frozen.
+ * So after a pause, the connection is verified by a ping before being reused,
+ * and it is replaced with a new one if it doesn't respond in time.
+ *
+ * Connection can also be started in advance by {@link #connect()} (for example, during the init phase),
+ * so the handshake overlaps with the rest of the cold start.
+ *
+ * Connection might be used concurrently (for example, by the sub-batches of a batch),
+ * so its users are counted and a replaced (or non-persistent) connection is closed
+ * only after its last user has released it.
+ * Waiting for the connection and pinging it are done without holding the lock,
+ * so the users of an already verified connection are not blocked by them.
+ *
+ * @author serkan
+ */
+final class BrokerClientHolder {
+
+    private static final long PING_THRESHOLD = TimeUnit.SECONDS.toMillis(5);
+    private static final long PING_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_IDLE_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    private final Supplier<BrokerClient> brokerClientSupplier;
+    private final boolean persistent;
+    // Current connection and the replaced ones which are still in use
+    private final Map<BrokerClient, Connection> connectionMap = new IdentityHashMap<>();
+    private Connection currentConnection;
+
+    /**
+     * @param brokerClientSupplier the supplier to create a new broker client which connects asynchronously
+     * @param persistent           <code>true</code> if the connection should be kept for the next invocations,
+     *                             <code>false</code> if it should be closed once it is not in use anymore
+     */
+    BrokerClientHolder(Supplier<BrokerClient> brokerClientSupplier, boolean persistent) {
+        this.brokerClientSupplier = brokerClientSupplier;
+        this.persistent = persistent;
+    }
+
+    private static final class Connection {
+
+        private final BrokerClient brokerClient;
+        private final long connectStartTime;
+        private volatile boolean connected;
+        private CompletableFuture<Boolean> verifyFuture;
+        private int userCount;
+        private long lastUsedTime;
+        private boolean retired;
+
+        private Connection(BrokerClient brokerClient) {
+            this.brokerClient = brokerClient;
+            this.connectStartTime = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * Starts connecting to the broker asynchronously if there is no connection yet.
+     */
+    synchronized void connect() {
+        if (currentConnection != null) {
+            return;
+        }
+        // Supplier only starts the handshake, so the lock is not held during the handshake
+        BrokerClient brokerClient = brokerClientSupplier.get();
+        if (brokerClient != null) {
+            currentConnection = new Connection(brokerClient);
+            connectionMap.put(brokerClient, currentConnection);
+        }
+    }
+
+    /**
+     * Gets the live broker client by connecting a new one if there is no live connection.
+     * If a broker client is returned, it must be given back
+     * by {@link #release(BrokerClient)} or {@link #invalidate(BrokerClient)} after it is used.
+     *
+     * @param connectTimeout the maximum time in milliseconds to wait for connecting
+     * @return the live broker client, <code>null</code> if it is not able to connect
+     */
+    BrokerClient acquire(long connectTimeout) {
+        Connection connection = acquireConnection();
+        if (connection == null) {
+            return null;
+        }
+        if (connection.connected && !verify(connection)) {
+            invalidate(connection.brokerClient);
+            connection = acquireConnection();
+            if (connection == null) {
+                return null;
+            }
+        }
+        if (!connection.connected && !waitUntilConnected(connection, connectTimeout)) {
+            invalidate(connection.brokerClient);
+            return null;
+        }
+        synchronized (this) {
+            connection.lastUsedTime = System.currentTimeMillis();
+        }
+        return connection.brokerClient;
+    }
+
+    private synchronized Connection acquireConnection() {
+        connect();
+        Connection connection = currentConnection;
+        if (connection != null) {
+            connection.userCount++;
+        }
+        return connection;
+    }
+
+    private boolean waitUntilConnected(Connection connection, long connectTimeout) {
+        long waitStartTime = System.currentTimeMillis();
+        // Each user waits up to its own timeout, but the handshake is shared by all of them
+        boolean connected = connection.brokerClient.waitUntilConnected(connectTimeout, TimeUnit.MILLISECONDS);
+        long waitEndTime = System.currentTimeMillis();
+        if (!connected) {
+            StdLogger.debug("Could not connect to broker in time");
+            return false;
+        }
+        synchronized (this) {
+            if (!connection.connected) {
+                connection.connected = true;
+                if (StdLogger.DEBUG_ENABLED) {
+                    // Time spent on connecting before it is needed is hidden from the request
+                    StdLogger.debug(String.format(
+                            "Broker connect took %d ms, %d ms of it overlapped with the init/request processing " +
+                                    "and waited %d ms for the rest",
+                            waitEndTime - connection.connectStartTime,
+                            waitStartTime - connection.connectStartTime,
+                            waitEndTime - waitStartTime));
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean verify(Connection connection) {
+        CompletableFuture<Boolean> verifyFuture;
+        long idleTime;
+        synchronized (this) {
+            verifyFuture = connection.verifyFuture;
+            idleTime = System.currentTimeMillis() - connection.lastUsedTime;
+            if (verifyFuture == null) {
+                if (connection.retired) {
+                    return false;
+                }
+                if (idleTime <= PING_THRESHOLD && connection.brokerClient.isOpen()) {
+                    return true;
+                }
+                // Only a single user verifies the connection and the others wait for its result
+                connection.verifyFuture = new CompletableFuture<>();
+            }
+        }
+        if (verifyFuture != null) {
+            return verifyFuture.join();
+        }
+        boolean alive = isAlive(connection.brokerClient, idleTime);
+        synchronized (this) {
+            verifyFuture = connection.verifyFuture;
+            connection.verifyFuture = null;
+        }
+        verifyFuture.complete(alive);
+        return alive;
+    }
+
+    /**
+     * Gives back the given broker client after it has been used successfully,
+     * so it is kept for the next invocation if the connection is persistent.
+     *
+     * @param usedBrokerClient the broker client which has been acquired before
+     */
+    void release(BrokerClient usedBrokerClient) {
+        destroy(release(usedBrokerClient, false));
+    }
+
+    /**
+     * Gives back the given broker client after it has failed,
+     * so a new connection is established for the next invocation.
+     * The broker client is closed once all of its users have released it.
+     * If it has already been replaced by another one, the current one is not affected.
+     *
+     * @param failedBrokerClient the broker client which has been acquired before
+     */
+    void invalidate(BrokerClient failedBrokerClient) {
+        destroy(release(failedBrokerClient, true));
+    }
+
+    private synchronized BrokerClient release(BrokerClient brokerClient, boolean failed) {
+        Connection connection = connectionMap.get(brokerClient);
+        if (connection == null) {
+            return null;
+        }
+        if (failed) {
+            retire(connection);
+        }
+        connection.userCount = Math.max(0, connection.userCount - 1);
+        connection.lastUsedTime = System.currentTimeMillis();
+        if (connection.userCount == 0 && !persistent) {
+            retire(connection);
+        }
+        if (connection.userCount == 0 && connection.retired) {
+            connectionMap.remove(brokerClient);
+            return brokerClient;
+        }
+        return null;
+    }
+
+    private void retire(Connection connection) {
+        connection.retired = true;
+        if (connection == currentConnection) {
+            currentConnection = null;
+        }
+    }
+
+    /**
+     * Closes and drops the current broker client (if there is),
+     * so a new connection is established for the next invocation.
+     * For example, connections captured by the checkpoint are not valid anymore after restore.
+     */
+    void close() {
+        List<BrokerClient> brokerClients = new ArrayList<>();
+        synchronized (this) {
+            if (currentConnection != null) {
+                retire(currentConnection);
+            }
+            // Closed regardless of their users as there should be no invocation in progress at this point
+            brokerClients.addAll(connectionMap.keySet());
+            connectionMap.clear();
+        }
+        for (BrokerClient brokerClient : brokerClients) {
+            destroy(brokerClient);
+        }
+    }
+
+    private boolean isAlive(BrokerClient client, long idleTime) {
+        if (!client.isOpen()) {
+            StdLogger.debug("Broker connection is not open anymore, so reconnecting");
+            return false;
+        }
+        if (idleTime > MAX_IDLE_TIME) {
+            StdLogger.debug(String.format(
+                    "Broker connection has been idle for %d ms, so reconnecting", idleTime));
+            return false;
+        }
+        // Possibly frozen in the meantime, so check whether the connection still works
+        return ping(client, idleTime);
+    }
+
+    private boolean ping(BrokerClient client, long idleTime) {
+        long startTime = System.currentTimeMillis();
+        try {
+            BrokerMessage pingMessage =
+                    new BrokerMessage().
+                            withId(IdUtils.generateId()).
+                            withType(BrokerConstants.CLIENT_PING_MESSAGE_TYPE).
+                            withConnectionName(client.getFullConnectionName()).
+                            withSourceConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                            withTargetConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE);
+            // Any response (pong from client or error from broker) shows that the connection is alive
+            BrokerMessage pongMessage = client.sendAndGetResponse(pingMessage, PING_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (pongMessage == null) {
+                StdLogger.debug(String.format(
+                        "Broker connection didn't respond to ping after being idle for %d ms, so reconnecting",
+                        idleTime));
+                return false;
+            }
+            StdLogger.debug(String.format(
+                    "Broker connection responded to ping in %d ms after being idle for %d ms",
+                    System.currentTimeMillis() - startTime, idleTime));
+            return true;
+        } catch (Throwable t) {
+            StdLogger.debug("Unable to ping broker connection, so reconnecting", t);
+            return false;
+        }
+    }
+
+    private static void destroy(BrokerClient client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+            client.waitUntilClosed(1, TimeUnit.SECONDS);
+            client.destroy();
+        } catch (Throwable t) {
+            StdLogger.error("Couldn't close broker client", t);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.logger.StdLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the capacity statuses published by the clients (local AWS Lambda runtimes),
+ * so the requests are not sent to the clients which would reject them or make them wait.
+ *
+ * Statuses are trusted only for a limited time, as the status freeing the capacity might be lost
+ * (for example, the client might have published it while our connection was being re-established).
+ * Clients which don't publish their statuses are always assumed to have capacity.
+ *
+ * @author serkan
+ */
+final class ClientCapacity {
+
+    static final String CAPACITY_VERSION_ATTRIBUTE_NAME = "capacityVersion";
+    static final String RUNTIME_FREE_SLOTS_ATTRIBUTE_NAME = "runtimeFreeSlots";
+    static final String FUNCTION_FREE_SLOTS_ATTRIBUTE_NAME = "functionFreeSlots";
+
+    private final long ttl;
+    private final Map<String, Status> statusMap = new HashMap<>();
+
+    /**
+     * @param ttl the time in milliseconds a status is trusted after it has been received
+     */
+    ClientCapacity(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Handles the capacity status message published by the client.
+     *
+     * @param clientId the connection id of the client, <code>null</code> if there is a single client
+     * @param message  the capacity status message
+     */
+    synchronized void onStatus(String clientId, BrokerMessage message) {
+        Number version = message.getDataAttribute(CAPACITY_VERSION_ATTRIBUTE_NAME);
+        Number runtimeFreeSlots = message.getDataAttribute(RUNTIME_FREE_SLOTS_ATTRIBUTE_NAME);
+        Map<String, Number> functionFreeSlots = message.getDataAttribute(FUNCTION_FREE_SLOTS_ATTRIBUTE_NAME);
+        if (version == null) {
+            StdLogger.debug(String.format("Ignored invalid capacity status: %s", message));
+            return;
+        }
+        Status status = statusMap.get(clientId);
+        if (status != null && status.version >= version.longValue()) {
+            // Statuses are published concurrently, so they might arrive out of order
+            return;
+        }
+        statusMap.put(
+                clientId,
+                new Status(
+                        version.longValue(),
+                        runtimeFreeSlots != null ? runtimeFreeSlots.intValue() : -1,
+                        functionFreeSlots,
+                        System.currentTimeMillis()));
+    }
+
+    /**
+     * @param clientId    the connection id of the client, <code>null</code> if there is a single client
+     * @param functionArn the ARN of the function to be invoked
+     * @return <code>false</code> if the client is known to have no free slot for the function,
+     *         <code>true</code> otherwise
+     */
+    synchronized boolean hasCapacity(String clientId, String functionArn) {
+        Status status = statusMap.get(clientId);
+        if (status == null) {
+            return true;
+        }
+        if (System.currentTimeMillis() - status.receiveTime > ttl) {
+            statusMap.remove(clientId);
+            return true;
+        }
+        if (status.runtimeFreeSlots == 0) {
+            return false;
+        }
+        if (status.functionFreeSlots != null) {
+            Number functionFreeSlots = status.functionFreeSlots.get(functionArn);
+            if (functionFreeSlots != null && functionFreeSlots.intValue() == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the status of the given client.
+     * Must be called when the client might have been restarted, as its status versions start over.
+     *
+     * @param clientId the connection id of the client, <code>null</code> if there is a single client
+     */
+    synchronized void reset(String clientId) {
+        statusMap.remove(clientId);
+    }
+
+    /**
+     * Forgets the statuses of all the clients.
+     */
+    synchronized void reset() {
+        statusMap.clear();
+    }
+
+    private static final class Status {
+
+        private final long version;
+        private final int runtimeFreeSlots;
+        private final Map<String, Number> functionFreeSlots;
+        private final long receiveTime;
+
+        private Status(long version, int runtimeFreeSlots, Map<String, Number> functionFreeSlots,
+                       long receiveTime) {
+            this.version = version;
+            this.runtimeFreeSlots = runtimeFreeSlots;
+            this.functionFreeSlots = functionFreeSlots;
+            this.receiveTime = receiveTime;
+        }
+
+    }
+
+}
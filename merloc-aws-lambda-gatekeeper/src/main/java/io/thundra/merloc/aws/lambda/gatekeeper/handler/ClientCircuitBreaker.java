@@ -0,0 +1,229 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.logger.StdLogger;
+
+/**
+ * Circuit breaker to bypass the client (local AWS Lambda runtime) while accessing it keeps failing.
+ *
+ * Outcomes of the latest client accesses are tracked in a sliding window.
+ * Once the window has the minimum number of accesses, so a few early failures are not taken as a high rate,
+ * and the failure rate or the slow access rate in the window exceeds its threshold, the circuit opens
+ * and requests are forwarded to the actual handler directly until the open interval passes.
+ * Then the circuit becomes half-open and lets exactly one probe access through.
+ * If the probe succeeds, the circuit closes.
+ * Otherwise, it opens again with doubled interval (up to the max open interval).
+ *
+ * @author serkan
+ */
+final class ClientCircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final long baseOpenInterval;
+    private final long maxOpenInterval;
+    private final int minimumAccessCount;
+    private final int failureRateThreshold;
+    private final long slowAccessThreshold;
+    private final int slowAccessRateThreshold;
+    private final boolean[] failedAccesses;
+    private final boolean[] slowAccesses;
+    private int accessCount;
+    private int accessIndex;
+    private int failedAccessCount;
+    private int slowAccessCount;
+    private State state = State.CLOSED;
+    private long openInterval;
+    private long openUntil;
+    private boolean probeInProgress;
+
+    /**
+     * @param baseOpenInterval        the open interval in milliseconds when the circuit opens for the first time,
+     *                                the circuit never opens if it is not positive
+     * @param maxOpenInterval         the upper limit in milliseconds for the exponentially increased open interval
+     * @param windowSize              the number of the latest accesses to evaluate
+     * @param minimumAccessCount      the minimum number of accesses in the window to evaluate the rates,
+     *                                window size is used if it is not positive or larger than the window size
+     * @param failureRateThreshold    the failure rate (percentage) in the window to open the circuit
+     * @param slowAccessThreshold     the duration in milliseconds to consider an access as slow,
+     *                                slow accesses are not considered if it is not positive
+     * @param slowAccessRateThreshold the slow access rate (percentage) in the window to open the circuit
+     */
+    ClientCircuitBreaker(long baseOpenInterval, long maxOpenInterval,
+                         int windowSize, int minimumAccessCount, int failureRateThreshold,
+                         long slowAccessThreshold, int slowAccessRateThreshold) {
+        this.baseOpenInterval = baseOpenInterval;
+        this.maxOpenInterval = Math.max(baseOpenInterval, maxOpenInterval);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowAccessThreshold = slowAccessThreshold;
+        this.slowAccessRateThreshold = slowAccessRateThreshold;
+        this.failedAccesses = new boolean[Math.max(1, windowSize)];
+        this.slowAccesses = new boolean[Math.max(1, windowSize)];
+        this.minimumAccessCount =
+                minimumAccessCount > 0
+                        ? Math.min(minimumAccessCount, failedAccesses.length)
+                        : failedAccesses.length;
+        this.openInterval = baseOpenInterval;
+    }
+
+    /**
+     * Visible for testing
+     */
+    synchronized State getState() {
+        return state;
+    }
+
+    private boolean isEnabled() {
+        return baseOpenInterval > 0;
+    }
+
+    /**
+     * Checks whether the client can be accessed.
+     * If permitted, the outcome of the access must be reported by {@link #onAccess(boolean, long)}.
+     *
+     * @return <code>true</code> if the client can be accessed,
+     *         <code>false</code> if the request should be forwarded to the actual handler
+     */
+    synchronized boolean tryAcquire() {
+        if (!isEnabled()) {
+            return true;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                long currentTime = System.currentTimeMillis();
+                if (currentTime < openUntil) {
+                    StdLogger.debug(String.format(
+                            "Client circuit is open for %d ms more", openUntil - currentTime));
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN, "open interval has passed, so letting a probe access through");
+                probeInProgress = true;
+                return true;
+            case HALF_OPEN:
+                if (probeInProgress) {
+                    StdLogger.debug("Client circuit is half-open and its probe access is in progress");
+                    return false;
+                }
+                probeInProgress = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Reports the outcome of the client access permitted by {@link #tryAcquire()}.
+     *
+     * @param succeeded <code>true</code> if the client has responded, <code>false</code> otherwise
+     * @param duration  the duration of the access in milliseconds
+     */
+    synchronized void onAccess(boolean succeeded, long duration) {
+        if (!isEnabled()) {
+            return;
+        }
+        boolean slow = slowAccessThreshold > 0 && duration > slowAccessThreshold;
+        if (state == State.HALF_OPEN) {
+            probeInProgress = false;
+            if (succeeded && !slow) {
+                openInterval = baseOpenInterval;
+                resetWindow();
+                transitionTo(State.CLOSED, String.format("probe access succeeded in %d ms", duration));
+            } else {
+                openInterval = Math.min(openInterval * 2, maxOpenInterval);
+                open(succeeded
+                        ? String.format("probe access was slow (%d ms)", duration)
+                        : "probe access failed");
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return;
+        }
+        record(!succeeded, slow);
+        if (accessCount < minimumAccessCount) {
+            return;
+        }
+        int failureRate = failedAccessCount * 100 / accessCount;
+        int slowAccessRate = slowAccessCount * 100 / accessCount;
+        if (failureRate >= failureRateThreshold) {
+            open(String.format(
+                    "failure rate is %d%% (%d/%d) which reaches the threshold %d%%",
+                    failureRate, failedAccessCount, accessCount, failureRateThreshold));
+        } else if (slowAccessThreshold > 0 && slowAccessRate >= slowAccessRateThreshold) {
+            open(String.format(
+                    "slow access (> %d ms) rate is %d%% (%d/%d) which reaches the threshold %d%%",
+                    slowAccessThreshold, slowAccessRate, slowAccessCount, accessCount, slowAccessRateThreshold));
+        }
+    }
+
+    /**
+     * Releases the access permitted by {@link #tryAcquire()} without an outcome,
+     * as the client has not been accessed at all (for example, it is known to be busy).
+     */
+    synchronized void onSkip() {
+        if (state == State.HALF_OPEN) {
+            // Let the next access be the probe
+            probeInProgress = false;
+        }
+    }
+
+    /**
+     * Closes the circuit and forgets the outcomes of the previous accesses.
+     * For example, outcomes recorded before the checkpoint are not relevant anymore after restore.
+     */
+    synchronized void reset() {
+        resetWindow();
+        openInterval = baseOpenInterval;
+        openUntil = 0;
+        probeInProgress = false;
+        if (state != State.CLOSED) {
+            transitionTo(State.CLOSED, "reset");
+        }
+    }
+
+    private void record(boolean failed, boolean slow) {
+        if (accessCount == failedAccesses.length) {
+            // Window is full, so evict the oldest access
+            if (failedAccesses[accessIndex]) {
+                failedAccessCount--;
+            }
+            if (slowAccesses[accessIndex]) {
+                slowAccessCount--;
+            }
+        } else {
+            accessCount++;
+        }
+        failedAccesses[accessIndex] = failed;
+        slowAccesses[accessIndex] = slow;
+        if (failed) {
+            failedAccessCount++;
+        }
+        if (slow) {
+            slowAccessCount++;
+        }
+        accessIndex = (accessIndex + 1) % failedAccesses.length;
+    }
+
+    private void resetWindow() {
+        accessCount = 0;
+        accessIndex = 0;
+        failedAccessCount = 0;
+        slowAccessCount = 0;
+    }
+
+    private void open(String reason) {
+        openUntil = System.currentTimeMillis() + openInterval;
+        transitionTo(State.OPEN, String.format("%s, so bypassing client for %d ms", reason, openInterval));
+    }
+
+    private void transitionTo(State newState, String reason) {
+        StdLogger.info(String.format("Client circuit state changed from %s to %s: %s", state, newState, reason));
+        state = newState;
+    }
+
+}
@@ -0,0 +1,105 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.ClassUtils;
+import io.thundra.merloc.common.utils.StringUtils;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the errors reported by the client (local AWS Lambda runtime) by their types.
+ *
+ * Error class and its constructors are resolved once per error type and cached,
+ * including the types which cannot be resolved, so repeated errors don't pay for the reflective lookups.
+ *
+ * @author serkan
+ */
+final class ClientErrorFactories {
+
+    private static final ClientErrorFactory NO_FACTORY = new ClientErrorFactory(null);
+
+    private final ClassLoader classLoader;
+    private final Map<String, ClientErrorFactory> factoryMap = new ConcurrentHashMap<>();
+
+    ClientErrorFactories(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Creates the error with the given type and message.
+     *
+     * @param errorType    the class name of the error
+     * @param errorMessage the message of the error
+     * @return the created error, <code>null</code> if it cannot be created
+     */
+    Throwable create(String errorType, String errorMessage) {
+        ClientErrorFactory factory = factoryMap.computeIfAbsent(errorType, this::resolveFactory);
+        return factory.create(errorType, errorMessage);
+    }
+
+    private ClientErrorFactory resolveFactory(String errorType) {
+        Class<? extends Throwable> errorClass = ClassUtils.getClass(classLoader, errorType);
+        if (errorClass == null || !Throwable.class.isAssignableFrom(errorClass)) {
+            return NO_FACTORY;
+        }
+        return new ClientErrorFactory(errorClass);
+    }
+
+    private static <T> Constructor<T> getConstructorSafe(Class<T> clazz, Class<?>... parameterTypes) {
+        try {
+            return clazz.getConstructor(parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class ClientErrorFactory {
+
+        private final Constructor<? extends Throwable> messageCtor;
+        private final Constructor<? extends Throwable> messageAndCauseCtor;
+        private final Constructor<? extends Throwable> noArgCtor;
+        private final Constructor<? extends Throwable> causeCtor;
+
+        private ClientErrorFactory(Class<? extends Throwable> errorClass) {
+            if (errorClass != null) {
+                this.messageCtor = getConstructorSafe(errorClass, String.class);
+                this.messageAndCauseCtor = getConstructorSafe(errorClass, String.class, Throwable.class);
+                this.noArgCtor = getConstructorSafe(errorClass);
+                this.causeCtor = getConstructorSafe(errorClass, Throwable.class);
+            } else {
+                this.messageCtor = null;
+                this.messageAndCauseCtor = null;
+                this.noArgCtor = null;
+                this.causeCtor = null;
+            }
+        }
+
+        private Throwable create(String errorType, String errorMessage) {
+            try {
+                if (StringUtils.hasValue(errorMessage)) {
+                    if (messageCtor != null) {
+                        return messageCtor.newInstance(errorMessage);
+                    } else if (messageAndCauseCtor != null) {
+                        return messageAndCauseCtor.newInstance(errorMessage, null);
+                    } else if (noArgCtor != null) {
+                        return noArgCtor.newInstance();
+                    }
+                } else {
+                    if (noArgCtor != null) {
+                        return noArgCtor.newInstance();
+                    } else if (causeCtor != null) {
+                        return causeCtor.newInstance((Throwable) null);
+                    }
+                }
+            } catch (Exception e) {
+                StdLogger.debug(String.format(
+                        "Unable to create client request error (%s): %s", errorType, errorMessage));
+            }
+            return null;
+        }
+
+    }
+
+}
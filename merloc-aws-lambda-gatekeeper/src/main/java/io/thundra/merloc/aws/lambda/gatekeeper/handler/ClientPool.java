@@ -0,0 +1,114 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.logger.StdLogger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the clients (local AWS Lambda runtimes) registered to the pool of the connection name
+ * and spreads the requests across them by least outstanding requests.
+ *
+ * Clients are identified by their broker connection ids
+ * which are learned from the client connect/disconnect events and the responses.
+ * Clients which have connected before this GateKeeper are only learned from their responses,
+ * so requests are not targeted (and the broker picks the client) until more than one client is known.
+ * Otherwise, the first client responded would be the only one ever known and all the requests would be pinned to it.
+ * Ties are broken in favor of the least recently selected client, so idle clients are used in turn.
+ * As a Lambda container handles one invocation at a time, there are rarely outstanding requests,
+ * so in practice, the known clients are selected in round-robin order.
+ *
+ * @author serkan
+ */
+final class ClientPool {
+
+    private static final int MIN_TARGETED_CLIENT_COUNT = 2;
+
+    private final Map<String, Client> clientMap = new LinkedHashMap<>();
+    private long selectionCounter;
+
+    synchronized void markConnected(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        if (!clientMap.containsKey(connectionId)) {
+            clientMap.put(connectionId, new Client());
+            StdLogger.debug(String.format(
+                    "Client %s joined the pool (pool size: %d)", connectionId, clientMap.size()));
+        }
+    }
+
+    synchronized void markDisconnected(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        if (clientMap.remove(connectionId) != null) {
+            StdLogger.debug(String.format(
+                    "Client %s left the pool (pool size: %d)", connectionId, clientMap.size()));
+        }
+    }
+
+    /**
+     * Forgets all the clients, so they are learned again from the next events and responses.
+     */
+    synchronized void clear() {
+        clientMap.clear();
+    }
+
+    synchronized boolean isEmpty() {
+        return clientMap.isEmpty();
+    }
+
+    synchronized int size() {
+        return clientMap.size();
+    }
+
+    /**
+     * Selects the client with the least outstanding requests.
+     * If a client is selected, it must be released by {@link #release(String)} after its response.
+     *
+     * @return the connection id of the selected client,
+     *         <code>null</code> if there are not enough known clients, so the broker should decide
+     */
+    synchronized String acquire() {
+        if (clientMap.size() < MIN_TARGETED_CLIENT_COUNT) {
+            // Let the broker pick, so the other clients (if there are) are discovered from their responses
+            return null;
+        }
+        String selectedConnectionId = null;
+        Client selectedClient = null;
+        for (Map.Entry<String, Client> e : clientMap.entrySet()) {
+            Client client = e.getValue();
+            if (selectedClient == null
+                    || client.outstandingRequests < selectedClient.outstandingRequests
+                    || (client.outstandingRequests == selectedClient.outstandingRequests
+                            && client.lastSelection < selectedClient.lastSelection)) {
+                selectedConnectionId = e.getKey();
+                selectedClient = client;
+            }
+        }
+        if (selectedClient != null) {
+            selectedClient.outstandingRequests++;
+            selectedClient.lastSelection = ++selectionCounter;
+        }
+        return selectedConnectionId;
+    }
+
+    synchronized void release(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        Client client = clientMap.get(connectionId);
+        if (client != null && client.outstandingRequests > 0) {
+            client.outstandingRequests--;
+        }
+    }
+
+    private static final class Client {
+
+        private int outstandingRequests;
+        private long lastSelection;
+
+    }
+
+}
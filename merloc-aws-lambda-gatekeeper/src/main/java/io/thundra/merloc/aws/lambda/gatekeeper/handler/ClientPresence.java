@@ -0,0 +1,62 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.logger.StdLogger;
+
+/**
+ * Caches whether there is a client (local AWS Lambda runtime) connected to the broker for this connection name.
+ *
+ * Presence is updated by the client connect/disconnect events pushed by the broker
+ * and by the outcome of the client requests.
+ * Known absence expires after the configured TTL, so presence is re-checked over the broker
+ * even if a connect event is missed (for example, while there is no open broker connection).
+ *
+ * @author serkan
+ */
+final class ClientPresence {
+
+    private final long ttl;
+    private volatile Boolean present;
+    private volatile long updateTime;
+
+    ClientPresence(long ttl) {
+        this.ttl = ttl;
+    }
+
+    void markPresent() {
+        update(true);
+    }
+
+    void markAbsent() {
+        update(false);
+    }
+
+    /**
+     * Forgets the presence, so it is unknown until it is updated again.
+     */
+    void reset() {
+        present = null;
+        updateTime = 0;
+    }
+
+    private void update(boolean newPresent) {
+        if (StdLogger.DEBUG_ENABLED && !Boolean.valueOf(newPresent).equals(present)) {
+            StdLogger.debug(String.format("Client presence changed: %s", newPresent ? "present" : "absent"));
+        }
+        present = newPresent;
+        updateTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether there is known to be no client connected.
+     *
+     * @return <code>true</code> if no client is known to be connected,
+     *         <code>false</code> if a client is connected or its presence is unknown
+     */
+    boolean isKnownAbsent() {
+        if (ttl <= 0) {
+            return false;
+        }
+        return Boolean.FALSE.equals(present) && System.currentTimeMillis() - updateTime < ttl;
+    }
+
+}
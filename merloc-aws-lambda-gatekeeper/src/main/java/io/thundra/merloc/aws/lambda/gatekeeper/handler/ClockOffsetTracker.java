@@ -0,0 +1,83 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the offset between the clock of the client (local AWS Lambda runtime) and ours,
+ * so the invocation deadline can be sent in the clock of the client.
+ *
+ * Offset is estimated from the request send/receive and response send/receive times as NTP does.
+ * Among the samples, the one with the shortest round-trip is kept as it has the smallest error.
+ * Clients which don't report their receive/response times are assumed to have the same clock with ours.
+ * Offsets are tracked per client, as each client in a pool runs on its own clock.
+ *
+ * @author serkan
+ */
+final class ClockOffsetTracker {
+
+    static final String RECEIVED_AT_ATTRIBUTE_NAME = "receivedAt";
+    static final String RESPONDED_AT_ATTRIBUTE_NAME = "respondedAt";
+
+    private final Map<String, Sample> sampleMap = new HashMap<>();
+
+    /**
+     * @param clientId the connection id of the client, <code>null</code> if it is not known
+     * @return the estimated offset of the clock of the client from ours in milliseconds,
+     *         <code>0</code> if it is not known yet
+     */
+    synchronized long getOffset(String clientId) {
+        Sample sample = sampleMap.get(clientId);
+        return sample != null ? sample.offset : 0;
+    }
+
+    /**
+     * Handles the times of a completed request.
+     *
+     * @param clientId    the connection id of the client which has handled the request,
+     *                    <code>null</code> if it is not known
+     * @param sentAt      the time the request was sent in our clock
+     * @param receivedAt  the time the request was received in the clock of the client,
+     *                    <code>null</code> if the client doesn't report it
+     * @param respondedAt the time the response was sent in the clock of the client,
+     *                    <code>null</code> if the client doesn't report it
+     * @param completedAt the time the response was received in our clock
+     */
+    synchronized void onResponse(String clientId, long sentAt, Number receivedAt, Number respondedAt,
+                                 long completedAt) {
+        if (receivedAt == null || respondedAt == null) {
+            return;
+        }
+        long roundTrip = (completedAt - sentAt) - (respondedAt.longValue() - receivedAt.longValue());
+        if (roundTrip < 0) {
+            // Clock has been adjusted in the meantime
+            return;
+        }
+        Sample sample = sampleMap.get(clientId);
+        if (sample == null || roundTrip <= sample.roundTrip) {
+            long offset = ((receivedAt.longValue() - sentAt) + (respondedAt.longValue() - completedAt)) / 2;
+            sampleMap.put(clientId, new Sample(offset, roundTrip));
+        }
+    }
+
+    /**
+     * Forgets the estimated offsets.
+     * Must be called when the clients might have changed (for example, they have reconnected).
+     */
+    synchronized void reset() {
+        sampleMap.clear();
+    }
+
+    private static final class Sample {
+
+        private final long offset;
+        private final long roundTrip;
+
+        private Sample(long offset, long roundTrip) {
+            this.offset = offset;
+            this.roundTrip = roundTrip;
+        }
+
+    }
+
+}
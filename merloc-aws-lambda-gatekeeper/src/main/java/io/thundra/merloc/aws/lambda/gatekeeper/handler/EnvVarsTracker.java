@@ -0,0 +1,166 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.aws.lambda.core.utils.LambdaUtils;
+import io.thundra.merloc.broker.client.Data;
+import io.thundra.merloc.common.utils.IOUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the environment variables snapshot acknowledged by the client (local AWS Lambda runtime),
+ * so only the changed environment variables are sent with the subsequent requests.
+ *
+ * Full environment variables are sent with their hash until the client acknowledges the hash.
+ * Clients which don't support deltas never acknowledge, so they always get the full environment variables.
+ * Acknowledged snapshots are tracked per client, as each client in a pool keeps its own snapshot.
+ *
+ * @author serkan
+ */
+final class EnvVarsTracker {
+
+    static final String ENV_VARS_ATTRIBUTE_NAME = "envVars";
+    static final String ENV_VARS_HASH_ATTRIBUTE_NAME = "envVarsHash";
+    static final String ENV_VARS_BASE_HASH_ATTRIBUTE_NAME = "envVarsBaseHash";
+    static final String REMOVED_ENV_VARS_ATTRIBUTE_NAME = "removedEnvVars";
+
+    private final Map<String, Snapshot> ackedSnapshotMap = new HashMap<>();
+    private Map<String, String> hashedEnvVars;
+    private String hash;
+
+    /**
+     * Creates the environment variables update to be sent with the next request
+     * based on the current environment variables.
+     *
+     * @param clientId the connection id of the target client, <code>null</code> if it is not known
+     * @return the created {@link Update}
+     */
+    synchronized Update createUpdate(String clientId) {
+        Map<String, String> envVars = LambdaUtils.getEnvVars();
+        if (hashedEnvVars == null || !hashedEnvVars.equals(envVars)) {
+            hashedEnvVars = new HashMap<>(envVars);
+            hash = calculateHash(hashedEnvVars);
+        }
+        Snapshot ackedSnapshot = ackedSnapshotMap.get(clientId);
+        if (ackedSnapshot == null || hash == null) {
+            return new Update(clientId, hash, hashedEnvVars, null, hashedEnvVars, null);
+        }
+        String ackedHash = ackedSnapshot.hash;
+        Map<String, String> ackedEnvVars = ackedSnapshot.envVars;
+        if (ackedHash.equals(hash)) {
+            return new Update(clientId, hash, hashedEnvVars, ackedHash, Collections.emptyMap(), null);
+        }
+        Map<String, String> changedEnvVars = new HashMap<>();
+        for (Map.Entry<String, String> e : hashedEnvVars.entrySet()) {
+            if (!e.getValue().equals(ackedEnvVars.get(e.getKey()))) {
+                changedEnvVars.put(e.getKey(), e.getValue());
+            }
+        }
+        List<String> removedEnvVars = null;
+        for (String name : ackedEnvVars.keySet()) {
+            if (!hashedEnvVars.containsKey(name)) {
+                if (removedEnvVars == null) {
+                    removedEnvVars = new ArrayList<>();
+                }
+                removedEnvVars.add(name);
+            }
+        }
+        return new Update(clientId, hash, hashedEnvVars, ackedHash, changedEnvVars, removedEnvVars);
+    }
+
+    /**
+     * Handles the environment variables hash acknowledged by the client for the sent update.
+     *
+     * @param update    the sent {@link Update}
+     * @param ackedHash the hash acknowledged by the client, <code>null</code> if there is no acknowledge
+     */
+    synchronized void onAck(Update update, String ackedHash) {
+        if (ackedHash != null && ackedHash.equals(update.hash)) {
+            ackedSnapshotMap.put(update.clientId, new Snapshot(update.hash, update.envVars));
+        }
+    }
+
+    /**
+     * Forgets the acknowledged snapshots, so full environment variables are sent with the next requests.
+     * Must be called when the clients might have lost their snapshots (for example, they have reconnected).
+     */
+    synchronized void reset() {
+        ackedSnapshotMap.clear();
+    }
+
+    /**
+     * Forgets the acknowledged snapshot of the given client.
+     *
+     * @param clientId the connection id of the client, <code>null</code> if it is not known
+     */
+    synchronized void reset(String clientId) {
+        ackedSnapshotMap.remove(clientId);
+    }
+
+    private static String calculateHash(Map<String, String> envVars) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : new TreeMap<>(envVars).entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        return IOUtils.calculateMD5(sb.toString());
+    }
+
+    private static final class Snapshot {
+
+        private final String hash;
+        private final Map<String, String> envVars;
+
+        private Snapshot(String hash, Map<String, String> envVars) {
+            this.hash = hash;
+            this.envVars = envVars;
+        }
+
+    }
+
+    static final class Update {
+
+        private final String clientId;
+        private final String hash;
+        private final Map<String, String> envVars;
+        private final String baseHash;
+        private final Map<String, String> sentEnvVars;
+        private final List<String> removedEnvVars;
+
+        private Update(String clientId, String hash, Map<String, String> envVars, String baseHash,
+                       Map<String, String> sentEnvVars, List<String> removedEnvVars) {
+            this.clientId = clientId;
+            this.hash = hash;
+            this.envVars = envVars;
+            this.baseHash = baseHash;
+            this.sentEnvVars = sentEnvVars;
+            this.removedEnvVars = removedEnvVars;
+        }
+
+        String getHash() {
+            return hash;
+        }
+
+        boolean isDelta() {
+            return baseHash != null;
+        }
+
+        void writeTo(Data data) {
+            data.put(ENV_VARS_ATTRIBUTE_NAME, sentEnvVars);
+            if (hash != null) {
+                data.put(ENV_VARS_HASH_ATTRIBUTE_NAME, hash);
+            }
+            if (baseHash != null) {
+                data.put(ENV_VARS_BASE_HASH_ATTRIBUTE_NAME, baseHash);
+            }
+            if (removedEnvVars != null) {
+                data.put(REMOVED_ENV_VARS_ATTRIBUTE_NAME, removedEnvVars);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,963 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import ch.scheitlin.alex.java.StackTraceParser;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.lambda.runtime.serialization.PojoSerializer;
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerClientFactory;
+import io.thundra.merloc.broker.client.BrokerConnectionType;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerCredentials;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import io.thundra.merloc.broker.client.BrokerRetransmitOptions;
+import io.thundra.merloc.broker.client.Data;
+import io.thundra.merloc.broker.client.Error;
+import io.thundra.merloc.broker.client.StackFrame;
+import io.thundra.merloc.broker.client.TypeAwareBrokerMessageCallback;
+import io.thundra.merloc.broker.client.Utf8String;
+import io.thundra.merloc.common.config.ConfigManager;
+import io.thundra.merloc.common.crac.CracSupport;
+import io.thundra.merloc.aws.lambda.core.handler.HandlerHelper;
+import io.thundra.merloc.aws.lambda.core.handler.RequestInputStream;
+import io.thundra.merloc.aws.lambda.core.handler.WrapperLambdaHandler;
+import io.thundra.merloc.aws.lambda.core.utils.LambdaUtils;
+import io.thundra.merloc.aws.lambda.gatekeeper.batch.BatchForwarder;
+import io.thundra.merloc.aws.lambda.gatekeeper.batch.BatchSplitter;
+import io.thundra.merloc.aws.lambda.gatekeeper.batch.SubBatch;
+import io.thundra.merloc.aws.lambda.gatekeeper.config.ConfigNames;
+import io.thundra.merloc.aws.lambda.gatekeeper.metrics.InvocationMetrics;
+import io.thundra.merloc.aws.lambda.gatekeeper.routing.RoutingRules;
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.ExceptionUtils;
+import io.thundra.merloc.common.utils.ExecutorUtils;
+import io.thundra.merloc.common.utils.IdUtils;
+import io.thundra.merloc.common.utils.IOUtils;
+import io.thundra.merloc.common.utils.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Forwards the requests to the client (local AWS Lambda runtime) over the broker
+ * and falls back to the original handler when the client is not available.
+ *
+ * Loaded by {@link GateKeeperLambdaHandler} only when forwarding is enabled,
+ * so the broker machinery is not loaded at all when MerLoc is disabled.
+ *
+ * @author serkan
+ */
+final class ForwardingLambdaHandler extends WrapperLambdaHandler {
+
+    private static final String MERLOC_LAMBDA_HANDLER_ENV_VAR_NAME = "MERLOC_AWS_LAMBDA_HANDLER";
+    private static final String AWS_REGION_ENV_VAR_NAME = "AWS_REGION";
+    private static final String AWS_LAMBDA_FUNCTION_NAME_ENV_VAR_NAME = "AWS_LAMBDA_FUNCTION_NAME";
+    private static final String AWS_EXECUTION_ENV_ENV_VAR_NAME = "AWS_EXECUTION_ENV";
+    private static final String AWS_EXECUTION_ENV_PREFIX = "AWS_Lambda_";
+
+    private static final String AWS_LAMBDA_REGION_ATTRIBUTE_NAME = "region";
+    private static final String AWS_LAMBDA_REQUEST_ID_ATTRIBUTE_NAME = "requestId";
+    private static final String AWS_LAMBDA_HANDLER_ATTRIBUTE_NAME = "handler";
+    private static final String AWS_LAMBDA_FUNCTION_ARN_ATTRIBUTE_NAME = "functionArn";
+    private static final String AWS_LAMBDA_FUNCTION_NAME_ATTRIBUTE_NAME = "functionName";
+    private static final String AWS_LAMBDA_FUNCTION_VERSION_ATTRIBUTE_NAME = "functionVersion";
+    private static final String AWS_LAMBDA_RUNTIME_ATTRIBUTE_NAME = "runtime";
+    private static final String AWS_LAMBDA_TIMEOUT_ATTRIBUTE_NAME = "timeout";
+    private static final String AWS_LAMBDA_DEADLINE_ATTRIBUTE_NAME = "deadline";
+    private static final String AWS_LAMBDA_MEMORY_SIZE_ATTRIBUTE_NAME = "memorySize";
+    private static final String AWS_LAMBDA_LOG_GROUP_NAME_ATTRIBUTE_NAME = "logGroupName";
+    private static final String AWS_LAMBDA_LOG_STREAM_NAME_ATTRIBUTE_NAME = "logStreamName";
+    private static final String AWS_LAMBDA_CLIENT_CONTEXT_ATTRIBUTE_NAME = "clientContext";
+    private static final String AWS_LAMBDA_COGNITO_IDENTITY_ATTRIBUTE_NAME = "cognitoIdentity";
+    private static final String AWS_LAMBDA_REQUEST_ATTRIBUTE_NAME = "request";
+
+    private static final int DEFAULT_BROKER_REQUEST_WAIT_MARGIN = 1000;
+    private static final int DEFAULT_CLIENT_PRESENCE_TTL = 60;
+    private static final int DEFAULT_CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE = 600;
+    private static final int DEFAULT_CLIENT_ACCESS_WINDOW_SIZE = 10;
+    private static final int DEFAULT_CLIENT_ACCESS_FAILURE_RATE_THRESHOLD = 50;
+    private static final int DEFAULT_CLIENT_ACCESS_SLOW_RATE_THRESHOLD = 100;
+    private static final long BROKER_CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    private static final int ENV_VARS_MISMATCH_ERROR_CODE = 1001;
+    private static final int DEFAULT_SHADOW_SAMPLING_RATE = 100;
+    private static final long DEFAULT_SHADOW_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+
+    private static final String BROKER_URL =
+            ConfigManager.getConfig(ConfigNames.BROKER_URL_CONFIG_NAME);
+    private static final String BROKER_CONNECTION_NAME =
+            ConfigManager.getConfig(
+                    ConfigNames.BROKER_CONNECTION_NAME_CONFIG_NAME,
+                    LambdaUtils.getEnvVar(AWS_LAMBDA_FUNCTION_NAME_ENV_VAR_NAME));
+    private static final int BROKER_REQUEST_WAIT_MARGIN =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.BROKER_REQUEST_WAIT_MARGIN_CONFIG_NAME,
+                    DEFAULT_BROKER_REQUEST_WAIT_MARGIN);
+    private static final String API_KEY =
+            ConfigManager.getConfig(ConfigNames.API_KEY_CONFIG_NAME);
+    private static final int CLIENT_ACCESS_INTERVAL_ON_FAILURE =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_INTERVAL_ON_FAILURE, 0);
+    private static final int CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE,
+                    DEFAULT_CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE);
+    private static final int CLIENT_ACCESS_WINDOW_SIZE =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_WINDOW_SIZE, DEFAULT_CLIENT_ACCESS_WINDOW_SIZE);
+    // If the window is not configured (only the legacy interval on failure is),
+    // the rates are evaluated from the first access on, so a failed access can stop accessing the client right away
+    private static final int CLIENT_ACCESS_MINIMUM_COUNT =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_MINIMUM_COUNT,
+                    ConfigManager.getConfig(ConfigNames.CLIENT_ACCESS_WINDOW_SIZE) != null
+                            ? CLIENT_ACCESS_WINDOW_SIZE
+                            : 1);
+    private static final int CLIENT_ACCESS_FAILURE_RATE_THRESHOLD =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_FAILURE_RATE_THRESHOLD, DEFAULT_CLIENT_ACCESS_FAILURE_RATE_THRESHOLD);
+    private static final int CLIENT_ACCESS_SLOW_THRESHOLD =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_SLOW_THRESHOLD, 0);
+    private static final int CLIENT_ACCESS_SLOW_RATE_THRESHOLD =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_ACCESS_SLOW_RATE_THRESHOLD, DEFAULT_CLIENT_ACCESS_SLOW_RATE_THRESHOLD);
+    private static final boolean BROKER_CONNECTION_PERSISTENT =
+            ConfigManager.getBooleanConfig(ConfigNames.BROKER_CONNECTION_PERSISTENT_CONFIG_NAME, true);
+    private static final int CLIENT_PRESENCE_TTL =
+            ConfigManager.getIntegerConfig(
+                    ConfigNames.CLIENT_PRESENCE_TTL_CONFIG_NAME, DEFAULT_CLIENT_PRESENCE_TTL);
+
+    private static final int HEDGE_DELAY =
+            ConfigManager.getIntegerConfig(ConfigNames.HEDGE_DELAY_CONFIG_NAME, 0);
+    private static final boolean RESPONSE_STREAMING_ENABLE =
+            ConfigManager.getBooleanConfig(ConfigNames.RESPONSE_STREAMING_ENABLE_CONFIG_NAME, false);
+    private static final int BATCH_SPLIT_COUNT =
+            ConfigManager.getIntegerConfig(ConfigNames.BATCH_SPLIT_COUNT_CONFIG_NAME, 0);
+
+    private static final ClientPresence CLIENT_PRESENCE =
+            new ClientPresence(TimeUnit.SECONDS.toMillis(CLIENT_PRESENCE_TTL));
+    // Counted instead of flagged, as requests (for example, sub-batches) might be in flight concurrently
+    private static final AtomicInteger CLIENT_REQUESTS_IN_FLIGHT = new AtomicInteger();
+
+    private static final EnvVarsTracker ENV_VARS_TRACKER = new EnvVarsTracker();
+
+    private static final ClockOffsetTracker CLOCK_OFFSET_TRACKER = new ClockOffsetTracker();
+
+    private static final ClientCapacity CLIENT_CAPACITY =
+            new ClientCapacity(TimeUnit.SECONDS.toMillis(CLIENT_PRESENCE_TTL));
+
+    private static final ResponseStreamRelays RESPONSE_STREAM_RELAYS = new ResponseStreamRelays();
+
+    private static final ClientErrorFactories CLIENT_ERROR_FACTORIES =
+            new ClientErrorFactories(ForwardingLambdaHandler.class.getClassLoader());
+
+    private static final RoutingRules ROUTING_RULES = compileRoutingRules();
+
+    private static final ShadowMirror SHADOW_MIRROR =
+            ConfigManager.getBooleanConfig(ConfigNames.SHADOW_ENABLE_CONFIG_NAME, false)
+                    ? new ShadowMirror(
+                            ConfigManager.getIntegerConfig(
+                                    ConfigNames.SHADOW_SAMPLING_RATE_CONFIG_NAME, DEFAULT_SHADOW_SAMPLING_RATE),
+                            ConfigManager.getLongConfig(
+                                    ConfigNames.SHADOW_BUFFER_SIZE_CONFIG_NAME, DEFAULT_SHADOW_BUFFER_SIZE),
+                            ConfigManager.getLongConfig(ConfigNames.SHADOW_BUDGET_CONFIG_NAME, 0))
+                    : null;
+
+    private static final ExecutorService HEDGE_EXECUTOR =
+            HEDGE_DELAY > 0 ? ExecutorUtils.newCachedExecutorService("merloc-gatekeeper-hedge") : null;
+    // Actual handler started by the latest hedged request, it might still be running if it has lost the race
+    private static volatile CompletableFuture<Void> lastHedgedHandlerFuture;
+
+    private static final BatchSplitter BATCH_SPLITTER =
+            BATCH_SPLIT_COUNT > 1 ? new BatchSplitter(BATCH_SPLIT_COUNT) : null;
+    private static final BatchForwarder BATCH_FORWARDER =
+            BATCH_SPLITTER != null
+                    ? new BatchForwarder(ExecutorUtils.newCachedExecutorService("merloc-gatekeeper-batch"))
+                    : null;
+
+    private static final ClientPool CLIENT_POOL =
+            ConfigManager.getBooleanConfig(ConfigNames.CLIENT_POOL_ENABLE_CONFIG_NAME, false)
+                    ? new ClientPool()
+                    : null;
+
+    private static final ClientCircuitBreaker CLIENT_CIRCUIT_BREAKER =
+            new ClientCircuitBreaker(
+                    TimeUnit.SECONDS.toMillis(CLIENT_ACCESS_INTERVAL_ON_FAILURE),
+                    TimeUnit.SECONDS.toMillis(CLIENT_ACCESS_MAX_INTERVAL_ON_FAILURE),
+                    CLIENT_ACCESS_WINDOW_SIZE,
+                    CLIENT_ACCESS_MINIMUM_COUNT,
+                    CLIENT_ACCESS_FAILURE_RATE_THRESHOLD,
+                    CLIENT_ACCESS_SLOW_THRESHOLD,
+                    CLIENT_ACCESS_SLOW_RATE_THRESHOLD);
+
+    // Shared by all the handler instances, so the connection survives across warm invocations
+    private static final BrokerClientHolder BROKER_CLIENT_HOLDER =
+            new BrokerClientHolder(
+                    () -> createBrokerClient(createBrokerMessageCallback()), BROKER_CONNECTION_PERSISTENT);
+
+    static {
+        // Init phase runs with full CPU, so start the handshake here
+        // to overlap it with loading the original handler and reading the first request
+        BROKER_CLIENT_HOLDER.connect();
+        // With SnapStart, the init phase is checkpointed,
+        // so connection and client state captured by the snapshot are dropped and rebuilt after restore
+        CracSupport.register(
+                "GateKeeper",
+                new GateKeeperCheckpointListener(
+                        BROKER_CLIENT_HOLDER,
+                        CLIENT_PRESENCE,
+                        CLIENT_CIRCUIT_BREAKER,
+                        ENV_VARS_TRACKER,
+                        CLOCK_OFFSET_TRACKER,
+                        CLIENT_CAPACITY,
+                        CLIENT_POOL,
+                        true));
+    }
+
+    private final PojoSerializer<ClientContext> clientContextSerializer =
+            HandlerHelper.getSerializer(ClientContext.class);
+    private final PojoSerializer<CognitoIdentity> cognitoIdentitySerializer =
+            HandlerHelper.getSerializer(CognitoIdentity.class);
+
+    private static RoutingRules compileRoutingRules() {
+        String routingRules = ConfigManager.getConfig(ConfigNames.ROUTING_RULES_CONFIG_NAME);
+        if (StringUtils.isNullOrEmpty(routingRules)) {
+            return null;
+        }
+        try {
+            return RoutingRules.compile(routingRules);
+        } catch (Exception e) {
+            StdLogger.error("Invalid routing rules, so no request will be forwarded to client", e);
+            return RoutingRules.compile("[]");
+        }
+    }
+
+    @Override
+    protected Future<RequestStreamHandler> getProxyLambdaHandler(Supplier<RequestStreamHandler> handlerSupplier) {
+        return CompletableFuture.supplyAsync(handlerSupplier);
+    }
+
+    private static BrokerMessageCallback createBrokerMessageCallback() {
+        return new TypeAwareBrokerMessageCallback(
+                Arrays.asList(
+                        BrokerConstants.CLIENT_CONNECT_MESSAGE_TYPE,
+                        BrokerConstants.CLIENT_DISCONNECT_MESSAGE_TYPE,
+                        BrokerConstants.CLIENT_RESPONSE_PART_MESSAGE_TYPE,
+                        BrokerConstants.CLIENT_CAPACITY_MESSAGE_TYPE),
+                (client, message) -> {
+                    if (BrokerConstants.CLIENT_RESPONSE_PART_MESSAGE_TYPE.equals(message.getType())) {
+                        RESPONSE_STREAM_RELAYS.onPart(message);
+                        return;
+                    }
+                    String clientConnectionId = message.getSourceConnectionId();
+                    if (BrokerConstants.CLIENT_CAPACITY_MESSAGE_TYPE.equals(message.getType())) {
+                        // Without pool, requests are not targeted, so there is a single status
+                        CLIENT_CAPACITY.onStatus(CLIENT_POOL != null ? clientConnectionId : null, message);
+                        return;
+                    }
+                    if (CLIENT_POOL != null && clientConnectionId != null) {
+                        // Only this client might have been restarted
+                        ENV_VARS_TRACKER.reset(clientConnectionId);
+                        CLIENT_CAPACITY.reset(clientConnectionId);
+                    } else {
+                        // Client might have been restarted, so it might not have the env vars snapshot anymore
+                        ENV_VARS_TRACKER.reset();
+                        CLIENT_CAPACITY.reset();
+                    }
+                    // Client might have been restarted on another machine
+                    CLOCK_OFFSET_TRACKER.reset();
+                    if (BrokerConstants.CLIENT_CONNECT_MESSAGE_TYPE.equals(message.getType())) {
+                        StdLogger.debug("Client connected");
+                        CLIENT_PRESENCE.markPresent();
+                        if (CLIENT_POOL != null) {
+                            CLIENT_POOL.markConnected(clientConnectionId);
+                        }
+                        return;
+                    }
+                    if (CLIENT_POOL != null && clientConnectionId != null) {
+                        CLIENT_POOL.markDisconnected(clientConnectionId);
+                        if (!CLIENT_POOL.isEmpty()) {
+                            // There are still other clients in the pool
+                            StdLogger.debug(String.format("Client %s disconnected", clientConnectionId));
+                            return;
+                        }
+                    }
+                    CLIENT_PRESENCE.markAbsent();
+                    if (CLIENT_REQUESTS_IN_FLIGHT.get() > 0) {
+                        StdLogger.debug(
+                                "Client disconnected, so closing broker client." +
+                                "Then request will be forwarded to the actual handler.");
+                        client.close();
+                    } else {
+                        // Keep the connection open to be notified when the client connects again
+                        StdLogger.debug("Client disconnected");
+                    }
+                });
+    }
+
+    private static BrokerClient createBrokerClient(BrokerMessageCallback brokerMessageCallback) {
+        StdLogger.debug(String.format(
+                "Creating broker client to %s with connection name %s",
+                BROKER_URL,
+                BROKER_CONNECTION_NAME));
+        try {
+            return BrokerClientFactory.createWebSocketClient(
+                    BROKER_URL,
+                    new BrokerCredentials().
+                            withConnectionName(BROKER_CONNECTION_NAME).
+                            withConnectionType(BrokerConnectionType.GATEKEEPER).
+                            withApiKey(API_KEY),
+                    brokerMessageCallback, null, null,
+                    null, BrokerRetransmitOptions.fromConfig());
+        } catch (Exception e) {
+            StdLogger.error("Unable to create broker client", e);
+            return null;
+        }
+    }
+
+    private static Utf8String readRequest(InputStream requestStream) throws IOException {
+        if (requestStream instanceof RequestInputStream) {
+            // Refer to the already buffered request bytes instead of copying them
+            RequestInputStream requestInputStream = (RequestInputStream) requestStream;
+            return new Utf8String(
+                    requestInputStream.getBuffer(),
+                    requestInputStream.getOffset(),
+                    requestInputStream.getLength());
+        }
+        return new Utf8String(IOUtils.readAll(requestStream));
+    }
+
+    private BrokerMessage createClientRequest(Context context, Utf8String requestData,
+                                              EnvVarsTracker.Update envVarsUpdate) throws IOException {
+        Data data = new Data();
+
+        data.put(AWS_LAMBDA_REGION_ATTRIBUTE_NAME, LambdaUtils.getEnvVar(AWS_REGION_ENV_VAR_NAME));
+        data.put(AWS_LAMBDA_REQUEST_ID_ATTRIBUTE_NAME, context.getAwsRequestId());
+        data.put(AWS_LAMBDA_HANDLER_ATTRIBUTE_NAME, LambdaUtils.getEnvVar(MERLOC_LAMBDA_HANDLER_ENV_VAR_NAME));
+        data.put(AWS_LAMBDA_FUNCTION_ARN_ATTRIBUTE_NAME, context.getInvokedFunctionArn());
+        data.put(AWS_LAMBDA_FUNCTION_NAME_ATTRIBUTE_NAME, context.getFunctionName());
+        data.put(AWS_LAMBDA_FUNCTION_VERSION_ATTRIBUTE_NAME, context.getFunctionVersion());
+        data.put(AWS_LAMBDA_RUNTIME_ATTRIBUTE_NAME,
+                LambdaUtils.getEnvVar(AWS_EXECUTION_ENV_ENV_VAR_NAME).substring(AWS_EXECUTION_ENV_PREFIX.length()));
+        data.put(AWS_LAMBDA_TIMEOUT_ATTRIBUTE_NAME, context.getRemainingTimeInMillis());
+        data.put(AWS_LAMBDA_MEMORY_SIZE_ATTRIBUTE_NAME, context.getMemoryLimitInMB());
+        data.put(AWS_LAMBDA_LOG_GROUP_NAME_ATTRIBUTE_NAME, context.getLogGroupName());
+        data.put(AWS_LAMBDA_LOG_STREAM_NAME_ATTRIBUTE_NAME, context.getLogStreamName());
+
+        envVarsUpdate.writeTo(data);
+
+        ClientContext clientContext = context.getClientContext();
+        if (clientContext != null) {
+            ByteArrayOutputStream clientContextOutputStream = new ByteArrayOutputStream();
+            clientContextSerializer.toJson(clientContext, clientContextOutputStream);
+            data.put(AWS_LAMBDA_CLIENT_CONTEXT_ATTRIBUTE_NAME, new String(clientContextOutputStream.toByteArray()));
+        }
+
+        CognitoIdentity cognitoIdentity = context.getIdentity();
+        if (cognitoIdentity != null) {
+            ByteArrayOutputStream cognitoIdentityOutputStream = new ByteArrayOutputStream();
+            cognitoIdentitySerializer.toJson(cognitoIdentity, cognitoIdentityOutputStream);
+            data.put(AWS_LAMBDA_COGNITO_IDENTITY_ATTRIBUTE_NAME, new String(cognitoIdentityOutputStream.toByteArray()));
+        }
+
+        data.put(AWS_LAMBDA_REQUEST_ATTRIBUTE_NAME, requestData);
+
+        return new BrokerMessage().
+                withId(IdUtils.generateId()).
+                withType(BrokerConstants.CLIENT_REQUEST_MESSAGE_TYPE).
+                withSourceConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                withTargetConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE).
+                withData(data);
+    }
+
+    @Override
+    protected boolean onRequest(InputStream requestStream, OutputStream responseStream, Context context) {
+        InvocationMetrics metrics = InvocationMetrics.start();
+        long decisionMark = metrics.mark();
+        boolean fallback = false;
+        try {
+            fallback = routeRequest(requestStream, responseStream, context, metrics, decisionMark);
+            return fallback;
+        } finally {
+            if (fallback) {
+                // Decision has not been recorded yet if it has fallen back before accessing the client
+                metrics.recordIfAbsent(InvocationMetrics.Phase.FALLBACK_DECISION, decisionMark);
+            }
+            metrics.finish(context.getAwsRequestId(), fallback);
+        }
+    }
+
+    private boolean routeRequest(InputStream requestStream, OutputStream responseStream, Context context,
+                                 InvocationMetrics metrics, long decisionMark) {
+        if (ROUTING_RULES != null && !isRoutedToClient(requestStream)) {
+            StdLogger.debug("Request doesn't match any routing rule, so forwarding request to the actual handler");
+            return true;
+        }
+        if (SHADOW_MIRROR != null) {
+            mirrorToClient(requestStream, context);
+            return true;
+        }
+        if (BATCH_SPLITTER != null) {
+            List<SubBatch> subBatches = splitBatch(requestStream);
+            if (subBatches != null) {
+                return forwardBatchToClient(subBatches, responseStream, context, metrics, decisionMark);
+            }
+        }
+        if (HEDGE_DELAY > 0) {
+            return onRequestHedged(requestStream, responseStream, context, metrics, decisionMark);
+        }
+        return forwardToClient(requestStream, responseStream, context, metrics, decisionMark);
+    }
+
+    private static boolean isRoutedToClient(InputStream requestStream) {
+        try {
+            Utf8String requestData = readRequest(requestStream);
+            return ROUTING_RULES.matches(requestData.getBytes(), requestData.getOffset(), requestData.getLength());
+        } catch (Throwable t) {
+            StdLogger.error("Unable to evaluate routing rules", t);
+            return false;
+        }
+    }
+
+    private static List<SubBatch> splitBatch(InputStream requestStream) {
+        try {
+            Utf8String requestData = readRequest(requestStream);
+            return BATCH_SPLITTER.split(requestData.getBytes(), requestData.getOffset(), requestData.getLength());
+        } catch (Throwable t) {
+            StdLogger.error("Unable to split batch, so forwarding it as a whole", t);
+            return null;
+        }
+    }
+
+    private boolean forwardBatchToClient(List<SubBatch> subBatches, OutputStream responseStream, Context context,
+                                         InvocationMetrics metrics, long decisionMark) {
+        try {
+            byte[] batchResponse =
+                    BATCH_FORWARDER.forward(
+                            subBatches, getBatchParallelism(),
+                            subBatch -> {
+                                ByteArrayOutputStream subBatchResponseStream = new ByteArrayOutputStream();
+                                boolean continueRequest =
+                                        forwardToClient(
+                                                new RequestInputStream(subBatch.getRequest()),
+                                                subBatchResponseStream, context, metrics, decisionMark);
+                                // No response means that the client couldn't handle the sub-batch
+                                return continueRequest ? null : subBatchResponseStream.toByteArray();
+                            },
+                            subBatch -> {
+                                ByteArrayOutputStream subBatchResponseStream = new ByteArrayOutputStream();
+                                invokeProxyLambdaHandler(
+                                        new RequestInputStream(subBatch.getRequest()), subBatchResponseStream, context);
+                                return subBatchResponseStream.toByteArray();
+                            });
+            if (batchResponse == null) {
+                return true;
+            }
+            responseStream.write(batchResponse);
+        } catch (Throwable t) {
+            ExceptionUtils.sneakyThrow(t);
+        }
+        return false;
+    }
+
+    private static int getBatchParallelism() {
+        // Client runs a single invocation of the function at a time,
+        // so sub-batches are only forwarded in parallel when there are multiple pooled clients to spread them.
+        // Half-open circuit lets a single probe access through,
+        // so sub-batches are forwarded one by one until the circuit closes.
+        if (CLIENT_POOL == null || CLIENT_CIRCUIT_BREAKER.getState() != ClientCircuitBreaker.State.CLOSED) {
+            return 1;
+        }
+        return Math.max(1, CLIENT_POOL.size());
+    }
+
+    private void mirrorToClient(InputStream requestStream, Context context) {
+        try {
+            if (CLIENT_PRESENCE.isKnownAbsent()) {
+                StdLogger.debug("No client is connected, so skipped mirroring request");
+                return;
+            }
+            Utf8String requestData = readRequest(requestStream);
+            int requestSize = requestData.getLength();
+            if (!SHADOW_MIRROR.tryReserve(requestSize)) {
+                return;
+            }
+            BrokerMessage clientRequest;
+            try {
+                // Request buffer belongs to the current invocation, so take a copy to be sent later
+                Utf8String requestDataCopy =
+                        new Utf8String(
+                                Arrays.copyOfRange(
+                                        requestData.getBytes(),
+                                        requestData.getOffset(),
+                                        requestData.getOffset() + requestSize));
+                clientRequest = createClientRequest(context, requestDataCopy, ENV_VARS_TRACKER.createUpdate(null));
+            } catch (Throwable t) {
+                SHADOW_MIRROR.release(requestSize);
+                throw t;
+            }
+            SHADOW_MIRROR.submit(requestSize, () -> {
+                BrokerClient brokerClient = BROKER_CLIENT_HOLDER.acquire(BROKER_CONNECT_TIMEOUT);
+                if (brokerClient == null) {
+                    StdLogger.debug("Could not connect to broker so skipped mirroring request");
+                    return;
+                }
+                boolean sent = false;
+                try {
+                    // Response (if there is) is ignored as the request is handled by the actual handler
+                    brokerClient.send(clientRequest.withConnectionName(brokerClient.getFullConnectionName()));
+                    sent = true;
+                } catch (IOException e) {
+                    StdLogger.debug("Unable to mirror request to client", e);
+                } finally {
+                    if (sent) {
+                        BROKER_CLIENT_HOLDER.release(brokerClient);
+                    } else {
+                        BROKER_CLIENT_HOLDER.invalidate(brokerClient);
+                    }
+                }
+            });
+        } catch (Throwable t) {
+            StdLogger.debug("Unable to mirror request to client", t);
+        }
+    }
+
+    private boolean onRequestHedged(InputStream requestStream, OutputStream responseStream, Context context,
+                                    InvocationMetrics metrics, long decisionMark) {
+        CompletableFuture<Void> previousHandlerFuture = lastHedgedHandlerFuture;
+        if (previousHandlerFuture != null && !previousHandlerFuture.isDone()) {
+            // Actual handler is not expected to be invoked concurrently (it is not in a real Lambda container),
+            // so don't start it again while the losing one of the previous request is still running
+            StdLogger.debug("Actual handler of the previous hedged request is still running, so not hedging");
+            boolean continueRequest = forwardToClient(requestStream, responseStream, context, metrics, decisionMark);
+            if (continueRequest) {
+                waitForHedgedHandler(previousHandlerFuture, context);
+            }
+            return continueRequest;
+        }
+        try {
+            // Losing leg might still be reading the request after the invocation returns,
+            // but the request buffer is reused by the next invocation then, so take a copy
+            Utf8String request = readRequest(requestStream);
+            byte[] requestData =
+                    Arrays.copyOfRange(
+                            request.getBytes(), request.getOffset(), request.getOffset() + request.getLength());
+            int requestOffset = 0;
+            int requestLength = requestData.length;
+
+            ByteArrayOutputStream clientResponseStream = new ByteArrayOutputStream();
+            CompletableFuture<Boolean> clientFuture =
+                    CompletableFuture.supplyAsync(
+                            () -> forwardToClient(
+                                    new RequestInputStream(requestData, requestOffset, requestLength),
+                                    clientResponseStream, context, metrics, decisionMark),
+                            HEDGE_EXECUTOR);
+            try {
+                if (clientFuture.get(HEDGE_DELAY, TimeUnit.MILLISECONDS)) {
+                    // Client couldn't handle the request, so let the actual handler handle it as usual
+                    return true;
+                }
+                clientResponseStream.writeTo(responseStream);
+                return false;
+            } catch (TimeoutException e) {
+                StdLogger.debug(String.format(
+                        "No response from client in %d ms, so starting the actual handler in parallel",
+                        HEDGE_DELAY));
+            } catch (ExecutionException e) {
+                ExceptionUtils.sneakyThrow(e.getCause());
+            }
+
+            ByteArrayOutputStream handlerResponseStream = new ByteArrayOutputStream();
+            CompletableFuture<Void> handlerFuture =
+                    CompletableFuture.runAsync(
+                            () -> {
+                                try {
+                                    invokeProxyLambdaHandler(
+                                            new RequestInputStream(requestData, requestOffset, requestLength),
+                                            handlerResponseStream, context);
+                                } catch (IOException e) {
+                                    ExceptionUtils.sneakyThrow(e);
+                                }
+                            },
+                            HEDGE_EXECUTOR);
+            lastHedgedHandlerFuture = handlerFuture;
+
+            // Completed by whichever finishes first.
+            // Client is skipped if it couldn't handle the request, so then the actual handler completes it.
+            CompletableFuture<Boolean> firstFuture = new CompletableFuture<>();
+            clientFuture.whenComplete((continueRequest, error) -> {
+                if (error != null || !continueRequest) {
+                    firstFuture.complete(true);
+                }
+            });
+            handlerFuture.whenComplete((result, error) -> firstFuture.complete(false));
+
+            if (firstFuture.get()) {
+                StdLogger.debug("Client has responded before the actual handler");
+                completeHedgedRequest(clientFuture, clientResponseStream, responseStream);
+            } else {
+                StdLogger.debug("Actual handler has responded before the client");
+                completeHedgedRequest(handlerFuture, handlerResponseStream, responseStream);
+            }
+        } catch (Throwable t) {
+            ExceptionUtils.sneakyThrow(t);
+        }
+        return false;
+    }
+
+    private static void waitForHedgedHandler(CompletableFuture<Void> handlerFuture, Context context) {
+        StdLogger.debug("Waiting for the actual handler of the previous hedged request to complete");
+        try {
+            handlerFuture.get(context.getRemainingTimeInMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Outcome of the previous request doesn't matter here
+        }
+    }
+
+    private static void completeHedgedRequest(CompletableFuture<?> future,
+                                              ByteArrayOutputStream bufferedResponseStream,
+                                              OutputStream responseStream) throws Throwable {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+        bufferedResponseStream.writeTo(responseStream);
+    }
+
+    private boolean forwardToClient(InputStream requestStream, OutputStream responseStream, Context context,
+                                    InvocationMetrics metrics, long decisionMark) {
+        boolean throwError = false;
+        try {
+            if (CLIENT_PRESENCE.isKnownAbsent()) {
+                StdLogger.debug("No client is connected, so forwarding request to the actual handler");
+                return true;
+            }
+
+            if (!CLIENT_CIRCUIT_BREAKER.tryAcquire()) {
+                StdLogger.debug("Client circuit is open, so forwarding request to the actual handler");
+                return true;
+            }
+            metrics.record(InvocationMetrics.Phase.FALLBACK_DECISION, decisionMark);
+
+            long clientAccessStartTime = System.currentTimeMillis();
+            boolean clientAccessSucceeded = false;
+            boolean clientAccessSkipped = false;
+            BrokerClient brokerClient = null;
+            boolean brokerClientHealthy = false;
+            String targetConnectionId = null;
+            ResponseStreamRelays.Relay relay = null;
+            try {
+                long connectMark = metrics.mark();
+                brokerClient = BROKER_CLIENT_HOLDER.acquire(BROKER_CONNECT_TIMEOUT);
+                metrics.record(InvocationMetrics.Phase.CONNECT_WAIT, connectMark);
+                if (brokerClient == null) {
+                    StdLogger.debug("Could not connect to broker so forwarding request to the actual handler");
+                    return true;
+                }
+
+                long requestBuildMark = metrics.mark();
+                Utf8String requestData = readRequest(requestStream);
+                metrics.record(InvocationMetrics.Phase.REQUEST_BUILD, requestBuildMark);
+
+                if (StdLogger.DEBUG_ENABLED) {
+                    StdLogger.debug(String.format(
+                            "Forwarding request to client: %s", requestData));
+                }
+
+                if (CLIENT_POOL != null) {
+                    targetConnectionId = CLIENT_POOL.acquire();
+                }
+                if (!CLIENT_CAPACITY.hasCapacity(targetConnectionId, context.getInvokedFunctionArn())) {
+                    // Client would reject the request or make it wait, so don't pay the round trip
+                    StdLogger.debug("Client is busy, so forwarding request to the actual handler");
+                    clientAccessSkipped = true;
+                    return true;
+                }
+
+                long envVarsMark = metrics.mark();
+                EnvVarsTracker.Update envVarsUpdate = ENV_VARS_TRACKER.createUpdate(targetConnectionId);
+                metrics.record(InvocationMetrics.Phase.ENV_VARS_SERIALIZATION, envVarsMark);
+                requestBuildMark = metrics.mark();
+                BrokerMessage clientRequest = createClientRequest(context, requestData, envVarsUpdate);
+                metrics.record(InvocationMetrics.Phase.REQUEST_BUILD, requestBuildMark);
+                relay = openResponseStreamRelay(clientRequest, responseStream);
+                BrokerMessage clientResponse =
+                        sendClientRequest(context, clientRequest, targetConnectionId, brokerClient, metrics);
+                if (clientResponse != null && envVarsUpdate.isDelta() && isEnvVarsMismatch(clientResponse.getError())) {
+                    // Client doesn't have the env vars snapshot which the delta is based on,
+                    // so retry with the full env vars
+                    StdLogger.debug("Client rejected env vars delta, so retrying with full env vars");
+                    ENV_VARS_TRACKER.reset(targetConnectionId);
+                    envVarsUpdate = ENV_VARS_TRACKER.createUpdate(targetConnectionId);
+                    clientRequest = createClientRequest(context, requestData, envVarsUpdate);
+                    RESPONSE_STREAM_RELAYS.close(relay);
+                    relay = openResponseStreamRelay(clientRequest, responseStream);
+                    clientResponse =
+                            sendClientRequest(context, clientRequest, targetConnectionId, brokerClient, metrics);
+                }
+                if (clientResponse == null) {
+                    // No response neither from client nor from broker.
+                    // So access is counted as failed.
+                    StdLogger.debug(String.format("Couldn't get response to client request"));
+                    if (relay != null && relay.isStarted()) {
+                        throwError = true;
+                        throw new IOException("Lost client response after it has started to be streamed");
+                    }
+                    return true;
+                }
+                // Got response over the connection, so it can be reused
+                brokerClientHealthy = true;
+                ENV_VARS_TRACKER.onAck(
+                        envVarsUpdate,
+                        clientResponse.getDataAttribute(EnvVarsTracker.ENV_VARS_HASH_ATTRIBUTE_NAME));
+                Error error = clientResponse.getError();
+                if (error != null) {
+                    if (BrokerConstants.BROKER_CONNECTION_TYPE.equals(clientResponse.getSourceConnectionType())) {
+                        // Response is coming from broker, not client.
+                        // So access is counted as failed.
+                        if (CLIENT_POOL != null && targetConnectionId != null) {
+                            // Targeted client is not available anymore
+                            CLIENT_POOL.markDisconnected(targetConnectionId);
+                        } else {
+                            CLIENT_PRESENCE.markAbsent();
+                        }
+                    } else {
+                        clientAccessSucceeded = true;
+                        CLIENT_PRESENCE.markPresent();
+                        if (CLIENT_POOL != null) {
+                            CLIENT_POOL.markConnected(clientResponse.getSourceConnectionId());
+                        }
+                    }
+                    if (error.isInternal()) {
+                        StdLogger.debug(String.format("Internal client request error: %s", error.getMessage()));
+                        if (relay != null && relay.isStarted()) {
+                            // Response has already been partially written, so it is too late to fall back
+                            throwError = true;
+                            throw new IOException("Internal client request error: " + error.getMessage());
+                        }
+                        return true;
+                    } else {
+                        StdLogger.debug(String.format("Client request error: %s", error.getMessage()));
+                        Throwable clientRequestError = createClientRequestError(error);
+                        throwError = true;
+                        ExceptionUtils.sneakyThrow(clientRequestError);
+                        return false;
+                    }
+                }
+
+                clientAccessSucceeded = true;
+                CLIENT_PRESENCE.markPresent();
+                if (CLIENT_POOL != null) {
+                    CLIENT_POOL.markConnected(clientResponse.getSourceConnectionId());
+                }
+
+                Number partCount = clientResponse.getDataAttribute(ResponseStreamRelays.PART_COUNT_ATTRIBUTE_NAME);
+                if (relay != null && partCount != null) {
+                    // Response has been streamed in parts, so wait until the remaining parts are relayed
+                    long responseWaitMark = metrics.mark();
+                    boolean relayed =
+                            relay.await(
+                                    partCount.intValue(),
+                                    Math.max(context.getRemainingTimeInMillis() - BROKER_REQUEST_WAIT_MARGIN, 0));
+                    metrics.record(InvocationMetrics.Phase.RESPONSE_WAIT, responseWaitMark);
+                    if (!relayed) {
+                        throwError = true;
+                        throw new IOException(String.format(
+                                "Couldn't receive all the %d parts of the streamed client response",
+                                partCount.intValue()));
+                    }
+                    StdLogger.debug(String.format(
+                            "Relayed streamed response from client in %d parts", partCount.intValue()));
+                    return false;
+                }
+
+                long responseDecodeMark = metrics.mark();
+                String responseData = clientResponse.getDataAttribute("response");
+                if (StdLogger.DEBUG_ENABLED) {
+                    StdLogger.debug(String.format(
+                            "Received response from client: %s", responseData));
+                }
+
+                responseStream.write(responseData.getBytes(StandardCharsets.UTF_8));
+                metrics.record(InvocationMetrics.Phase.RESPONSE_DECODE, responseDecodeMark);
+
+                return false;
+            } catch (Throwable t) {
+                // Unexpected error.
+                // So access is counted as failed unless the client has responded.
+                if (relay != null && relay.isStarted()) {
+                    // Response has already been partially written, so it is too late to fall back
+                    throwError = true;
+                }
+                if (throwError) {
+                    ExceptionUtils.sneakyThrow(t);
+                }
+                StdLogger.error("Client access failed", t);
+            } finally {
+                RESPONSE_STREAM_RELAYS.close(relay);
+                if (clientAccessSkipped) {
+                    CLIENT_CIRCUIT_BREAKER.onSkip();
+                } else {
+                    CLIENT_CIRCUIT_BREAKER.onAccess(
+                            clientAccessSucceeded, System.currentTimeMillis() - clientAccessStartTime);
+                }
+                if (CLIENT_POOL != null) {
+                    CLIENT_POOL.release(targetConnectionId);
+                }
+                if (brokerClient != null) {
+                    if (brokerClientHealthy) {
+                        BROKER_CLIENT_HOLDER.release(brokerClient);
+                    } else {
+                        BROKER_CLIENT_HOLDER.invalidate(brokerClient);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            StdLogger.debug("Client failed to handle request", t);
+            if (throwError) {
+                StdLogger.debug(String.format(
+                        "Throwing client error (type=%s, message=%s)", t.getClass().getName(), t.getMessage()),
+                        t);
+                ExceptionUtils.sneakyThrow(t);
+            }
+        }
+        return true;
+    }
+
+    private static ResponseStreamRelays.Relay openResponseStreamRelay(BrokerMessage clientRequest,
+                                                                      OutputStream responseStream) {
+        if (!RESPONSE_STREAMING_ENABLE) {
+            return null;
+        }
+        // Client which doesn't support streaming ignores this and sends the response as a whole
+        clientRequest.withDataAttribute(ResponseStreamRelays.RESPONSE_STREAMING_ATTRIBUTE_NAME, true);
+        return RESPONSE_STREAM_RELAYS.open(clientRequest.getId(), responseStream);
+    }
+
+    private BrokerMessage sendClientRequest(Context context, BrokerMessage clientRequest,
+                                            String targetConnectionId,
+                                            BrokerClient brokerClient,
+                                            InvocationMetrics metrics) throws Exception {
+        long timeout = Math.max(context.getRemainingTimeInMillis() - BROKER_REQUEST_WAIT_MARGIN, 0);
+        // Deadline is sent as absolute time in the clock of the client,
+        // so the time spent in transit and in queue is not given back to the local handler.
+        // It is the same as the time to wait for the response,
+        // so the local handler is stopped before its response would be given up.
+        long sentAt = System.currentTimeMillis();
+        clientRequest.withDataAttribute(
+                AWS_LAMBDA_DEADLINE_ATTRIBUTE_NAME,
+                sentAt + timeout + CLOCK_OFFSET_TRACKER.getOffset(targetConnectionId));
+        CLIENT_REQUESTS_IN_FLIGHT.incrementAndGet();
+        try {
+            long sendMark = metrics.mark();
+            CompletableFuture<BrokerMessage> responseFuture =
+                    brokerClient.sendAndGetResponseFuture(
+                            clientRequest.
+                                    withConnectionName(brokerClient.getFullConnectionName()).
+                                    withTargetConnectionId(targetConnectionId),
+                            timeout, TimeUnit.MILLISECONDS);
+            metrics.record(InvocationMetrics.Phase.SEND, sendMark);
+            long responseWaitMark = metrics.mark();
+            try {
+                BrokerMessage clientResponse = responseFuture.get(timeout, TimeUnit.MILLISECONDS);
+                if (clientResponse != null) {
+                    CLOCK_OFFSET_TRACKER.onResponse(
+                            targetConnectionId, sentAt,
+                            clientResponse.getDataAttribute(ClockOffsetTracker.RECEIVED_AT_ATTRIBUTE_NAME),
+                            clientResponse.getDataAttribute(ClockOffsetTracker.RESPONDED_AT_ATTRIBUTE_NAME),
+                            System.currentTimeMillis());
+                }
+                return clientResponse;
+            } catch (Throwable t) {
+                if (t instanceof ExecutionException) {
+                    t = t.getCause();
+                }
+                StdLogger.error("Unable to get response", t);
+                return null;
+            } finally {
+                metrics.record(InvocationMetrics.Phase.RESPONSE_WAIT, responseWaitMark);
+            }
+        } finally {
+            CLIENT_REQUESTS_IN_FLIGHT.decrementAndGet();
+        }
+    }
+
+    private static boolean isEnvVarsMismatch(Error error) {
+        return error != null
+                && error.isInternal()
+                && error.getCode() != null
+                && error.getCode() == ENV_VARS_MISMATCH_ERROR_CODE;
+    }
+
+    private Throwable createClientRequestError(Error error) {
+        String errorType = error.getType();
+        String errorMessage = error.getMessage();
+        Throwable clientError = null;
+        if (StringUtils.hasValue(errorType)) {
+            clientError = CLIENT_ERROR_FACTORIES.create(errorType, errorMessage);
+        }
+
+        if (clientError == null) {
+            StdLogger.debug(String.format(
+                    "Unable to create client request error (%s). So wrapping with 'RuntimeException'", errorType));
+            clientError = new RuntimeException(errorMessage);
+        }
+
+        StackFrame[] stackFrames = error.getStackFrames();
+        String[] stackTrace = error.getStackTrace();
+        if (stackFrames != null) {
+            StackTraceElement[] stackTraceElements = new StackTraceElement[stackFrames.length];
+            for (int i = 0; i < stackFrames.length; i++) {
+                stackTraceElements[i] = stackFrames[i].toStackTraceElement();
+            }
+            clientError.setStackTrace(stackTraceElements);
+        } else if (stackTrace != null && stackTrace.length > 0) {
+            // Client doesn't send structured stack frames, so parse its stack trace
+            StackTraceElement[] stackTraceElements = buildStackTraceElements(stackTrace);
+            if (stackTraceElements != null) {
+                clientError.setStackTrace(stackTraceElements);
+            }
+        }
+
+        return clientError;
+    }
+
+    private static StackTraceElement[] buildStackTraceElements(String[] stackTrace) {
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < stackTrace.length; i++) {
+                if (i > 0) {
+                    builder.append("\n");
+                }
+                builder.append("\tat ").append(stackTrace[i]);
+            }
+            String stackTraceStr = builder.toString();
+            List<StackTraceElement> stackTraceElementList =
+                    StackTraceParser.parse(stackTraceStr).getStackTraceLines();
+            return stackTraceElementList.toArray(new StackTraceElement[stackTraceElementList.size()]);
+        } catch (Exception e) {
+            StdLogger.debug(String.format("Unable to parse stacktrace: %s", Arrays.toString(stackTrace)));
+            return null;
+        }
+    }
+
+}
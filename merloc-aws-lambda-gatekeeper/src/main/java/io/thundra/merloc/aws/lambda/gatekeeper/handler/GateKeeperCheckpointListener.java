@@ -0,0 +1,69 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.crac.CheckpointListener;
+import io.thundra.merloc.common.utils.IdUtils;
+
+/**
+ * Drops the connection and the client state of the GateKeeper captured by the checkpoint
+ * (for example, AWS Lambda SnapStart) and rebuilds them after restore.
+ *
+ * @author serkan
+ */
+final class GateKeeperCheckpointListener implements CheckpointListener {
+
+    private final BrokerClientHolder brokerClientHolder;
+    private final ClientPresence clientPresence;
+    private final ClientCircuitBreaker clientCircuitBreaker;
+    private final EnvVarsTracker envVarsTracker;
+    private final ClockOffsetTracker clockOffsetTracker;
+    private final ClientCapacity clientCapacity;
+    private final ClientPool clientPool;
+    private final boolean connectAfterRestore;
+
+    /**
+     * @param clientPool          the client pool, <code>null</code> if pooling is not enabled
+     * @param connectAfterRestore <code>true</code> if the broker connection should be started after restore
+     */
+    GateKeeperCheckpointListener(BrokerClientHolder brokerClientHolder,
+                                 ClientPresence clientPresence,
+                                 ClientCircuitBreaker clientCircuitBreaker,
+                                 EnvVarsTracker envVarsTracker,
+                                 ClockOffsetTracker clockOffsetTracker,
+                                 ClientCapacity clientCapacity,
+                                 ClientPool clientPool,
+                                 boolean connectAfterRestore) {
+        this.brokerClientHolder = brokerClientHolder;
+        this.clientPresence = clientPresence;
+        this.clientCircuitBreaker = clientCircuitBreaker;
+        this.envVarsTracker = envVarsTracker;
+        this.clockOffsetTracker = clockOffsetTracker;
+        this.clientCapacity = clientCapacity;
+        this.clientPool = clientPool;
+        this.connectAfterRestore = connectAfterRestore;
+    }
+
+    @Override
+    public void beforeCheckpoint() {
+        brokerClientHolder.close();
+        clientPresence.reset();
+        clientCircuitBreaker.reset();
+        envVarsTracker.reset();
+        clockOffsetTracker.reset();
+        clientCapacity.reset();
+        if (clientPool != null) {
+            clientPool.clear();
+        }
+    }
+
+    @Override
+    public void afterRestore() {
+        // Otherwise, all the environments restored from the same snapshot would generate the same ids.
+        // Reseeded before connecting, as the connection generates ids as well.
+        IdUtils.reseed();
+        if (connectAfterRestore) {
+            // Restore runs with full CPU like the init phase, so start the handshake here
+            brokerClientHolder.connect();
+        }
+    }
+
+}
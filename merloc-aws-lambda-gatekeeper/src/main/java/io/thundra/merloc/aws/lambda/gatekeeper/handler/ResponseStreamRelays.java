@@ -0,0 +1,142 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.logger.StdLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relays the response parts streamed by the client (local AWS Lambda runtime)
+ * to the response streams of the requests as they arrive.
+ *
+ * Parts are written in their order, so the ones arriving early are held until their preceding parts arrive.
+ * Once a part has been written, the request cannot fall back to the actual handler anymore.
+ *
+ * @author serkan
+ */
+final class ResponseStreamRelays {
+
+    static final String RESPONSE_STREAMING_ATTRIBUTE_NAME = "responseStreaming";
+    static final String PART_COUNT_ATTRIBUTE_NAME = "partCount";
+    static final String PART_OF_ATTRIBUTE_NAME = "partOf";
+    static final String PART_NO_ATTRIBUTE_NAME = "partNo";
+    static final String PART_ATTRIBUTE_NAME = "part";
+
+    private final Map<String, Relay> relayMap = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the relay for the response parts of the given request.
+     * The opened relay must be closed by {@link #close(Relay)} when the request completes.
+     *
+     * @param requestMessageId the id of the request message
+     * @param responseStream   the stream to relay the response parts to
+     * @return the opened {@link Relay}
+     */
+    Relay open(String requestMessageId, OutputStream responseStream) {
+        Relay relay = new Relay(requestMessageId, responseStream);
+        relayMap.put(requestMessageId, relay);
+        return relay;
+    }
+
+    void close(Relay relay) {
+        if (relay != null) {
+            relayMap.remove(relay.requestMessageId, relay);
+        }
+    }
+
+    /**
+     * Handles the response part message received from the client.
+     *
+     * @param message the response part message
+     */
+    void onPart(BrokerMessage message) {
+        String partOf = message.getDataAttribute(PART_OF_ATTRIBUTE_NAME);
+        Number partNo = message.getDataAttribute(PART_NO_ATTRIBUTE_NAME);
+        String part = message.getDataAttribute(PART_ATTRIBUTE_NAME);
+        if (partOf == null || partNo == null || part == null) {
+            StdLogger.debug(String.format("Ignored invalid response part: %s", message));
+            return;
+        }
+        Relay relay = relayMap.get(partOf);
+        if (relay == null) {
+            StdLogger.debug(String.format(
+                    "Ignored response part %d of request %s as the request has already completed",
+                    partNo.intValue(), partOf));
+            return;
+        }
+        relay.write(partNo.intValue(), Base64.getDecoder().decode(part));
+    }
+
+    static final class Relay {
+
+        private final String requestMessageId;
+        private final OutputStream responseStream;
+        private final Map<Integer, byte[]> pendingPartMap = new HashMap<>();
+        private int nextPartNo;
+        private IOException error;
+
+        private Relay(String requestMessageId, OutputStream responseStream) {
+            this.requestMessageId = requestMessageId;
+            this.responseStream = responseStream;
+        }
+
+        private synchronized void write(int partNo, byte[] part) {
+            if (partNo < nextPartNo) {
+                // Duplicate part
+                return;
+            }
+            pendingPartMap.put(partNo, part);
+            byte[] nextPart;
+            while (error == null && (nextPart = pendingPartMap.remove(nextPartNo)) != null) {
+                try {
+                    responseStream.write(nextPart);
+                    // Flush each part, so it is passed to the Lambda response stream without waiting for the rest
+                    responseStream.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+                nextPartNo++;
+            }
+            notifyAll();
+        }
+
+        /**
+         * @return <code>true</code> if any part has been written to the response stream,
+         *         <code>false</code> otherwise
+         */
+        synchronized boolean isStarted() {
+            return nextPartNo > 0;
+        }
+
+        /**
+         * Waits until all the parts of the response have been written to the response stream.
+         *
+         * @param partCount the number of the parts reported by the client
+         * @param timeout   the maximum time to wait in milliseconds
+         * @return <code>true</code> if all the parts have been written, <code>false</code> if timed-out
+         * @throws IOException if a part couldn't be written to the response stream
+         * @throws InterruptedException if the current thread is interrupted while waiting
+         */
+        synchronized boolean await(int partCount, long timeout) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (error == null && nextPartNo < partCount) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return true;
+        }
+
+    }
+
+}
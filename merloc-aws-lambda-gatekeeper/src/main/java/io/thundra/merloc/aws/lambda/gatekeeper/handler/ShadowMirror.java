@@ -0,0 +1,116 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.ExecutorUtils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends copies of the requests to the client (local AWS Lambda runtime) in background
+ * without waiting for their responses.
+ *
+ * The extra cost is capped by
+ * <ul>
+ *     <li>the sampling rate (percentage of the requests to be mirrored)</li>
+ *     <li>the buffer size (total size of the requests waiting to be sent)</li>
+ *     <li>the byte budget (total size of the requests mirrored per minute)</li>
+ * </ul>
+ * Requests exceeding any of them are not mirrored.
+ *
+ * @author serkan
+ */
+final class ShadowMirror {
+
+    private static final long BUDGET_WINDOW = TimeUnit.MINUTES.toMillis(1);
+
+    private final int samplingRate;
+    private final long bufferSize;
+    private final long budget;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final ExecutorService executorService =
+            ExecutorUtils.newFixedExecutorService(1, "merloc-gatekeeper-shadow");
+    private long budgetWindowStartTime;
+    private long budgetWindowBytes;
+
+    /**
+     * @param samplingRate the percentage of the requests to be mirrored
+     * @param bufferSize   the maximum total size in bytes of the requests waiting to be sent
+     * @param budget       the maximum total size in bytes of the requests mirrored per minute,
+     *                     unlimited if it is not positive
+     */
+    ShadowMirror(int samplingRate, long bufferSize, long budget) {
+        this.samplingRate = samplingRate;
+        this.bufferSize = bufferSize;
+        this.budget = budget;
+    }
+
+    /**
+     * Reserves space for the request if it is sampled and fits into the buffer and the budget.
+     * If reserved, it must be either submitted by {@link #submit(int, Runnable)}
+     * or released by {@link #release(int)}.
+     *
+     * @param size the size of the request in bytes
+     * @return <code>true</code> if the request should be mirrored, <code>false</code> otherwise
+     */
+    boolean tryReserve(int size) {
+        if (samplingRate < 100 && ThreadLocalRandom.current().nextInt(100) >= samplingRate) {
+            StdLogger.debug("Request is not sampled for mirroring");
+            return false;
+        }
+        if (pendingBytes.addAndGet(size) > bufferSize) {
+            pendingBytes.addAndGet(-size);
+            StdLogger.debug(String.format(
+                    "Request (%d bytes) doesn't fit into the mirroring buffer (%d bytes)", size, bufferSize));
+            return false;
+        }
+        if (!consumeBudget(size)) {
+            pendingBytes.addAndGet(-size);
+            StdLogger.debug(String.format(
+                    "Request (%d bytes) exceeds the mirroring budget (%d bytes per minute)", size, budget));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Submits the task sending the reserved request. Reserved space is released after the task completes.
+     *
+     * @param size the size of the request in bytes
+     * @param task the task sending the request
+     */
+    void submit(int size, Runnable task) {
+        executorService.submit(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                StdLogger.debug("Unable to mirror request to client", t);
+            } finally {
+                release(size);
+            }
+        });
+    }
+
+    void release(int size) {
+        pendingBytes.addAndGet(-size);
+    }
+
+    private synchronized boolean consumeBudget(int size) {
+        if (budget <= 0) {
+            return true;
+        }
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - budgetWindowStartTime >= BUDGET_WINDOW) {
+            budgetWindowStartTime = currentTime;
+            budgetWindowBytes = 0;
+        }
+        if (budgetWindowBytes + size > budget) {
+            return false;
+        }
+        budgetWindowBytes += size;
+        return true;
+    }
+
+}
@@ -0,0 +1,136 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.metrics;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes invocation metrics to the stdout as CloudWatch Embedded Metric Format (EMF) log lines.
+ *
+ * All the static parts of the log line are encoded once and the line is built into a pre-allocated buffer,
+ * so writing a line doesn't allocate.
+ *
+ * @author serkan
+ */
+final class EmfMetricsWriter {
+
+    private static final int MAX_REQUEST_ID_LENGTH = 128;
+    private static final int MAX_NUMBER_LENGTH = 20;
+
+    private final PrintStream out;
+    private final byte[] timestampPrefix;
+    private final byte[] metricsPrefix;
+    private final byte[][] metricDefinitions;
+    private final byte[] metricsSuffix;
+    private final byte[] requestIdPrefix;
+    private final byte[][] metricValuePrefixes;
+    private final byte[] buffer;
+    private int position;
+
+    EmfMetricsWriter(PrintStream out, String namespace, String functionName,
+                     String[] metricNames, String[] metricUnits) {
+        this.out = out;
+        this.timestampPrefix = encode("{\"_aws\":{\"Timestamp\":");
+        this.metricsPrefix = encode(
+                ",\"CloudWatchMetrics\":[{\"Namespace\":\"" + escape(namespace) + "\"," +
+                "\"Dimensions\":[[\"FunctionName\"]],\"Metrics\":[");
+        this.metricDefinitions = new byte[metricNames.length][];
+        this.metricValuePrefixes = new byte[metricNames.length][];
+        int capacity = timestampPrefix.length + MAX_NUMBER_LENGTH + metricsPrefix.length;
+        for (int i = 0; i < metricNames.length; i++) {
+            metricDefinitions[i] = encode(
+                    "{\"Name\":\"" + escape(metricNames[i]) + "\",\"Unit\":\"" + metricUnits[i] + "\"}");
+            metricValuePrefixes[i] = encode(",\"" + escape(metricNames[i]) + "\":");
+            capacity += metricDefinitions[i].length + 1 + metricValuePrefixes[i].length + MAX_NUMBER_LENGTH;
+        }
+        this.metricsSuffix = encode("]}]},\"FunctionName\":\"" + escape(functionName) + "\"");
+        this.requestIdPrefix = encode(",\"RequestId\":\"");
+        capacity += metricsSuffix.length + requestIdPrefix.length + MAX_REQUEST_ID_LENGTH + 3;
+        this.buffer = new byte[capacity];
+    }
+
+    private static byte[] encode(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String str) {
+        return str == null ? "" : str.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Writes the given metric values as a single log line.
+     *
+     * @param timestamp the timestamp of the metrics in milliseconds
+     * @param requestId the request id of the invocation
+     * @param values    the metric values in the order of the metric names,
+     *                  negative values are skipped
+     */
+    synchronized void write(long timestamp, String requestId, long[] values) {
+        position = 0;
+        append(timestampPrefix);
+        append(timestamp);
+        append(metricsPrefix);
+        boolean first = true;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] >= 0) {
+                if (!first) {
+                    append((byte) ',');
+                }
+                append(metricDefinitions[i]);
+                first = false;
+            }
+        }
+        append(metricsSuffix);
+        if (requestId != null) {
+            append(requestIdPrefix);
+            int length = Math.min(requestId.length(), MAX_REQUEST_ID_LENGTH);
+            for (int i = 0; i < length; i++) {
+                char c = requestId.charAt(i);
+                // Request ids are ASCII, so anything else is not expected
+                append(c < 128 && c != '"' && c != '\\' ? (byte) c : (byte) '?');
+            }
+            append((byte) '"');
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] >= 0) {
+                append(metricValuePrefixes[i]);
+                append(values[i]);
+            }
+        }
+        append((byte) '}');
+        append((byte) '\n');
+        out.write(buffer, 0, position);
+        out.flush();
+    }
+
+    private void append(byte b) {
+        buffer[position++] = b;
+    }
+
+    private void append(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void append(long value) {
+        if (value == 0) {
+            append((byte) '0');
+            return;
+        }
+        if (value < 0) {
+            append((byte) '-');
+            value = -value;
+        }
+        int start = position;
+        while (value > 0) {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        // Digits are written in reverse order
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+}
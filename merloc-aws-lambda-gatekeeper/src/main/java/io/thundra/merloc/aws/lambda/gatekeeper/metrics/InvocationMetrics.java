@@ -0,0 +1,152 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.metrics;
+
+import io.thundra.merloc.aws.lambda.core.utils.LambdaUtils;
+import io.thundra.merloc.aws.lambda.gatekeeper.config.ConfigNames;
+import io.thundra.merloc.common.config.ConfigManager;
+
+import java.util.Arrays;
+
+/**
+ * Collects the durations of the GateKeeper phases of an invocation
+ * and emits them as a single CloudWatch Embedded Metric Format (EMF) log line when the invocation finishes.
+ *
+ * When metrics are disabled, {@link #start()} returns a shared instance which records nothing,
+ * so instrumentation costs nothing more than a no-op call.
+ * Phases of the same invocation might be recorded concurrently (for example, by the parallel sub-batches),
+ * so recording is synchronized on the invocation.
+ *
+ * @author serkan
+ */
+public final class InvocationMetrics {
+
+    public enum Phase {
+
+        FALLBACK_DECISION("FallbackDecision"),
+        CONNECT_WAIT("ConnectWait"),
+        REQUEST_BUILD("RequestBuild"),
+        ENV_VARS_SERIALIZATION("EnvVarsSerialization"),
+        SEND("Send"),
+        RESPONSE_WAIT("ResponseWait"),
+        RESPONSE_DECODE("ResponseDecode");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+    }
+
+    private static final String NAMESPACE = "MerLoc/GateKeeper";
+    private static final String AWS_LAMBDA_FUNCTION_NAME_ENV_VAR_NAME = "AWS_LAMBDA_FUNCTION_NAME";
+    private static final Phase[] PHASES = Phase.values();
+    private static final int FALLBACK_METRIC_INDEX = PHASES.length;
+
+    private static final boolean ENABLE =
+            ConfigManager.getBooleanConfig(ConfigNames.METRICS_ENABLE_CONFIG_NAME, false);
+    private static final EmfMetricsWriter WRITER =
+            ENABLE ? createWriter(LambdaUtils.getEnvVar(AWS_LAMBDA_FUNCTION_NAME_ENV_VAR_NAME)) : null;
+    private static final InvocationMetrics DISABLED = new InvocationMetrics(null, null);
+
+    private final EmfMetricsWriter writer;
+    private final long[] values;
+
+    private InvocationMetrics(EmfMetricsWriter writer, long[] values) {
+        this.writer = writer;
+        this.values = values;
+    }
+
+    /**
+     * Visible for testing
+     */
+    static EmfMetricsWriter createWriter(String functionName) {
+        String[] metricNames = new String[PHASES.length + 1];
+        String[] metricUnits = new String[PHASES.length + 1];
+        for (Phase phase : PHASES) {
+            metricNames[phase.ordinal()] = phase.metricName;
+            metricUnits[phase.ordinal()] = "Microseconds";
+        }
+        metricNames[FALLBACK_METRIC_INDEX] = "Fallback";
+        metricUnits[FALLBACK_METRIC_INDEX] = "Count";
+        return new EmfMetricsWriter(System.out, NAMESPACE, functionName, metricNames, metricUnits);
+    }
+
+    /**
+     * Starts collecting metrics for a new invocation.
+     *
+     * @return the {@link InvocationMetrics} of the invocation
+     */
+    public static InvocationMetrics start() {
+        if (!ENABLE) {
+            return DISABLED;
+        }
+        return start(WRITER);
+    }
+
+    /**
+     * Visible for testing
+     */
+    static InvocationMetrics start(EmfMetricsWriter writer) {
+        long[] values = new long[PHASES.length + 1];
+        // Phases which are not recorded are not emitted
+        Arrays.fill(values, -1);
+        return new InvocationMetrics(writer, values);
+    }
+
+    /**
+     * @return the start mark of a phase to be passed to {@link #record(Phase, long)}
+     */
+    public long mark() {
+        return values != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of the given phase started at the given mark.
+     * Durations of the same phase are accumulated.
+     *
+     * @param phase the phase
+     * @param mark  the start mark of the phase taken by {@link #mark()}
+     */
+    public void record(Phase phase, long mark) {
+        if (values != null) {
+            long duration = (System.nanoTime() - mark) / 1000;
+            int index = phase.ordinal();
+            synchronized (values) {
+                values[index] = Math.max(values[index], 0) + duration;
+            }
+        }
+    }
+
+    /**
+     * Records the duration of the given phase started at the given mark if it has not been recorded yet.
+     *
+     * @param phase the phase
+     * @param mark  the start mark of the phase taken by {@link #mark()}
+     */
+    public void recordIfAbsent(Phase phase, long mark) {
+        if (values != null) {
+            synchronized (values) {
+                if (values[phase.ordinal()] < 0) {
+                    record(phase, mark);
+                }
+            }
+        }
+    }
+
+    /**
+     * Emits the collected metrics.
+     *
+     * @param requestId the request id of the invocation
+     * @param fallback  <code>true</code> if the request has been forwarded to the actual handler,
+     *                  <code>false</code> if it has been handled by the client
+     */
+    public void finish(String requestId, boolean fallback) {
+        if (values != null) {
+            synchronized (values) {
+                values[FALLBACK_METRIC_INDEX] = fallback ? 1 : 0;
+                writer.write(System.currentTimeMillis(), requestId, values);
+            }
+        }
+    }
+
+}
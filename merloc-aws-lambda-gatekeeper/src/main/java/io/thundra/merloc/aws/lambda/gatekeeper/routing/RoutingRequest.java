@@ -0,0 +1,96 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Request evaluated by the routing rules.
+ * Request is parsed lazily, only when a rule needs to inspect its content.
+ *
+ * @author serkan
+ */
+final class RoutingRequest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private JsonNode root;
+
+    RoutingRequest(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    JsonNode getRoot() {
+        if (root == null) {
+            try {
+                root = OBJECT_MAPPER.readTree(OBJECT_MAPPER.getFactory().createParser(data, offset, length));
+            } catch (Exception e) {
+                // Not a JSON request, so there is nothing to match
+                root = MissingNode.getInstance();
+            }
+            if (root == null) {
+                root = MissingNode.getInstance();
+            }
+        }
+        return root;
+    }
+
+    String getValue(String jsonPointer) {
+        JsonNode node = getRoot().at(jsonPointer);
+        if (node.isMissingNode() || node.isNull() || node.isContainerNode()) {
+            return null;
+        }
+        return node.asText();
+    }
+
+    /**
+     * @return the HTTP method of the API Gateway (REST API or HTTP API) event
+     */
+    String getHttpMethod() {
+        String method = getValue("/httpMethod");
+        if (method == null) {
+            method = getValue("/requestContext/http/method");
+        }
+        return method;
+    }
+
+    /**
+     * @return the path of the API Gateway (REST API or HTTP API) event
+     */
+    String getHttpPath() {
+        String path = getValue("/path");
+        if (path == null) {
+            path = getValue("/rawPath");
+        }
+        return path;
+    }
+
+    /**
+     * @param name the header name (case-insensitive)
+     * @return the header value of the API Gateway (REST API or HTTP API) event
+     */
+    String getHttpHeader(String name) {
+        JsonNode headers = getRoot().path("headers");
+        Iterator<Map.Entry<String, JsonNode>> it = headers.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> e = it.next();
+            if (e.getKey().equalsIgnoreCase(name) && e.getValue().isValueNode() && !e.getValue().isNull()) {
+                return e.getValue().asText();
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,199 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which requests are routed to the client (local AWS Lambda runtime).
+ *
+ * Rules are given as JSON array and a request is routed to the client if any of the rules matches.
+ * A rule matches if all of its conditions match:
+ * <ul>
+ *     <li><code>minSize</code>: the minimum request size in bytes</li>
+ *     <li><code>maxSize</code>: the maximum request size in bytes</li>
+ *     <li><code>method</code>: the regex to match the HTTP method of the API Gateway event</li>
+ *     <li><code>path</code>: the regex to match the path of the API Gateway event</li>
+ *     <li><code>headers</code>: the header names (case-insensitive) and the regexes to match their values
+ *         in the API Gateway event</li>
+ *     <li><code>jsonPointers</code>: the JSON pointers and the regexes to match the values at them in the request</li>
+ *     <li><code>samplingRate</code>: the percentage of the otherwise matching requests to be routed</li>
+ * </ul>
+ * Regexes must match the whole value. For example,
+ * <pre>
+ * [{"method": "POST", "path": "/users/.*", "headers": {"x-debug": "true"}, "samplingRate": 10}]
+ * </pre>
+ *
+ * Rules are compiled once, so a request is only parsed if there is a condition inspecting its content.
+ *
+ * @author serkan
+ */
+public final class RoutingRules {
+
+    private final List<Predicate<RoutingRequest>> rules;
+
+    private RoutingRules(List<Predicate<RoutingRequest>> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Compiles the given rules.
+     *
+     * @param rulesJson the rules as JSON array
+     * @return the compiled {@link RoutingRules}
+     * @throws IllegalArgumentException if the rules are not valid
+     */
+    public static RoutingRules compile(String rulesJson) {
+        JsonNode rulesNode;
+        try {
+            rulesNode = new ObjectMapper().readTree(rulesJson);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Routing rules must be a valid JSON: " + e.getMessage(), e);
+        }
+        if (rulesNode == null || !rulesNode.isArray()) {
+            throw new IllegalArgumentException("Routing rules must be a JSON array");
+        }
+        List<Predicate<RoutingRequest>> rules = new ArrayList<>();
+        for (JsonNode ruleNode : rulesNode) {
+            rules.add(compileRule(ruleNode));
+        }
+        return new RoutingRules(rules);
+    }
+
+    private static Predicate<RoutingRequest> compileRule(JsonNode ruleNode) {
+        if (!ruleNode.isObject()) {
+            throw new IllegalArgumentException("Routing rule must be a JSON object: " + ruleNode);
+        }
+        // Cheap conditions are evaluated first, so the request is not parsed if they don't match
+        List<Predicate<RoutingRequest>> sizeConditions = new ArrayList<>();
+        List<Predicate<RoutingRequest>> contentConditions = new ArrayList<>();
+        Predicate<RoutingRequest> samplingCondition = null;
+        Iterator<Map.Entry<String, JsonNode>> it = ruleNode.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> e = it.next();
+            String name = e.getKey();
+            JsonNode value = e.getValue();
+            switch (name) {
+                case "minSize": {
+                    long minSize = getLong(name, value);
+                    sizeConditions.add(request -> request.getLength() >= minSize);
+                    break;
+                }
+                case "maxSize": {
+                    long maxSize = getLong(name, value);
+                    sizeConditions.add(request -> request.getLength() <= maxSize);
+                    break;
+                }
+                case "method": {
+                    Pattern pattern = compilePattern(name, value, Pattern.CASE_INSENSITIVE);
+                    contentConditions.add(request -> matches(pattern, request.getHttpMethod()));
+                    break;
+                }
+                case "path": {
+                    Pattern pattern = compilePattern(name, value, 0);
+                    contentConditions.add(request -> matches(pattern, request.getHttpPath()));
+                    break;
+                }
+                case "headers": {
+                    forEachPattern(name, value, (headerName, pattern) ->
+                            contentConditions.add(request -> matches(pattern, request.getHttpHeader(headerName))));
+                    break;
+                }
+                case "jsonPointers": {
+                    forEachPattern(name, value, (jsonPointer, pattern) -> {
+                        if (!jsonPointer.isEmpty() && !jsonPointer.startsWith("/")) {
+                            throw new IllegalArgumentException("Invalid JSON pointer in routing rule: " + jsonPointer);
+                        }
+                        contentConditions.add(request -> matches(pattern, request.getValue(jsonPointer)));
+                    });
+                    break;
+                }
+                case "samplingRate": {
+                    long samplingRate = getLong(name, value);
+                    samplingCondition = request -> ThreadLocalRandom.current().nextInt(100) < samplingRate;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown routing rule condition: " + name);
+            }
+        }
+        List<Predicate<RoutingRequest>> conditions = new ArrayList<>(sizeConditions);
+        conditions.addAll(contentConditions);
+        if (samplingCondition != null) {
+            conditions.add(samplingCondition);
+        }
+        return request -> {
+            for (Predicate<RoutingRequest> condition : conditions) {
+                if (!condition.test(request)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static long getLong(String name, JsonNode value) {
+        if (!value.canConvertToLong()) {
+            throw new IllegalArgumentException(
+                    String.format("Routing rule condition %s must be a number: %s", name, value));
+        }
+        return value.asLong();
+    }
+
+    private static Pattern compilePattern(String name, JsonNode value, int flags) {
+        if (!value.isTextual()) {
+            throw new IllegalArgumentException(
+                    String.format("Routing rule condition %s must be a regex string: %s", name, value));
+        }
+        return Pattern.compile(value.asText(), flags);
+    }
+
+    private static void forEachPattern(String name, JsonNode value, PatternConsumer consumer) {
+        if (!value.isObject()) {
+            throw new IllegalArgumentException(
+                    String.format("Routing rule condition %s must be a JSON object: %s", name, value));
+        }
+        Iterator<Map.Entry<String, JsonNode>> it = value.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> e = it.next();
+            consumer.accept(e.getKey(), compilePattern(name + "." + e.getKey(), e.getValue(), 0));
+        }
+    }
+
+    private static boolean matches(Pattern pattern, String value) {
+        return value != null && pattern.matcher(value).matches();
+    }
+
+    /**
+     * Checks whether the given request should be routed to the client.
+     *
+     * @param data   the buffer containing the request
+     * @param offset the offset of the request in the buffer
+     * @param length the length of the request in bytes
+     * @return <code>true</code> if any of the rules matches, <code>false</code> otherwise
+     */
+    public boolean matches(byte[] data, int offset, int length) {
+        RoutingRequest request = new RoutingRequest(data, offset, length);
+        for (Predicate<RoutingRequest> rule : rules) {
+            if (rule.test(request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface PatternConsumer {
+
+        void accept(String key, Pattern pattern);
+
+    }
+
+}
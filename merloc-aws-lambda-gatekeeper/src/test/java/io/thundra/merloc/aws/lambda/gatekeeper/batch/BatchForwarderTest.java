@@ -0,0 +1,173 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author serkan
+ */
+public class BatchForwarderTest {
+
+    private static final int SUB_BATCH_COUNT = 4;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BatchForwarder batchForwarder = new BatchForwarder(executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<SubBatch> createSubBatches() {
+        List<SubBatch> subBatches = new ArrayList<>();
+        for (int i = 0; i < SUB_BATCH_COUNT; i++) {
+            subBatches.add(
+                    new SubBatch(
+                            ("sub-batch-" + i).getBytes(StandardCharsets.UTF_8),
+                            Arrays.asList(i + "-a", i + "-b")));
+        }
+        return subBatches;
+    }
+
+    private static byte[] createResponse(String... failedItemIdentifiers) {
+        StringBuilder sb = new StringBuilder("{\"batchItemFailures\":[");
+        for (int i = 0; i < failedItemIdentifiers.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"itemIdentifier\":\"").append(failedItemIdentifiers[i]).append("\"}");
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int getIndex(SubBatch subBatch) {
+        String request = new String(subBatch.getRequest(), StandardCharsets.UTF_8);
+        return Integer.parseInt(request.substring(request.lastIndexOf('-') + 1));
+    }
+
+    private Set<String> getFailedItemIdentifiers(byte[] response) throws IOException {
+        Set<String> itemIdentifiers = new HashSet<>();
+        for (JsonNode failure : objectMapper.readTree(response).get("batchItemFailures")) {
+            itemIdentifiers.add(failure.get("itemIdentifier").asText());
+        }
+        return itemIdentifiers;
+    }
+
+    @Test
+    public void subBatchesShouldBeForwardedConcurrentlyAndTheirFailuresShouldBeMerged() throws Throwable {
+        CountDownLatch allStartedLatch = new CountDownLatch(SUB_BATCH_COUNT);
+        List<Integer> fallbackSubBatches = new ArrayList<>();
+
+        byte[] response =
+                batchForwarder.forward(
+                        createSubBatches(), SUB_BATCH_COUNT,
+                        subBatch -> {
+                            allStartedLatch.countDown();
+                            // Only completes if all the sub-batches are in progress at the same time
+                            if (!allStartedLatch.await(5, TimeUnit.SECONDS)) {
+                                throw new IllegalStateException("Sub-batches have not been forwarded concurrently");
+                            }
+                            switch (getIndex(subBatch)) {
+                                case 0:
+                                    return createResponse("0-b");
+                                case 1:
+                                    return createResponse();
+                                case 2:
+                                    // Client couldn't handle it
+                                    return null;
+                                default:
+                                    throw new IOException("Client request has failed");
+                            }
+                        },
+                        subBatch -> {
+                            fallbackSubBatches.add(getIndex(subBatch));
+                            return createResponse("2-a");
+                        });
+
+        assertEquals(Arrays.asList(2), fallbackSubBatches);
+        assertEquals(
+                new HashSet<>(Arrays.asList("0-b", "2-a", "3-a", "3-b")),
+                getFailedItemIdentifiers(response));
+    }
+
+    @Test
+    public void subBatchesShouldNotBeForwardedMoreThanParallelismConcurrently() throws Throwable {
+        AtomicInteger inProgress = new AtomicInteger();
+        AtomicInteger maxInProgress = new AtomicInteger();
+
+        byte[] response =
+                batchForwarder.forward(
+                        createSubBatches(), 1,
+                        subBatch -> {
+                            maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+                            try {
+                                Thread.sleep(20);
+                            } finally {
+                                inProgress.decrementAndGet();
+                            }
+                            return createResponse(getIndex(subBatch) + "-a");
+                        },
+                        subBatch -> {
+                            throw new IllegalStateException("Fallback should not be used");
+                        });
+
+        assertEquals(1, maxInProgress.get());
+        assertEquals(
+                new HashSet<>(Arrays.asList("0-a", "1-a", "2-a", "3-a")),
+                getFailedItemIdentifiers(response));
+    }
+
+    @Test
+    public void batchShouldBeHandedOverIfClientCouldNotHandleAnySubBatch() throws Throwable {
+        byte[] response =
+                batchForwarder.forward(
+                        createSubBatches(), SUB_BATCH_COUNT,
+                        subBatch -> null,
+                        subBatch -> {
+                            throw new IllegalStateException("Fallback should not be used");
+                        });
+
+        assertNull(response);
+    }
+
+    @Test
+    public void batchShouldFailIfFailuresAreNotReportedByFunction() throws Throwable {
+        IOException error = new IOException("Client request has failed");
+        try {
+            batchForwarder.forward(
+                    createSubBatches(), SUB_BATCH_COUNT,
+                    subBatch -> {
+                        if (getIndex(subBatch) == 1) {
+                            throw error;
+                        }
+                        return "null".getBytes(StandardCharsets.UTF_8);
+                    },
+                    subBatch -> null);
+            fail("Batch should have failed");
+        } catch (IOException e) {
+            assertSame(error, e);
+        }
+    }
+
+}
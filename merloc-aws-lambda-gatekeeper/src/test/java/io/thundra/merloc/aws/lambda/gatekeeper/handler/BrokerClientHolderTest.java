@@ -0,0 +1,152 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.broker.client.BrokerClient;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author serkan
+ */
+public class BrokerClientHolderTest {
+
+    private final List<BrokerClient> createdBrokerClients = new ArrayList<>();
+
+    private BrokerClient createBrokerClient() {
+        BrokerClient brokerClient = mock(BrokerClient.class);
+        when(brokerClient.isOpen()).thenReturn(true);
+        when(brokerClient.waitUntilConnected(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        createdBrokerClients.add(brokerClient);
+        return brokerClient;
+    }
+
+    @Test
+    public void nonPersistentClientShouldBeClosedWhenItsLastUserReleasesIt() {
+        BrokerClientHolder holder = new BrokerClientHolder(this::createBrokerClient, false);
+
+        BrokerClient brokerClient1 = holder.acquire(1000);
+        BrokerClient brokerClient2 = holder.acquire(1000);
+        assertSame(brokerClient1, brokerClient2);
+
+        holder.release(brokerClient1);
+        verify(brokerClient1, never()).close();
+
+        holder.release(brokerClient2);
+        verify(brokerClient1).close();
+        verify(brokerClient1).destroy();
+
+        // Next invocation gets a new connection
+        assertNotSame(brokerClient1, holder.acquire(1000));
+    }
+
+    @Test
+    public void persistentClientShouldBeKeptWhenItsLastUserReleasesIt() {
+        BrokerClientHolder holder = new BrokerClientHolder(this::createBrokerClient, true);
+
+        BrokerClient brokerClient = holder.acquire(1000);
+        holder.release(brokerClient);
+
+        verify(brokerClient, never()).close();
+        assertSame(brokerClient, holder.acquire(1000));
+        assertEquals(1, createdBrokerClients.size());
+    }
+
+    @Test
+    public void invalidatedClientShouldBeClosedWhenItsLastUserGivesItBack() {
+        BrokerClientHolder holder = new BrokerClientHolder(this::createBrokerClient, true);
+
+        BrokerClient brokerClient1 = holder.acquire(1000);
+        BrokerClient brokerClient2 = holder.acquire(1000);
+        assertSame(brokerClient1, brokerClient2);
+
+        holder.invalidate(brokerClient1);
+        // Still in use by the other user
+        verify(brokerClient1, never()).close();
+
+        // Failed client is not handed out anymore
+        BrokerClient brokerClient3 = holder.acquire(1000);
+        assertNotSame(brokerClient1, brokerClient3);
+
+        holder.release(brokerClient2);
+        verify(brokerClient1).close();
+        verify(brokerClient1).destroy();
+        verify(brokerClient3, never()).close();
+    }
+
+    @Test
+    public void invalidatingReplacedClientShouldNotAffectCurrentClient() {
+        BrokerClientHolder holder = new BrokerClientHolder(this::createBrokerClient, true);
+
+        BrokerClient brokerClient1 = holder.acquire(1000);
+        BrokerClient brokerClient2 = holder.acquire(1000);
+        holder.invalidate(brokerClient1);
+        BrokerClient brokerClient3 = holder.acquire(1000);
+        holder.release(brokerClient3);
+
+        // Late failure of the already replaced client
+        holder.invalidate(brokerClient2);
+
+        verify(brokerClient1).destroy();
+        verify(brokerClient3, never()).close();
+        assertSame(brokerClient3, holder.acquire(1000));
+        assertEquals(2, createdBrokerClients.size());
+    }
+
+    @Test
+    public void connectWaitShouldNotBlockOtherUsers() throws Exception {
+        CountDownLatch waitingLatch = new CountDownLatch(2);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        BrokerClientHolder holder = new BrokerClientHolder(() -> {
+            BrokerClient brokerClient = createBrokerClient();
+            when(brokerClient.waitUntilConnected(anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+                waitingLatch.countDown();
+                return connectedLatch.await(5, TimeUnit.SECONDS);
+            });
+            return brokerClient;
+        }, true);
+
+        CompletableFuture<BrokerClient> acquireFuture1 = CompletableFuture.supplyAsync(() -> holder.acquire(5000));
+        CompletableFuture<BrokerClient> acquireFuture2 = CompletableFuture.supplyAsync(() -> holder.acquire(5000));
+
+        // Both users wait for the same handshake at the same time, so neither of them holds the lock
+        assertTrue(waitingLatch.await(2, TimeUnit.SECONDS));
+        connectedLatch.countDown();
+
+        assertSame(acquireFuture1.get(5, TimeUnit.SECONDS), acquireFuture2.get(5, TimeUnit.SECONDS));
+        assertEquals(1, createdBrokerClients.size());
+    }
+
+    @Test
+    public void failedConnectShouldBeRetriedWithNewClient() {
+        BrokerClientHolder holder = new BrokerClientHolder(() -> {
+            BrokerClient brokerClient = createBrokerClient();
+            if (createdBrokerClients.size() == 1) {
+                when(brokerClient.waitUntilConnected(anyLong(), any(TimeUnit.class))).thenReturn(false);
+            }
+            return brokerClient;
+        }, true);
+
+        assertNull(holder.acquire(1000));
+        verify(createdBrokerClients.get(0)).destroy();
+
+        BrokerClient brokerClient = holder.acquire(1000);
+        assertSame(createdBrokerClients.get(1), brokerClient);
+    }
+
+}
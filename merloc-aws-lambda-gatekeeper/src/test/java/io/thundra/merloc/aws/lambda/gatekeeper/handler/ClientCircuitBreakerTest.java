@@ -0,0 +1,78 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author serkan
+ */
+public class ClientCircuitBreakerTest {
+
+    private static final long OPEN_INTERVAL = 20;
+    private static final int WINDOW_SIZE = 10;
+
+    private static ClientCircuitBreaker createCircuitBreaker(int minimumAccessCount) {
+        return new ClientCircuitBreaker(
+                OPEN_INTERVAL, OPEN_INTERVAL * 10, WINDOW_SIZE, minimumAccessCount, 50, 0, 100);
+    }
+
+    private static void fail(ClientCircuitBreaker circuitBreaker, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onAccess(false, 1);
+        }
+    }
+
+    @Test
+    public void circuitShouldNotOpenBeforeWindowIsFilledByDefault() {
+        ClientCircuitBreaker circuitBreaker = createCircuitBreaker(0);
+
+        fail(circuitBreaker, WINDOW_SIZE - 1);
+        assertEquals(ClientCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        fail(circuitBreaker, 1);
+        assertEquals(ClientCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void circuitShouldOpenOnceMinimumAccessCountIsReached() {
+        ClientCircuitBreaker circuitBreaker = createCircuitBreaker(3);
+
+        fail(circuitBreaker, 2);
+        assertEquals(ClientCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        fail(circuitBreaker, 1);
+        assertEquals(ClientCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void minimumAccessCountShouldBeCappedByWindowSize() {
+        ClientCircuitBreaker circuitBreaker = createCircuitBreaker(WINDOW_SIZE * 2);
+
+        fail(circuitBreaker, WINDOW_SIZE);
+        assertEquals(ClientCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void singleFailureAfterSuccessfulProbeShouldNotReopenCircuit() throws Exception {
+        ClientCircuitBreaker circuitBreaker = createCircuitBreaker(0);
+        fail(circuitBreaker, WINDOW_SIZE);
+        assertEquals(ClientCircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(OPEN_INTERVAL * 2);
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(ClientCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        // Only a single probe is let through
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onAccess(true, 1);
+        assertEquals(ClientCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        fail(circuitBreaker, 1);
+        assertEquals(ClientCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+}
@@ -0,0 +1,104 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author serkan
+ */
+public class ClientPoolTest {
+
+    /**
+     * Simulates a broker which delivers the untargeted requests to the clients of the pool in turn
+     */
+    private static final class Broker {
+
+        private final List<String> connectionIds;
+        private final Map<String, Integer> requestCounts = new HashMap<>();
+        private int nextIndex;
+
+        private Broker(String... connectionIds) {
+            this.connectionIds = Arrays.asList(connectionIds);
+        }
+
+        private String deliver(String targetConnectionId) {
+            String connectionId = targetConnectionId;
+            if (connectionId == null) {
+                connectionId = connectionIds.get(nextIndex++ % connectionIds.size());
+            }
+            requestCounts.merge(connectionId, 1, Integer::sum);
+            return connectionId;
+        }
+
+    }
+
+    private static void sendRequests(ClientPool pool, Broker broker, int count) {
+        for (int i = 0; i < count; i++) {
+            String targetConnectionId = pool.acquire();
+            String respondedConnectionId = broker.deliver(targetConnectionId);
+            // Responding client is learned from the response
+            pool.markConnected(respondedConnectionId);
+            pool.release(targetConnectionId);
+        }
+    }
+
+    @Test
+    public void clientsConnectedBeforeGateKeeperShouldAllReceiveRequests() {
+        // Both runtimes have connected before, so their connect events have not been received
+        ClientPool pool = new ClientPool();
+        Broker broker = new Broker("runtime-1", "runtime-2");
+
+        sendRequests(pool, broker, 10);
+
+        assertEquals(2, pool.size());
+        assertTrue(broker.requestCounts.get("runtime-1") >= 4);
+        assertTrue(broker.requestCounts.get("runtime-2") >= 4);
+    }
+
+    @Test
+    public void requestsShouldNotBeTargetedUntilMoreThanOneClientIsKnown() {
+        ClientPool pool = new ClientPool();
+
+        assertNull(pool.acquire());
+        pool.markConnected("runtime-1");
+        assertNull(pool.acquire());
+
+        pool.markConnected("runtime-2");
+        String first = pool.acquire();
+        assertNotNull(first);
+        pool.release(first);
+        String second = pool.acquire();
+        assertNotNull(second);
+        pool.release(second);
+        // Idle clients are selected in turn
+        assertNotEquals(first, second);
+
+        pool.markDisconnected("runtime-2");
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void clientWithLeastOutstandingRequestsShouldBeSelected() {
+        ClientPool pool = new ClientPool();
+        pool.markConnected("runtime-1");
+        pool.markConnected("runtime-2");
+
+        String busy = pool.acquire();
+        // Busy one is not released yet
+        String idle = pool.acquire();
+        assertNotEquals(busy, idle);
+        pool.release(idle);
+        assertEquals(idle, pool.acquire());
+    }
+
+}
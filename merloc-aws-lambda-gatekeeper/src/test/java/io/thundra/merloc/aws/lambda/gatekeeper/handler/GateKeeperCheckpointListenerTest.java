@@ -0,0 +1,149 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.utils.IdUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulates the checkpoint/restore callbacks, so no CRaC enabled JVM is needed.
+ *
+ * @author serkan
+ */
+public class GateKeeperCheckpointListenerTest {
+
+    private static final String CLIENT_ID = "client-1";
+    private static final String FUNCTION_ARN = "arn:aws:lambda:us-west-2:123456789012:function:test";
+
+    private final List<BrokerClient> createdBrokerClients = new ArrayList<>();
+    private BrokerClientHolder brokerClientHolder;
+    private ClientPresence clientPresence;
+    private ClientCircuitBreaker clientCircuitBreaker;
+    private EnvVarsTracker envVarsTracker;
+    private ClockOffsetTracker clockOffsetTracker;
+    private ClientCapacity clientCapacity;
+    private ClientPool clientPool;
+
+    @Before
+    public void setUp() {
+        brokerClientHolder = new BrokerClientHolder(() -> {
+            BrokerClient brokerClient = mock(BrokerClient.class);
+            when(brokerClient.isOpen()).thenReturn(true);
+            when(brokerClient.waitUntilConnected(anyLong(), any(TimeUnit.class))).thenReturn(true);
+            createdBrokerClients.add(brokerClient);
+            return brokerClient;
+        }, true);
+        clientPresence = new ClientPresence(TimeUnit.MINUTES.toMillis(1));
+        clientCircuitBreaker = new ClientCircuitBreaker(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10),
+                1, 1, 50, 0, 100);
+        envVarsTracker = new EnvVarsTracker();
+        clockOffsetTracker = new ClockOffsetTracker();
+        clientCapacity = new ClientCapacity(TimeUnit.MINUTES.toMillis(1));
+        clientPool = new ClientPool();
+    }
+
+    private GateKeeperCheckpointListener createListener(boolean connectAfterRestore) {
+        return new GateKeeperCheckpointListener(
+                brokerClientHolder, clientPresence, clientCircuitBreaker, envVarsTracker,
+                clockOffsetTracker, clientCapacity, clientPool, connectAfterRestore);
+    }
+
+    private void populateState() {
+        clientPresence.markAbsent();
+        clientCircuitBreaker.onAccess(false, 10);
+        EnvVarsTracker.Update update = envVarsTracker.createUpdate(CLIENT_ID);
+        envVarsTracker.onAck(update, update.getHash());
+        clockOffsetTracker.onResponse(CLIENT_ID, 1000, 6000, 6010, 1020);
+        clientCapacity.onStatus(
+                CLIENT_ID,
+                new BrokerMessage().
+                        withDataAttribute(ClientCapacity.CAPACITY_VERSION_ATTRIBUTE_NAME, 1).
+                        withDataAttribute(ClientCapacity.RUNTIME_FREE_SLOTS_ATTRIBUTE_NAME, 0));
+        clientPool.markConnected(CLIENT_ID);
+
+        assertTrue(clientPresence.isKnownAbsent());
+        assertEquals(ClientCircuitBreaker.State.OPEN, clientCircuitBreaker.getState());
+        assertTrue(envVarsTracker.createUpdate(CLIENT_ID).isDelta());
+        assertNotEquals(0, clockOffsetTracker.getOffset(CLIENT_ID));
+        assertFalse(clientCapacity.hasCapacity(CLIENT_ID, FUNCTION_ARN));
+        assertFalse(clientPool.isEmpty());
+    }
+
+    @Test
+    public void beforeCheckpointShouldCloseConnectionAndClearState() {
+        GateKeeperCheckpointListener listener = createListener(true);
+        BrokerClient brokerClient = brokerClientHolder.acquire(1000);
+        populateState();
+
+        listener.beforeCheckpoint();
+
+        verify(brokerClient).close();
+        verify(brokerClient).destroy();
+        assertFalse(clientPresence.isKnownAbsent());
+        assertEquals(ClientCircuitBreaker.State.CLOSED, clientCircuitBreaker.getState());
+        assertTrue(clientCircuitBreaker.tryAcquire());
+        assertFalse(envVarsTracker.createUpdate(CLIENT_ID).isDelta());
+        assertEquals(0, clockOffsetTracker.getOffset(CLIENT_ID));
+        assertTrue(clientCapacity.hasCapacity(CLIENT_ID, FUNCTION_ARN));
+        assertTrue(clientPool.isEmpty());
+    }
+
+    @Test
+    public void afterRestoreShouldReconnect() {
+        GateKeeperCheckpointListener listener = createListener(true);
+        BrokerClient brokerClient = brokerClientHolder.acquire(1000);
+
+        listener.beforeCheckpoint();
+        listener.afterRestore();
+
+        // Connection has been started by restore before it is needed
+        assertEquals(2, createdBrokerClients.size());
+        BrokerClient restoredBrokerClient = brokerClientHolder.acquire(1000);
+        assertNotSame(brokerClient, restoredBrokerClient);
+        assertSame(createdBrokerClients.get(1), restoredBrokerClient);
+        assertEquals(2, createdBrokerClients.size());
+    }
+
+    @Test
+    public void afterRestoreShouldNotConnectWhenForwardingIsDisabled() {
+        GateKeeperCheckpointListener listener = createListener(false);
+
+        listener.beforeCheckpoint();
+        listener.afterRestore();
+
+        assertTrue(createdBrokerClients.isEmpty());
+    }
+
+    @Test
+    public void afterRestoreShouldReseedIdGenerator() {
+        GateKeeperCheckpointListener listener = createListener(false);
+        // Prefix of the ids is the node id
+        String idPrefix = IdUtils.generateId().substring(0, 18);
+        String traceHeader = IdUtils.generateTraceHeader();
+
+        listener.beforeCheckpoint();
+        listener.afterRestore();
+
+        assertNotEquals(idPrefix, IdUtils.generateId().substring(0, 18));
+        assertNotEquals(traceHeader.substring(traceHeader.indexOf(';')),
+                        IdUtils.generateTraceHeader().substring(traceHeader.indexOf(';')));
+    }
+
+}
@@ -0,0 +1,158 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.handler;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the broker machinery is not loaded at all by {@link GateKeeperLambdaHandler}
+ * when MerLoc is disabled, so it doesn't add to the cold start.
+ *
+ * Handler is loaded by an isolated class loader in each test,
+ * so the classes loaded by the other tests in the same JVM don't affect the result.
+ *
+ * @author serkan
+ */
+public class GateKeeperLambdaHandlerColdStartTest {
+
+    private static final String ENABLE_PROPERTY_NAME = "merloc.enable";
+    private static final String LAMBDA_HANDLER_PROPERTY_NAME = "merloc.aws.lambda.handler";
+    private static final String[] FORBIDDEN_CLASS_PREFIXES = {
+            "com.fasterxml.",
+            "okhttp3.",
+            "okio.",
+            "kotlin.",
+            "io.thundra.merloc.broker.",
+            ForwardingLambdaHandler.class.getName(),
+    };
+
+    private String originalEnable;
+    private String originalLambdaHandler;
+
+    public static class EchoHandler implements RequestStreamHandler {
+
+        @Override
+        public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+
+    }
+
+    /**
+     * Loads the classes on its own (rather than delegating to the application class loader)
+     * and records them
+     */
+    private static final class RecordingClassLoader extends URLClassLoader {
+
+        private final Set<String> loadedClassNames = ConcurrentHashMap.newKeySet();
+
+        private RecordingClassLoader(URL[] urls) {
+            super(urls, ClassLoader.getSystemClassLoader().getParent());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> clazz = super.findClass(name);
+            loadedClassNames.add(name);
+            return clazz;
+        }
+
+    }
+
+    private static URL[] getClassPath() throws IOException {
+        // Surefire might run the tests with a manifest-only jar, so the actual class path is given separately
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        List<URL> urls = new ArrayList<>();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    @Before
+    public void setUp() {
+        originalEnable = System.getProperty(ENABLE_PROPERTY_NAME);
+        originalLambdaHandler = System.getProperty(LAMBDA_HANDLER_PROPERTY_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        restoreProperty(ENABLE_PROPERTY_NAME, originalEnable);
+        restoreProperty(LAMBDA_HANDLER_PROPERTY_NAME, originalLambdaHandler);
+    }
+
+    private static void restoreProperty(String name, String value) {
+        if (value != null) {
+            System.setProperty(name, value);
+        } else {
+            System.clearProperty(name);
+        }
+    }
+
+    @Test
+    public void brokerMachineryShouldNotBeLoadedWhenDisabled() throws Exception {
+        System.setProperty(ENABLE_PROPERTY_NAME, "false");
+        System.setProperty(LAMBDA_HANDLER_PROPERTY_NAME, EchoHandler.class.getName());
+
+        Thread currentThread = Thread.currentThread();
+        ClassLoader originalContextClassLoader = currentThread.getContextClassLoader();
+        try (RecordingClassLoader classLoader = new RecordingClassLoader(getClassPath())) {
+            currentThread.setContextClassLoader(classLoader);
+
+            Class<?> handlerClass = classLoader.loadClass(GateKeeperLambdaHandler.class.getName());
+            Object handler = handlerClass.getConstructor().newInstance();
+            Method handleRequestMethod =
+                    handlerClass.getMethod(
+                            "handleRequest",
+                            InputStream.class, OutputStream.class,
+                            classLoader.loadClass(Context.class.getName()));
+            ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+            handleRequestMethod.invoke(
+                    handler,
+                    new ByteArrayInputStream("{\"hello\":\"world\"}".getBytes(StandardCharsets.UTF_8)),
+                    responseStream, null);
+
+            assertEquals("{\"hello\":\"world\"}", new String(responseStream.toByteArray(), StandardCharsets.UTF_8));
+            // Make sure that the classes are actually recorded
+            assertTrue(classLoader.loadedClassNames.contains(GateKeeperLambdaHandler.class.getName()));
+            assertTrue(classLoader.loadedClassNames.contains(EchoHandler.class.getName()));
+            for (String className : classLoader.loadedClassNames) {
+                for (String forbiddenClassPrefix : FORBIDDEN_CLASS_PREFIXES) {
+                    assertFalse(
+                            className + " should not have been loaded while MerLoc is disabled",
+                            className.startsWith(forbiddenClassPrefix));
+                }
+            }
+        } finally {
+            currentThread.setContextClassLoader(originalContextClassLoader);
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package io.thundra.merloc.aws.lambda.gatekeeper.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the metrics written to the stdout are valid
+ * CloudWatch Embedded Metric Format (EMF) log lines.
+ *
+ * @author serkan
+ */
+public class InvocationMetricsTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ByteArrayOutputStream capturedStdOut = new ByteArrayOutputStream();
+    private PrintStream originalStdOut;
+
+    @Before
+    public void setUp() {
+        originalStdOut = System.out;
+        System.setOut(new PrintStream(capturedStdOut, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalStdOut);
+    }
+
+    private String[] getLines() {
+        String output = new String(capturedStdOut.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue("Log line should be terminated", output.endsWith("\n"));
+        return output.split("\n");
+    }
+
+    private static Map<String, String> getMetricUnits(JsonNode root) {
+        Map<String, String> metricUnits = new HashMap<>();
+        for (JsonNode metric : root.get("_aws").get("CloudWatchMetrics").get(0).get("Metrics")) {
+            metricUnits.put(metric.get("Name").asText(), metric.get("Unit").asText());
+        }
+        return metricUnits;
+    }
+
+    @Test
+    public void metricsShouldBeWrittenInEmf() throws IOException {
+        EmfMetricsWriter writer = InvocationMetrics.createWriter("my-function");
+        long startTime = System.currentTimeMillis();
+
+        InvocationMetrics metrics = InvocationMetrics.start(writer);
+        metrics.record(InvocationMetrics.Phase.CONNECT_WAIT, metrics.mark());
+        metrics.record(InvocationMetrics.Phase.SEND, metrics.mark());
+        metrics.finish("request-1", false);
+
+        String[] lines = getLines();
+        assertEquals(1, lines.length);
+        JsonNode root = objectMapper.readTree(lines[0]);
+
+        JsonNode aws = root.get("_aws");
+        long timestamp = aws.get("Timestamp").asLong();
+        assertTrue(timestamp >= startTime && timestamp <= System.currentTimeMillis());
+        JsonNode cloudWatchMetrics = aws.get("CloudWatchMetrics");
+        assertEquals(1, cloudWatchMetrics.size());
+        assertEquals("MerLoc/GateKeeper", cloudWatchMetrics.get(0).get("Namespace").asText());
+        JsonNode dimensions = cloudWatchMetrics.get(0).get("Dimensions");
+        assertEquals(1, dimensions.size());
+        assertEquals(1, dimensions.get(0).size());
+        assertEquals("FunctionName", dimensions.get(0).get(0).asText());
+        assertEquals("my-function", root.get("FunctionName").asText());
+        assertEquals("request-1", root.get("RequestId").asText());
+
+        // Only the recorded phases are emitted
+        Map<String, String> metricUnits = getMetricUnits(root);
+        assertEquals(3, metricUnits.size());
+        assertEquals("Microseconds", metricUnits.get("ConnectWait"));
+        assertEquals("Microseconds", metricUnits.get("Send"));
+        assertEquals("Count", metricUnits.get("Fallback"));
+        for (String metricName : metricUnits.keySet()) {
+            assertTrue("Value of " + metricName + " should be a number", root.get(metricName).isIntegralNumber());
+            assertTrue(root.get(metricName).asLong() >= 0);
+        }
+        assertEquals(0, root.get("Fallback").asLong());
+        assertFalse(root.has("ResponseWait"));
+    }
+
+    @Test
+    public void eachInvocationShouldBeWrittenAsSeparateLine() throws IOException {
+        EmfMetricsWriter writer = InvocationMetrics.createWriter("my-function");
+
+        InvocationMetrics longerMetrics = InvocationMetrics.start(writer);
+        for (InvocationMetrics.Phase phase : InvocationMetrics.Phase.values()) {
+            longerMetrics.record(phase, longerMetrics.mark());
+        }
+        longerMetrics.finish("request-1", false);
+        // Shorter line is written over the buffer of the longer one
+        InvocationMetrics shorterMetrics = InvocationMetrics.start(writer);
+        shorterMetrics.recordIfAbsent(InvocationMetrics.Phase.FALLBACK_DECISION, shorterMetrics.mark());
+        shorterMetrics.finish("request-2", true);
+
+        String[] lines = getLines();
+        assertEquals(2, lines.length);
+        JsonNode first = objectMapper.readTree(lines[0]);
+        assertEquals("request-1", first.get("RequestId").asText());
+        assertEquals(InvocationMetrics.Phase.values().length + 1, getMetricUnits(first).size());
+        JsonNode second = objectMapper.readTree(lines[1]);
+        assertEquals("request-2", second.get("RequestId").asText());
+        assertEquals(2, getMetricUnits(second).size());
+        assertEquals(1, second.get("Fallback").asLong());
+    }
+
+    @Test
+    public void namesAndRequestIdShouldBeEscaped() throws IOException {
+        EmfMetricsWriter writer = InvocationMetrics.createWriter("my\"function\\");
+
+        InvocationMetrics metrics = InvocationMetrics.start(writer);
+        metrics.finish("request\"1\\", true);
+
+        String[] lines = getLines();
+        assertEquals(1, lines.length);
+        JsonNode root = objectMapper.readTree(lines[0]);
+        assertEquals("my\"function\\", root.get("FunctionName").asText());
+        // Request ids are ASCII without quotes, so unexpected chars are replaced
+        assertEquals("request?1?", root.get("RequestId").asText());
+    }
+
+}
@@ -0,0 +1,19 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded;
+
+/**
+ * Listener to be notified when the capacity of the runtime to accept invocations changes.
+ *
+ * @author serkan
+ */
+public interface CapacityListener {
+
+    /**
+     * Called when an invocation starts or finishes.
+     * Might be called concurrently and so out of order,
+     * so the statuses should be ordered by their {@link CapacityStatus#getVersion()}.
+     *
+     * @param status the current {@link CapacityStatus}
+     */
+    void onCapacityChange(CapacityStatus status);
+
+}
@@ -0,0 +1,56 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded;
+
+import java.util.Map;
+
+/**
+ * Snapshot of the free invocation slots of the runtime and of the functions it has executed.
+ *
+ * @author serkan
+ */
+public class CapacityStatus {
+
+    public static final int UNLIMITED = -1;
+
+    private final long version;
+    private final int runtimeFreeSlots;
+    private final Map<String, Integer> functionFreeSlots;
+
+    public CapacityStatus(long version, int runtimeFreeSlots, Map<String, Integer> functionFreeSlots) {
+        this.version = version;
+        this.runtimeFreeSlots = runtimeFreeSlots;
+        this.functionFreeSlots = functionFreeSlots;
+    }
+
+    /**
+     * @return the version of the status which increases with every change
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of the invocations the runtime can accept without rejecting or waiting
+     *         regardless of their functions, {@link #UNLIMITED} if only the function slots are limited
+     */
+    public int getRuntimeFreeSlots() {
+        return runtimeFreeSlots;
+    }
+
+    /**
+     * @return the number of the invocations each function (by its ARN) can accept without rejecting or waiting.
+     *         Functions which have not been invoked yet are not included.
+     */
+    public Map<String, Integer> getFunctionFreeSlots() {
+        return functionFreeSlots;
+    }
+
+    @Override
+    public String toString() {
+        return "CapacityStatus{" +
+                "version=" + version +
+                ", runtimeFreeSlots=" + runtimeFreeSlots +
+                ", functionFreeSlots=" + functionFreeSlots +
+                '}';
+    }
+
+}
@@ -1,5 +1,6 @@
 package io.thundra.merloc.aws.lambda.runtime.embedded;
 
+import io.thundra.merloc.aws.lambda.runtime.embedded.exception.DeadlineExceededException;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.FunctionInUseException;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.InvalidRequestException;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.RuntimeInUseException;
@@ -13,6 +14,7 @@ import io.thundra.merloc.aws.lambda.runtime.embedded.watcher.ClassPathWatcher;
 import io.thundra.merloc.aws.lambda.runtime.embedded.watcher.FileChangeEvent;
 import io.thundra.merloc.common.logger.StdLogger;
 import io.thundra.merloc.common.utils.ExceptionUtils;
+import io.thundra.merloc.common.utils.IdUtils;
 import io.thundra.merloc.common.utils.StringUtils;
 
 import java.io.ByteArrayInputStream;
@@ -22,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
@@ -47,6 +50,7 @@ public class InvocationExecutor implements Closeable {
 
     public static final String DEFAULT_VERSION = "$LATEST";
     public static final int DEFAULT_TIMEOUT = -1;
+    public static final long NO_DEADLINE = -1;
     public static final int DEFAULT_MEMORY_SIZE = 512;
     public static final long DEFAULT_LAST_MODIFIED = -1;
 
@@ -73,6 +77,10 @@ public class InvocationExecutor implements Closeable {
     private final List<byte[]> serializedInitializers =
             new CopyOnWriteArrayList<>();
     private final ClassPathWatcher classPathWatcher;
+    private final Map<String, Integer> functionInFlightInvocationMap = new HashMap<>();
+    private int inFlightInvocationCount;
+    private long capacityVersion;
+    private volatile CapacityListener capacityListener;
 
     public InvocationExecutor(ClassLoader appClassLoader,
                               ThreadGroup mainThreadGroup,
@@ -198,10 +206,48 @@ public class InvocationExecutor implements Closeable {
         serializedInitializers.clear();
     }
 
+    /**
+     * Sets the listener to be notified when the capacity of the runtime changes.
+     *
+     * @param capacityListener the {@link CapacityListener}, <code>null</code> to remove
+     */
+    public void setCapacityListener(CapacityListener capacityListener) {
+        this.capacityListener = capacityListener;
+    }
+
+    private CapacityStatus updateCapacity(String functionArn, int inFlightDelta) {
+        synchronized (functionInFlightInvocationMap) {
+            functionInFlightInvocationMap.merge(functionArn, inFlightDelta, Integer::sum);
+            inFlightInvocationCount += inFlightDelta;
+            // There can be only one invocation at a time per function (and per runtime if it has global lock).
+            // The others are either rejected or wait.
+            Map<String, Integer> functionFreeSlots = new HashMap<>();
+            for (Map.Entry<String, Integer> e : functionInFlightInvocationMap.entrySet()) {
+                functionFreeSlots.put(e.getKey(), e.getValue() > 0 ? 0 : 1);
+            }
+            int runtimeFreeSlots =
+                    lambdaRuntimeLock != null
+                            ? (inFlightInvocationCount > 0 ? 0 : 1)
+                            : CapacityStatus.UNLIMITED;
+            return new CapacityStatus(++capacityVersion, runtimeFreeSlots, functionFreeSlots);
+        }
+    }
+
+    private void notifyCapacityListener(CapacityStatus status) {
+        CapacityListener listener = capacityListener;
+        if (listener != null) {
+            try {
+                listener.onCapacityChange(status);
+            } catch (Throwable t) {
+                StdLogger.error("Unable to notify capacity listener", t);
+            }
+        }
+    }
+
     private Map<String, String> buildFunctionEnvVars(
             String region, String requestId, String handler,
             String functionArn, String functionName, String functionVersion,
-            String runtime, int timeout, int memorySize,
+            String runtime, long deadline, int memorySize,
             String logGroupName, String logStreamName,
             Map<String, String> envVars) throws Exception {
         /*
@@ -258,7 +304,7 @@ public class InvocationExecutor implements Closeable {
                 MERLOC_LAMBDA_HANDLER_CLASS_NAME);
         functionEnvVars.put(
                 LambdaEnvironmentVariables.AWS_TRACE_ID_ENV_VAR_NAME,
-                UUID.randomUUID().toString());
+                IdUtils.generateTraceHeader());
         functionEnvVars.put(
                 LambdaEnvironmentVariables.AWS_REGION_ENV_VAR_NAME,
                 region);
@@ -294,10 +340,16 @@ public class InvocationExecutor implements Closeable {
     }
 
     private Object createContext(FunctionEnvironment functionEnvironment,
-                                 String functionArn, String requestId, int timeout,
+                                 String functionArn, String requestId, long deadline,
                                  String clientContextJson, String cognitoIdentityJson) {
         StdLogger.debug(String.format("Creating context for function %s ...", functionEnvironment.getFunctionName()));
         try {
+            // Remaining time is calculated just before the handler starts,
+            // so the time spent in transit and while waiting for the locks is not given back to the handler
+            int timeout =
+                    deadline == NO_DEADLINE
+                            ? DEFAULT_TIMEOUT
+                            : (int) Math.max(deadline - System.currentTimeMillis(), 0);
             Object context = functionEnvironment.createContext(
                     requestId, timeout, clientContextJson, cognitoIdentityJson);
             StdLogger.debug(String.format(
@@ -319,7 +371,7 @@ public class InvocationExecutor implements Closeable {
 
     private void validateRequest(String request, String region, String requestId, String handlerName,
                                  String functionArn, String functionName, String functionVersion,
-                                 String runtime, int timeout, int memorySize,
+                                 String runtime, long deadline, int memorySize,
                                  String logGroupName, String logStreamName,
                                  Map<String, String> envVars, String clientContext, String cognitoIdentity,
                                  long lastModified) throws InvalidRequestException {
@@ -362,12 +414,27 @@ public class InvocationExecutor implements Closeable {
         }
     }
 
-    private byte[] executeHandler(String request, String region, String requestId, String handlerName,
-                                  String functionArn, String functionName, String functionVersion,
-                                  String runtime, int timeout, int memorySize,
-                                  String logGroupName, String logStreamName,
-                                  Map<String, String> envVars, String clientContext, String cognitoIdentity,
-                                  long lastModified) throws Exception {
+    private void checkDeadline(String functionName, String requestId,
+                               long deadline) throws DeadlineExceededException {
+        if (deadline == NO_DEADLINE) {
+            return;
+        }
+        long overrun = System.currentTimeMillis() - deadline;
+        if (overrun >= 0) {
+            StdLogger.debug(String.format(
+                    "Rejecting invocation %s of function %s as its deadline has passed %d ms ago",
+                    requestId, functionName, overrun));
+            throw new DeadlineExceededException(String.format(
+                    "Deadline of invocation %s has passed %d ms ago", requestId, overrun));
+        }
+    }
+
+    private void executeHandler(String request, String region, String requestId, String handlerName,
+                                String functionArn, String functionName, String functionVersion,
+                                String runtime, long deadline, int memorySize,
+                                String logGroupName, String logStreamName,
+                                Map<String, String> envVars, String clientContext, String cognitoIdentity,
+                                long lastModified, OutputStream responseStream) throws Exception {
         Lock lock = funcEnvManager.getFunctionEnvironmentLock(functionArn);
         StdLogger.debug(String.format("Locking function environment for function %s ...", functionName));
         if (functionConcurrencyMode == FunctionConcurrencyMode.REJECT) {
@@ -383,12 +450,15 @@ public class InvocationExecutor implements Closeable {
         }
         StdLogger.debug(String.format("Locked function environment for function %s", functionName));
         try {
+            // Request might have waited for the function environment long enough to miss its deadline
+            checkDeadline(functionName, requestId, deadline);
+
             StdLogger.debug(String.format("Executing handler for function %s ...", functionName));
 
             Callable<Map<String, String>> functionEnvVarsBuilder = () -> buildFunctionEnvVars(
                     region, requestId, handlerName,
                     functionArn, functionName, functionVersion,
-                    runtime, timeout, memorySize,
+                    runtime, deadline, memorySize,
                     logGroupName, logStreamName,
                     envVars);
             FunctionEnvironment functionEnvironment =
@@ -398,22 +468,13 @@ public class InvocationExecutor implements Closeable {
                             handlerName, lastModified);
 
             InputStream requestStream = new ByteArrayInputStream(request.getBytes());
-            ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
             Object context = createContext(
-                    functionEnvironment, functionArn, requestId, timeout,
+                    functionEnvironment, functionArn, requestId, deadline,
                     clientContext, cognitoIdentity);
 
             StdLogger.debug(String.format("Executing function environment for function %s ...", functionName));
-            functionEnvironment.execute(requestStream, responseStream, context, requestId, envVars);
+            functionEnvironment.execute(requestStream, responseStream, context, requestId, envVars, deadline);
             StdLogger.debug(String.format("Executed function environment for function %s", functionName));
-
-            byte[] response = responseStream.toByteArray();
-            if (StdLogger.DEBUG_ENABLED) {
-                StdLogger.debug(String.format(
-                        "Executed handler for function %s and received response: %s",
-                        functionName, new String(response)));
-            }
-            return response;
         } catch (Throwable t) {
             StdLogger.error(String.format(
                     "Failed execution of handler for function %s",
@@ -426,12 +487,53 @@ public class InvocationExecutor implements Closeable {
         }
     }
 
+    /**
+     * Converts the given timeout into the deadline of an invocation received now.
+     *
+     * @param timeout the timeout in milliseconds, negative if there is no timeout
+     * @return the deadline as epoch milliseconds, {@link #NO_DEADLINE} if there is no timeout
+     */
+    public static long toDeadline(int timeout) {
+        return timeout < 0 ? NO_DEADLINE : System.currentTimeMillis() + timeout;
+    }
+
     public String execute(String request, String region, String requestId, String handler,
                           String functionArn, String functionName, String functionVersion,
-                          String runtime, int timeout, int memorySize,
+                          String runtime, long deadline, int memorySize,
                           String logGroupName, String logStreamName,
                           Map<String, String> envVars, String clientContext, String cognitoIdentity,
                           long lastModified) throws Exception {
+        ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+        execute(request, region, requestId, handler,
+                functionArn, functionName, functionVersion,
+                runtime, deadline, memorySize,
+                logGroupName, logStreamName,
+                envVars, clientContext, cognitoIdentity,
+                lastModified, responseStream);
+
+        String response = new String(responseStream.toByteArray());
+
+        if (StdLogger.DEBUG_ENABLED) {
+            StdLogger.debug(String.format(
+                    "Writing response data for the invocation function %s: %s",
+                    functionName, response));
+        }
+        return response;
+    }
+
+    /**
+     * Executes the handler of the function by writing its response to the given stream
+     * as the handler writes, so the response can be relayed progressively.
+     *
+     * Invocations whose deadline has already passed are rejected by {@link DeadlineExceededException}
+     * before any handler work is done, and handlers overrunning the deadline are interrupted.
+     */
+    public void execute(String request, String region, String requestId, String handler,
+                        String functionArn, String functionName, String functionVersion,
+                        String runtime, long deadline, int memorySize,
+                        String logGroupName, String logStreamName,
+                        Map<String, String> envVars, String clientContext, String cognitoIdentity,
+                        long lastModified, OutputStream responseStream) throws Exception {
         if (state.get() != STATE_RUNNING) {
             throw new IllegalStateException("Not in running state");
         }
@@ -447,65 +549,78 @@ public class InvocationExecutor implements Closeable {
             StdLogger.debug(String.format(
                     "Received invocation request: " +
                             "region=%s, requestId=%s, handler=%s, functionArn=%s, functionName=%s, " +
-                            "functionVersion=%s, runtime=%s, timeout=%d, memorySize=%s, " +
+                            "functionVersion=%s, runtime=%s, deadline=%d, memorySize=%s, " +
                             "logGroupName=%s, logStreamName=%s, envVars=%s, " +
                             "clientContext=%s, cognitoIdentity=%s, lastModified=%d",
                     region, requestId, handler, functionArn, functionName, functionVersion,
-                    runtime, timeout, memorySize, logGroupName, logStreamName, envVars,
+                    runtime, deadline, memorySize, logGroupName, logStreamName, envVars,
                     clientContext, cognitoIdentity, lastModified));
 
             validateRequest(
                     request, region, requestId, handler,
                     functionArn, functionName, functionVersion,
-                    runtime, timeout, memorySize,
+                    runtime, deadline, memorySize,
                     logGroupName, logStreamName,
                     envVars, clientContext, cognitoIdentity, lastModified);
 
-            if (lambdaRuntimeLock != null) {
-                StdLogger.debug(String.format(
-                        "Getting runtime lock of function environment for function %s ...", functionName));
-                if (lambdaRuntimeConcurrencyMode == LambdaRuntimeConcurrencyMode.REJECT) {
-                    boolean locked = lambdaRuntimeLock.tryLock();
-                    if (!locked) {
-                        StdLogger.debug(String.format(
-                                "Unable to lock runtime for function %s as it is in use", functionName));
-                        throw new RuntimeInUseException(String.format(
-                                "Unable to lock runtime for function %s as it is in use", functionName));
-                    }
-                } else {
-                    lambdaRuntimeLock.lock();
-                }
-                StdLogger.debug(String.format(
-                        "Got runtime lock of function environment for function %s", functionName));
-            }
-            byte[] responseData;
+            checkDeadline(functionName, requestId, deadline);
+
+            notifyCapacityListener(updateCapacity(functionArn, 1));
             try {
-                responseData = executeHandler(
+                executeWithRuntimeLock(
                         request, region, requestId, handler,
                         functionArn, functionName, functionVersion,
-                        runtime, timeout, memorySize,
+                        runtime, deadline, memorySize,
                         logGroupName, logStreamName,
-                        envVars, clientContext, cognitoIdentity, lastModified);
+                        envVars, clientContext, cognitoIdentity, lastModified,
+                        responseStream);
             } finally {
-                if (lambdaRuntimeLock != null) {
-                    StdLogger.debug(String.format(
-                            "Releasing runtime lock of function environment for function %s ...", functionName));
-                    lambdaRuntimeLock.unlock();
+                notifyCapacityListener(updateCapacity(functionArn, -1));
+            }
+        } finally {
+            handleLock.unlock();
+        }
+    }
+
+    private void executeWithRuntimeLock(String request, String region, String requestId, String handler,
+                                        String functionArn, String functionName, String functionVersion,
+                                        String runtime, long deadline, int memorySize,
+                                        String logGroupName, String logStreamName,
+                                        Map<String, String> envVars, String clientContext, String cognitoIdentity,
+                                        long lastModified, OutputStream responseStream) throws Exception {
+        if (lambdaRuntimeLock != null) {
+            StdLogger.debug(String.format(
+                    "Getting runtime lock of function environment for function %s ...", functionName));
+            if (lambdaRuntimeConcurrencyMode == LambdaRuntimeConcurrencyMode.REJECT) {
+                boolean locked = lambdaRuntimeLock.tryLock();
+                if (!locked) {
                     StdLogger.debug(String.format(
-                            "Released runtime lock of function environment for function %s", functionName));
+                            "Unable to lock runtime for function %s as it is in use", functionName));
+                    throw new RuntimeInUseException(String.format(
+                            "Unable to lock runtime for function %s as it is in use", functionName));
                 }
+            } else {
+                lambdaRuntimeLock.lock();
             }
-
-            String response = new String(responseData);
-
-            if (StdLogger.DEBUG_ENABLED) {
+            StdLogger.debug(String.format(
+                    "Got runtime lock of function environment for function %s", functionName));
+        }
+        try {
+            executeHandler(
+                    request, region, requestId, handler,
+                    functionArn, functionName, functionVersion,
+                    runtime, deadline, memorySize,
+                    logGroupName, logStreamName,
+                    envVars, clientContext, cognitoIdentity, lastModified,
+                    responseStream);
+        } finally {
+            if (lambdaRuntimeLock != null) {
                 StdLogger.debug(String.format(
-                        "Writing response data for the invocation function %s: %s",
-                        functionName, response));
+                        "Releasing runtime lock of function environment for function %s ...", functionName));
+                lambdaRuntimeLock.unlock();
+                StdLogger.debug(String.format(
+                        "Released runtime lock of function environment for function %s", functionName));
             }
-            return response;
-        } finally {
-            handleLock.unlock();
         }
     }
 
@@ -0,0 +1,22 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.exception;
+
+/**
+ * Thrown when the deadline of the invocation has already passed before its handler is started,
+ * so the invocation is rejected without doing any handler work.
+ *
+ * @author serkan
+ */
+public class DeadlineExceededException extends Exception implements ErrorCoded {
+
+    public static final int ERROR_CODE = 1002;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int code() {
+        return ERROR_CODE;
+    }
+
+}
@@ -0,0 +1,23 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.exception;
+
+/**
+ * Thrown when the environment variables delta in the request
+ * doesn't match with the environment variables snapshot kept for the function,
+ * so the full environment variables must be sent again.
+ *
+ * @author serkan
+ */
+public class EnvVarsMismatchException extends Exception implements ErrorCoded {
+
+    public static final int ERROR_CODE = 1001;
+
+    public EnvVarsMismatchException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int code() {
+        return ERROR_CODE;
+    }
+
+}
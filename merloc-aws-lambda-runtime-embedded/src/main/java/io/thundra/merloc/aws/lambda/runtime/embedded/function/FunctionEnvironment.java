@@ -4,6 +4,7 @@ import io.thundra.merloc.aws.lambda.runtime.embedded.ManagedEnvironmentVariables
 import io.thundra.merloc.aws.lambda.runtime.embedded.ManagedSystemProperties;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.HandlerExecutionException;
 import io.thundra.merloc.aws.lambda.runtime.embedded.io.ManagedOutputStream;
+import io.thundra.merloc.common.config.ConfigManager;
 import io.thundra.merloc.common.logger.StdLogger;
 import io.thundra.merloc.common.utils.ExceptionUtils;
 
@@ -22,6 +23,8 @@ import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -29,6 +32,26 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class FunctionEnvironment {
 
+    private static final String INVOCATION_DEADLINE_ENFORCE_CONFIG_NAME =
+            "merloc.invocation.deadline.enforce";
+    // Interrupting the handler would also kill the debugging session paused at a breakpoint,
+    // so the deadline is not enforced by default while a debugger agent is attached
+    private static final boolean INVOCATION_DEADLINE_ENFORCE =
+            ConfigManager.getBooleanConfig(INVOCATION_DEADLINE_ENFORCE_CONFIG_NAME, !isDebuggerAgentAttached());
+
+    private static boolean isDebuggerAgentAttached() {
+        try {
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith("-agentlib:jdwp") || arg.startsWith("-Xrunjdwp")) {
+                    return true;
+                }
+            }
+        } catch (Throwable t) {
+            StdLogger.debug("Unable to check whether debugger agent is attached: " + t.getMessage());
+        }
+        return false;
+    }
+
     final ManagedOutputStream managedStdOutStream;
     final ManagedOutputStream managedStdErrStream;
     final ManagedEnvironmentVariables managedEnvVars;
@@ -164,10 +187,25 @@ public class FunctionEnvironment {
         }
     }
 
+    /**
+     * Executes the handler of the function.
+     *
+     * @param requestStream  the request stream
+     * @param responseStream the response stream
+     * @param context        the context created by {@link #createContext(String, int, String, String)}
+     * @param requestId      the request id of the invocation
+     * @param envVars        the environment variables of the invocation
+     * @param deadline       the deadline of the invocation as epoch milliseconds, negative if there is no deadline.
+     *                       Handler is interrupted if it overruns the deadline
+     *                       unless the deadline enforcement is disabled.
+     * @throws Exception if the handler fails or overruns the deadline
+     */
     public void execute(InputStream requestStream, OutputStream responseStream,
-                        Object context, String requestId, Map<String, String> envVars) throws Exception {
+                        Object context, String requestId, Map<String, String> envVars,
+                        long deadline) throws Exception {
         StdLogger.debug(String.format("Executing function %s ...", functionName));
         long start = System.nanoTime();
+        long startTime = System.currentTimeMillis();
         Future future = executorService.submit(() -> {
             try {
                 currentRequestId.set(requestId);
@@ -194,6 +232,18 @@ public class FunctionEnvironment {
                 long finish = System.nanoTime();
                 double duration = ((double) finish - (double) start) / 1_000_000;
                 long billedDuration = (long) Math.ceil(duration);
+                boolean timedOut = deadline >= 0 && System.currentTimeMillis() >= deadline;
+                if (timedOut) {
+                    try {
+                        String timeoutMessage =
+                                String.format(
+                                        "%s Task timed out after %.2f seconds\n",
+                                        requestId, (double) (deadline - startTime) / 1000);
+                        managedStdOutStream.write(timeoutMessage.getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        StdLogger.error("Unable to print request timeout message", e);
+                    }
+                }
                 try {
                     String endMessage = String.format("END RequestId: %s\n", requestId, functionVersion);
                     managedStdOutStream.write(endMessage.getBytes(StandardCharsets.UTF_8));
@@ -213,8 +263,10 @@ public class FunctionEnvironment {
                                     "REPORT RequestId: %s Duration: %.2f ms" +
                                             "\tBilled Duration: %d ms" +
                                             "\tMemory Size: %d MB" +
-                                            "\tMax Memory Used: %d MB\n",
-                                    requestId, duration, billedDuration, maxMemoryMB, maxMemoryUsed);
+                                            "\tMax Memory Used: %d MB" +
+                                            "%s\n",
+                                    requestId, duration, billedDuration, maxMemoryMB, maxMemoryUsed,
+                                    timedOut ? "\tStatus: timeout" : "");
                     managedStdOutStream.write(reportMessage.getBytes(StandardCharsets.UTF_8));
                 } catch (IOException e) {
                     StdLogger.error("Unable to print request report message", e);
@@ -222,7 +274,20 @@ public class FunctionEnvironment {
             }
         });
         try {
-            future.get();
+            if (deadline >= 0 && INVOCATION_DEADLINE_ENFORCE) {
+                try {
+                    future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    StdLogger.debug(String.format(
+                            "Interrupting handler (%s) for function %s as it has overrun its deadline",
+                            handler, functionName));
+                    future.cancel(true);
+                    throw new TimeoutException(String.format(
+                            "Task timed out after %.2f seconds", (double) (deadline - startTime) / 1000));
+                }
+            } else {
+                future.get();
+            }
             StdLogger.debug(String.format("Executed function %s", functionName));
         } catch (Throwable t) {
             if (t instanceof ExecutionException) {
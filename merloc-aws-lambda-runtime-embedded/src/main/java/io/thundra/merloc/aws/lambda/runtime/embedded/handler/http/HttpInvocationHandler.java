@@ -247,7 +247,7 @@ public class HttpInvocationHandler implements InvocationHandler, HttpHandler {
                 String response = invocationExecutor.execute(
                         request, region, requestId, handler,
                         functionArn, functionName, functionVersion,
-                        runtime, timeout, memorySize,
+                        runtime, InvocationExecutor.toDeadline(timeout), memorySize,
                         logGroupName, logStreamName,
                         envVars, clientContext, cognitoIdentity, lastModified);
 
@@ -0,0 +1,106 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.handler.ws;
+
+import io.thundra.merloc.aws.lambda.runtime.embedded.CapacityListener;
+import io.thundra.merloc.aws.lambda.runtime.embedded.CapacityStatus;
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.IdUtils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the capacity status of the runtime to the GateKeepers on every change,
+ * so they can fall back to the actual handler immediately instead of sending requests to be rejected or to wait.
+ *
+ * GateKeepers are learned from the requests they have sent, as there is no way to broadcast to them over the broker.
+ * GateKeepers which haven't sent any request for a while are forgotten,
+ * as they might have been gone (their AWS Lambda containers might have been shut down).
+ *
+ * @author serkan
+ */
+final class CapacityPublisher implements CapacityListener {
+
+    static final String CAPACITY_VERSION_ATTRIBUTE_NAME = "capacityVersion";
+    static final String RUNTIME_FREE_SLOTS_ATTRIBUTE_NAME = "runtimeFreeSlots";
+    static final String FUNCTION_FREE_SLOTS_ATTRIBUTE_NAME = "functionFreeSlots";
+
+    private static final long GATEKEEPER_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+
+    private final Map<String, GateKeeper> gateKeeperMap = new ConcurrentHashMap<>();
+    private volatile BrokerClient brokerClient;
+
+    /**
+     * Learns the GateKeeper which has sent the given request.
+     *
+     * @param brokerClient         the {@link BrokerClient} which has received the request
+     * @param brokerRequestMessage the request message
+     */
+    void onRequest(BrokerClient brokerClient, BrokerMessage brokerRequestMessage) {
+        String gateKeeperConnectionId = brokerRequestMessage.getSourceConnectionId();
+        if (gateKeeperConnectionId == null) {
+            return;
+        }
+        this.brokerClient = brokerClient;
+        gateKeeperMap.put(
+                gateKeeperConnectionId,
+                new GateKeeper(
+                        brokerRequestMessage.getConnectionName(),
+                        brokerRequestMessage.getTargetConnectionId(),
+                        System.currentTimeMillis()));
+    }
+
+    @Override
+    public void onCapacityChange(CapacityStatus status) {
+        BrokerClient client = brokerClient;
+        if (client == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, GateKeeper>> iter = gateKeeperMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, GateKeeper> e = iter.next();
+            GateKeeper gateKeeper = e.getValue();
+            if (now - gateKeeper.lastRequestTime > GATEKEEPER_IDLE_TIMEOUT) {
+                iter.remove();
+                continue;
+            }
+            BrokerMessage capacityMessage =
+                    new BrokerMessage().
+                            withId(IdUtils.generateId()).
+                            withType(BrokerConstants.CLIENT_CAPACITY_MESSAGE_TYPE).
+                            withConnectionName(gateKeeper.connectionName).
+                            withSourceConnectionId(gateKeeper.clientConnectionId).
+                            withSourceConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE).
+                            withTargetConnectionId(e.getKey()).
+                            withTargetConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                            withDataAttribute(CAPACITY_VERSION_ATTRIBUTE_NAME, status.getVersion()).
+                            withDataAttribute(RUNTIME_FREE_SLOTS_ATTRIBUTE_NAME, status.getRuntimeFreeSlots()).
+                            withDataAttribute(FUNCTION_FREE_SLOTS_ATTRIBUTE_NAME, status.getFunctionFreeSlots());
+            try {
+                client.send(capacityMessage);
+            } catch (Throwable t) {
+                StdLogger.debug(String.format("Unable to publish capacity status to GateKeeper %s", e.getKey()), t);
+            }
+        }
+    }
+
+    private static final class GateKeeper {
+
+        private final String connectionName;
+        private final String clientConnectionId;
+        private final long lastRequestTime;
+
+        private GateKeeper(String connectionName, String clientConnectionId, long lastRequestTime) {
+            this.connectionName = connectionName;
+            this.clientConnectionId = clientConnectionId;
+            this.lastRequestTime = lastRequestTime;
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.handler.ws;
+
+import io.thundra.merloc.aws.lambda.runtime.embedded.exception.EnvVarsMismatchException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest full environment variables snapshots of each function
+ * to rebuild the environment variables from the deltas sent by GateKeeper.
+ *
+ * Snapshots are kept by their hashes, as GateKeeper containers of the same function
+ * might run with different environment variables (for example, while a new version is being deployed),
+ * so they don't evict each other's snapshot and fail with mismatch in turn.
+ * Only the most recently used snapshots are kept for each function.
+ *
+ * @author serkan
+ */
+final class EnvVarsSnapshots {
+
+    private static final int DEFAULT_MAX_SNAPSHOTS_PER_FUNCTION = 8;
+
+    private final int maxSnapshotsPerFunction;
+    private final Map<String, Map<String, Map<String, String>>> snapshotMap = new ConcurrentHashMap<>();
+
+    EnvVarsSnapshots() {
+        this(DEFAULT_MAX_SNAPSHOTS_PER_FUNCTION);
+    }
+
+    EnvVarsSnapshots(int maxSnapshotsPerFunction) {
+        this.maxSnapshotsPerFunction = maxSnapshotsPerFunction;
+    }
+
+    private Map<String, Map<String, String>> getSnapshots(String functionArn) {
+        return snapshotMap.computeIfAbsent(
+                functionArn,
+                arn -> new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                        return size() > maxSnapshotsPerFunction;
+                    }
+                });
+    }
+
+    private void putSnapshot(String functionArn, String hash, Map<String, String> envVars) {
+        Map<String, Map<String, String>> snapshots = getSnapshots(functionArn);
+        synchronized (snapshots) {
+            snapshots.put(hash, envVars);
+        }
+    }
+
+    private Map<String, String> getSnapshot(String functionArn, String hash) {
+        Map<String, Map<String, String>> snapshots = snapshotMap.get(functionArn);
+        if (snapshots == null) {
+            return null;
+        }
+        synchronized (snapshots) {
+            return snapshots.get(hash);
+        }
+    }
+
+    /**
+     * Resolves the full environment variables of the function from the given request attributes.
+     *
+     * @param functionArn     ARN of the function
+     * @param hash            hash of the full environment variables,
+     *                        <code>null</code> if GateKeeper doesn't support deltas
+     * @param baseHash        hash of the snapshot which the delta is based on,
+     *                        <code>null</code> if full environment variables are sent
+     * @param envVars         full environment variables if there is no base hash, the changed ones otherwise
+     * @param removedEnvVars  names of the removed environment variables from the base snapshot
+     * @return the resolved full environment variables
+     * @throws EnvVarsMismatchException if there is no snapshot matching with the base hash
+     */
+    Map<String, String> resolve(String functionArn, String hash, String baseHash,
+                                Map<String, String> envVars,
+                                Collection<String> removedEnvVars) throws EnvVarsMismatchException {
+        if (envVars == null) {
+            envVars = Collections.emptyMap();
+        }
+        if (baseHash == null) {
+            if (hash != null && functionArn != null) {
+                putSnapshot(functionArn, hash, envVars);
+            }
+            return envVars;
+        }
+        Map<String, String> baseEnvVars = functionArn != null ? getSnapshot(functionArn, baseHash) : null;
+        if (baseEnvVars == null) {
+            throw new EnvVarsMismatchException(String.format(
+                    "No environment variables snapshot with hash %s for function %s", baseHash, functionArn));
+        }
+        if (envVars.isEmpty() && (removedEnvVars == null || removedEnvVars.isEmpty())) {
+            return baseEnvVars;
+        }
+        Map<String, String> resolvedEnvVars = new HashMap<>(baseEnvVars);
+        resolvedEnvVars.putAll(envVars);
+        if (removedEnvVars != null) {
+            resolvedEnvVars.keySet().removeAll(removedEnvVars);
+        }
+        if (hash != null) {
+            putSnapshot(functionArn, hash, resolvedEnvVars);
+        }
+        return resolvedEnvVars;
+    }
+
+}
@@ -0,0 +1,107 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.handler.ws;
+
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.common.utils.IdUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Chunks the response written by the handler into ordered response part messages
+ * and sends them to GateKeeper as they are filled or flushed,
+ * so GateKeeper can relay the response while the handler is still writing it.
+ *
+ * Parts are correlated with the request by its message id instead of the response of the message,
+ * as the final response message (which carries the part count) completes the request on GateKeeper side.
+ *
+ * @author serkan
+ */
+final class ResponsePartOutputStream extends OutputStream {
+
+    static final String PART_OF_ATTRIBUTE_NAME = "partOf";
+    static final String PART_NO_ATTRIBUTE_NAME = "partNo";
+    static final String PART_ATTRIBUTE_NAME = "part";
+
+    private final BrokerClient brokerClient;
+    private final BrokerMessage brokerResponseMessage;
+    private final byte[] buffer;
+    private int position;
+    private int partCount;
+
+    /**
+     * @param brokerClient          the {@link BrokerClient} to send the parts over
+     * @param brokerResponseMessage the response message of the request whose routing is used by the parts
+     * @param partSize              maximum size of a part in bytes
+     */
+    ResponsePartOutputStream(BrokerClient brokerClient, BrokerMessage brokerResponseMessage, int partSize) {
+        this.brokerClient = brokerClient;
+        this.brokerResponseMessage = brokerResponseMessage;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (position == buffer.length) {
+            sendPart();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position == buffer.length) {
+                sendPart();
+            }
+            int size = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, size);
+            position += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (position > 0) {
+            sendPart();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return the number of the sent parts
+     */
+    synchronized int getPartCount() {
+        return partCount;
+    }
+
+    private void sendPart() throws IOException {
+        // Parts are sent as Base64, so multi-byte characters split across parts are not corrupted
+        String part = Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, position));
+        BrokerMessage partMessage =
+                new BrokerMessage().
+                        withId(IdUtils.generateId()).
+                        withType(BrokerConstants.CLIENT_RESPONSE_PART_MESSAGE_TYPE).
+                        withConnectionName(brokerResponseMessage.getConnectionName()).
+                        withSourceConnectionId(brokerResponseMessage.getSourceConnectionId()).
+                        withSourceConnectionType(brokerResponseMessage.getSourceConnectionType()).
+                        withTargetConnectionId(brokerResponseMessage.getTargetConnectionId()).
+                        withTargetConnectionType(brokerResponseMessage.getTargetConnectionType()).
+                        withDataAttribute(PART_OF_ATTRIBUTE_NAME, brokerResponseMessage.getResponseOf()).
+                        withDataAttribute(PART_NO_ATTRIBUTE_NAME, partCount).
+                        withDataAttribute(PART_ATTRIBUTE_NAME, part);
+        brokerClient.send(partMessage);
+        partCount++;
+        position = 0;
+    }
+
+}
@@ -1,12 +1,18 @@
 package io.thundra.merloc.aws.lambda.runtime.embedded.handler.ws;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.ErrorCoded;
 import io.thundra.merloc.aws.lambda.runtime.embedded.exception.HandlerExecutionException;
+import io.thundra.merloc.broker.client.BrokerBatchingOptions;
 import io.thundra.merloc.broker.client.BrokerConnectionType;
 import io.thundra.merloc.broker.client.BrokerConstants;
 import io.thundra.merloc.broker.client.BrokerCredentials;
-import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import io.thundra.merloc.broker.client.BrokerPayload;
+import io.thundra.merloc.broker.client.BrokerRetransmitOptions;
 import io.thundra.merloc.broker.client.Error;
+import io.thundra.merloc.broker.client.StackFrame;
+import io.thundra.merloc.broker.client.StreamingBrokerMessageCallback;
 import io.thundra.merloc.aws.lambda.runtime.embedded.InvocationExecutor;
 import io.thundra.merloc.aws.lambda.runtime.embedded.handler.InvocationHandler;
 import io.thundra.merloc.broker.client.BrokerClient;
@@ -15,12 +21,15 @@ import io.thundra.merloc.broker.client.BrokerMessage;
 import io.thundra.merloc.common.config.ConfigManager;
 import io.thundra.merloc.common.logger.StdLogger;
 import io.thundra.merloc.common.utils.ExceptionUtils;
+import io.thundra.merloc.common.utils.IdUtils;
 import io.thundra.merloc.common.utils.StringUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -34,8 +43,15 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             "merloc.broker.connection.name";
     private static final String API_KEY_CONFIG_NAME =
             "merloc.apikey";
+    private static final String BROKER_STREAMING_ENABLE_CONFIG_NAME =
+            "merloc.broker.streaming.enable";
+    private static final String BROKER_CONNECTION_POOL_ENABLE_CONFIG_NAME =
+            "merloc.broker.connection.pool.enable";
+    private static final String CAPACITY_PUBLISH_ENABLE_CONFIG_NAME =
+            "merloc.capacity.publish.enable";
     private static final int BROKER_NORMAL_CLOSE_CODE = 1000;
     private static final String BROKER_NORMAL_CLOSE_REASON = "Bye";
+    private static final int RESPONSE_PART_SIZE = 16 * 1024; // 16KB
 
     private static final String AWS_LAMBDA_REGION_ATTRIBUTE_NAME = "region";
     private static final String AWS_LAMBDA_REQUEST_ID_ATTRIBUTE_NAME = "requestId";
@@ -45,19 +61,36 @@ public class WebSocketInvocationHandler implements InvocationHandler {
     private static final String AWS_LAMBDA_FUNCTION_VERSION_ATTRIBUTE_NAME = "functionVersion";
     private static final String AWS_LAMBDA_RUNTIME_ATTRIBUTE_NAME = "runtime";
     private static final String AWS_LAMBDA_TIMEOUT_ATTRIBUTE_NAME = "timeout";
+    private static final String AWS_LAMBDA_DEADLINE_ATTRIBUTE_NAME = "deadline";
     private static final String AWS_LAMBDA_MEMORY_SIZE_ATTRIBUTE_NAME = "memorySize";
     private static final String AWS_LAMBDA_LOG_GROUP_NAME_ATTRIBUTE_NAME = "logGroupName";
     private static final String AWS_LAMBDA_LOG_STREAM_NAME_ATTRIBUTE_NAME = "logStreamName";
     private static final String AWS_LAMBDA_ENV_VARS_ATTRIBUTE_NAME = "envVars";
+    private static final String AWS_LAMBDA_ENV_VARS_HASH_ATTRIBUTE_NAME = "envVarsHash";
+    private static final String AWS_LAMBDA_ENV_VARS_BASE_HASH_ATTRIBUTE_NAME = "envVarsBaseHash";
+    private static final String AWS_LAMBDA_REMOVED_ENV_VARS_ATTRIBUTE_NAME = "removedEnvVars";
     private static final String AWS_LAMBDA_CLIENT_CONTEXT_ATTRIBUTE_NAME = "clientContext";
     private static final String AWS_LAMBDA_COGNITO_IDENTITY_ATTRIBUTE_NAME = "cognitoIdentity";
     private static final String AWS_LAMBDA_REQUEST_ATTRIBUTE_NAME = "request";
+    private static final String AWS_LAMBDA_RESPONSE_STREAMING_ATTRIBUTE_NAME = "responseStreaming";
+    private static final String AWS_LAMBDA_RESPONSE_PART_COUNT_ATTRIBUTE_NAME = "partCount";
+    private static final String RECEIVED_AT_ATTRIBUTE_NAME = "receivedAt";
+    private static final String RESPONDED_AT_ATTRIBUTE_NAME = "respondedAt";
 
     private final InvocationExecutor invocationExecutor;
+    private final boolean streamingEnabled = isStreamingEnabled();
+    private final EnvVarsSnapshots envVarsSnapshots = new EnvVarsSnapshots();
+    private final CapacityPublisher capacityPublisher = isCapacityPublishEnabled() ? new CapacityPublisher() : null;
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().
+                    configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     private BrokerClient brokerClient;
 
     public WebSocketInvocationHandler(InvocationExecutor invocationExecutor) {
         this.invocationExecutor = invocationExecutor;
+        if (capacityPublisher != null) {
+            invocationExecutor.setCapacityListener(capacityPublisher);
+        }
     }
 
     private static String getBrokerURL() {
@@ -74,6 +107,18 @@ public class WebSocketInvocationHandler implements InvocationHandler {
         return ConfigManager.getConfig(API_KEY_CONFIG_NAME);
     }
 
+    private static boolean isStreamingEnabled() {
+        return ConfigManager.getBooleanConfig(BROKER_STREAMING_ENABLE_CONFIG_NAME, false);
+    }
+
+    private static boolean isConnectionPoolEnabled() {
+        return ConfigManager.getBooleanConfig(BROKER_CONNECTION_POOL_ENABLE_CONFIG_NAME, false);
+    }
+
+    private static boolean isCapacityPublishEnabled() {
+        return ConfigManager.getBooleanConfig(CAPACITY_PUBLISH_ENABLE_CONFIG_NAME, false);
+    }
+
     @Override
     public void start() throws IOException {
         String url = getBrokerURL();
@@ -93,6 +138,13 @@ public class WebSocketInvocationHandler implements InvocationHandler {
                         withConnectionName(connectionName).
                         withConnectionType(BrokerConnectionType.CLIENT).
                         withApiKey(apiKey);
+        if (isConnectionPoolEnabled()) {
+            // Join the pool of the connection name instead of overriding the other runtimes connected with it
+            String instanceId = IdUtils.generateId();
+            credentials.withInstanceId(instanceId);
+            StdLogger.info(String.format(
+                    "Joining pool of connection name %s with instance id %s", connectionName, instanceId));
+        }
 
         CompletableFuture connectedFuture = new CompletableFuture();
         connectedFuture.whenComplete((val, error) -> {
@@ -114,7 +166,9 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             brokerClient =
                     BrokerClientFactory.createWebSocketClient(
                             url, credentials,
-                            new BrokerMessageHandler(), connectedFuture, closedFuture);
+                            new BrokerMessageHandler(), connectedFuture, closedFuture,
+                            BrokerBatchingOptions.fromConfig(),
+                            BrokerRetransmitOptions.fromConfig());
             brokerClient.waitUntilConnected();
         } catch (Exception e) {
             throw new IOException("Unable to connect to broker");
@@ -131,13 +185,39 @@ public class WebSocketInvocationHandler implements InvocationHandler {
         invocationExecutor.close();
     }
 
-    private class BrokerMessageHandler implements BrokerMessageCallback {
+    private class BrokerMessageHandler implements StreamingBrokerMessageCallback {
 
         @Override
         public void onMessage(BrokerClient brokerClient, BrokerMessage message) {
             handleMessage(brokerClient, message);
         }
 
+        @Override
+        public boolean isStreamingSupported(String messageType) {
+            return streamingEnabled && BrokerConstants.CLIENT_REQUEST_MESSAGE_TYPE.equalsIgnoreCase(messageType);
+        }
+
+        @Override
+        public void onMessageStream(BrokerClient brokerClient, BrokerMessage message, InputStream payloadStream) {
+            // Deserialize the payload progressively while its remaining fragments are still in transit
+            BrokerPayload payload;
+            try {
+                payload = objectMapper.readValue(payloadStream, BrokerPayload.class);
+            } catch (Throwable error) {
+                StdLogger.error(String.format("Unable to deserialize broker message stream: %s", message), error);
+                return;
+            }
+            if (payload == null) {
+                StdLogger.error("Empty payload in broker message stream");
+                return;
+            }
+            handleMessage(
+                    brokerClient,
+                    message.
+                            withData(payload.getData()).
+                            withError(payload.getError()));
+        }
+
         private void sendPingResponse(BrokerClient brokerClient, String functionName,
                                       BrokerMessage brokerResponseMessage) {
             brokerResponseMessage.setType(BrokerConstants.CLIENT_PONG_MESSAGE_TYPE);
@@ -158,6 +238,7 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             brokerResponseMessage.
                     withType(BrokerConstants.CLIENT_RESPONSE_MESSAGE_TYPE).
                     withDataAttribute("response", response);
+            markResponded(brokerResponseMessage);
 
             try {
                 brokerClient.send(brokerResponseMessage);
@@ -170,6 +251,26 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             }
         }
 
+        private void sendStreamedClientResponse(BrokerClient brokerClient, String functionName,
+                                                BrokerMessage brokerResponseMessage, int partCount) {
+            // Response itself has already been sent as parts,
+            // so let GateKeeper know how many parts to wait for
+            brokerResponseMessage.
+                    withType(BrokerConstants.CLIENT_RESPONSE_MESSAGE_TYPE).
+                    withDataAttribute(AWS_LAMBDA_RESPONSE_PART_COUNT_ATTRIBUTE_NAME, partCount);
+            markResponded(brokerResponseMessage);
+
+            try {
+                brokerClient.send(brokerResponseMessage);
+            } catch (Throwable err) {
+                StdLogger.error(
+                        String.format(
+                                "Failed sending streamed response for invocation of function %s",
+                                functionName),
+                        err);
+            }
+        }
+
         private void sendErrorResponse(BrokerClient brokerClient, String functionName,
                                        BrokerMessage brokerResponseMessage, Throwable err) {
             Throwable effectiveError = err;
@@ -189,7 +290,8 @@ public class WebSocketInvocationHandler implements InvocationHandler {
                     new Error().
                             withType(effectiveError.getClass().getName()).
                             withMessage(effectiveError.getMessage()).
-                            withStackTrace(extractStackTrace(effectiveError));
+                            withStackTrace(extractStackTrace(effectiveError)).
+                            withStackFrames(extractStackFrames(effectiveError));
 
             if (errorCode != null) {
                 error = error.withCode(errorCode);
@@ -201,6 +303,7 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             brokerResponseMessage.
                     withType(BrokerConstants.CLIENT_ERROR_MESSAGE_TYPE).
                     withError(error);
+            markResponded(brokerResponseMessage);
 
             try {
                 brokerClient.send(brokerResponseMessage);
@@ -213,6 +316,13 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             }
         }
 
+        private void markResponded(BrokerMessage brokerResponseMessage) {
+            if (brokerResponseMessage.getDataAttribute(RECEIVED_AT_ATTRIBUTE_NAME) != null) {
+                // Together with the receive time, lets GateKeeper estimate the clock offset between us
+                brokerResponseMessage.withDataAttribute(RESPONDED_AT_ATTRIBUTE_NAME, System.currentTimeMillis());
+            }
+        }
+
         private String[] extractStackTrace(Throwable error) {
             StackTraceElement[] stackTraceElements = error.getStackTrace();
             String[] stackTrace = new String[stackTraceElements.length];
@@ -223,6 +333,15 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             return stackTrace;
         }
 
+        private StackFrame[] extractStackFrames(Throwable error) {
+            StackTraceElement[] stackTraceElements = error.getStackTrace();
+            StackFrame[] stackFrames = new StackFrame[stackTraceElements.length];
+            for (int i = 0; i < stackTraceElements.length; i++) {
+                stackFrames[i] = StackFrame.of(stackTraceElements[i]);
+            }
+            return stackFrames;
+        }
+
         private void handlePingRequest(BrokerClient brokerClient,
                                        BrokerMessage brokerRequestMessage,
                                        BrokerMessage brokerResponseMessage) {
@@ -232,6 +351,10 @@ public class WebSocketInvocationHandler implements InvocationHandler {
         private void handleClientRequest(BrokerClient brokerClient,
                                          BrokerMessage brokerRequestMessage,
                                          BrokerMessage brokerResponseMessage) {
+            long receivedAt = System.currentTimeMillis();
+            if (capacityPublisher != null) {
+                capacityPublisher.onRequest(brokerClient, brokerRequestMessage);
+            }
             String request =
                     brokerRequestMessage.getDataAttribute(AWS_LAMBDA_REQUEST_ATTRIBUTE_NAME);
             String region =
@@ -252,6 +375,8 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             int timeout =
                     brokerRequestMessage.getDataAttribute(
                             AWS_LAMBDA_TIMEOUT_ATTRIBUTE_NAME, InvocationExecutor.DEFAULT_TIMEOUT);
+            Number deadline =
+                    brokerRequestMessage.getDataAttribute(AWS_LAMBDA_DEADLINE_ATTRIBUTE_NAME);
             int memorySize =
                     brokerRequestMessage.getDataAttribute(
                             AWS_LAMBDA_MEMORY_SIZE_ATTRIBUTE_NAME, InvocationExecutor.DEFAULT_MEMORY_SIZE);
@@ -262,16 +387,66 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             Map<String, String> envVars =
                     brokerRequestMessage.getDataAttribute(
                             AWS_LAMBDA_ENV_VARS_ATTRIBUTE_NAME, Collections.EMPTY_MAP);
+            String envVarsHash =
+                    brokerRequestMessage.getDataAttribute(AWS_LAMBDA_ENV_VARS_HASH_ATTRIBUTE_NAME);
+            String envVarsBaseHash =
+                    brokerRequestMessage.getDataAttribute(AWS_LAMBDA_ENV_VARS_BASE_HASH_ATTRIBUTE_NAME);
+            List<String> removedEnvVars =
+                    brokerRequestMessage.getDataAttribute(AWS_LAMBDA_REMOVED_ENV_VARS_ATTRIBUTE_NAME);
             String clientContext =
                     brokerRequestMessage.getDataAttribute(AWS_LAMBDA_CLIENT_CONTEXT_ATTRIBUTE_NAME);
             String cognitoIdentity =
                     brokerRequestMessage.getDataAttribute(AWS_LAMBDA_COGNITO_IDENTITY_ATTRIBUTE_NAME);
+            boolean responseStreaming =
+                    brokerRequestMessage.getDataAttribute(AWS_LAMBDA_RESPONSE_STREAMING_ATTRIBUTE_NAME, false);
+
+            if (deadline != null) {
+                // GateKeeper sends the deadline already adjusted to our clock,
+                // so let it know when the request has been received to keep the adjustment up to date
+                brokerResponseMessage.withDataAttribute(RECEIVED_AT_ATTRIBUTE_NAME, receivedAt);
+            }
+            // Timeout is relative to the time the request was built on GateKeeper side,
+            // so it is only used if GateKeeper doesn't send the absolute deadline
+            long invocationDeadline =
+                    deadline != null
+                            ? deadline.longValue()
+                            : InvocationExecutor.toDeadline(timeout);
 
             try {
+                // Environment variables might be sent as delta of the latest snapshot
+                Map<String, String> resolvedEnvVars =
+                        envVarsSnapshots.resolve(
+                                functionArn, envVarsHash, envVarsBaseHash, envVars, removedEnvVars);
+                if (envVarsHash != null) {
+                    // Let GateKeeper know that it can send delta based on this snapshot from now on
+                    brokerResponseMessage.withDataAttribute(AWS_LAMBDA_ENV_VARS_HASH_ATTRIBUTE_NAME, envVarsHash);
+                }
+                // Environment variables are normalized during execution, so keep the snapshot as is
+                envVars = new HashMap<>(resolvedEnvVars);
+
+                if (responseStreaming) {
+                    // Relay the response to GateKeeper in parts as the handler writes it
+                    ResponsePartOutputStream responseStream =
+                            new ResponsePartOutputStream(brokerClient, brokerResponseMessage, RESPONSE_PART_SIZE);
+                    invocationExecutor.execute(
+                            request, region, requestId, handler,
+                            functionArn, functionName, functionVersion,
+                            runtime, invocationDeadline, memorySize,
+                            logGroupName, logStreamName,
+                            envVars, clientContext, cognitoIdentity,
+                            InvocationExecutor.DEFAULT_LAST_MODIFIED,
+                            responseStream);
+                    responseStream.close();
+
+                    sendStreamedClientResponse(
+                            brokerClient, functionName, brokerResponseMessage, responseStream.getPartCount());
+                    return;
+                }
+
                 String response = invocationExecutor.execute(
                         request, region, requestId, handler,
                         functionArn, functionName, functionVersion,
-                        runtime, timeout, memorySize,
+                        runtime, invocationDeadline, memorySize,
                         logGroupName, logStreamName,
                         envVars, clientContext, cognitoIdentity,
                         InvocationExecutor.DEFAULT_LAST_MODIFIED);
@@ -304,7 +479,7 @@ public class WebSocketInvocationHandler implements InvocationHandler {
             try {
                 BrokerMessage brokerResponseMessage =
                         new BrokerMessage().
-                                withId(UUID.randomUUID().toString()).
+                                withId(IdUtils.generateId()).
                                 withResponseOf(brokerRequestMessage.getId()).
                                 withConnectionName(brokerRequestMessage.getConnectionName()).
                                 withSourceConnectionId(brokerRequestMessage.getTargetConnectionId()).
@@ -0,0 +1,79 @@
+package io.thundra.merloc.aws.lambda.runtime.embedded.handler.ws;
+
+import io.thundra.merloc.aws.lambda.runtime.embedded.exception.EnvVarsMismatchException;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author serkan
+ */
+public class EnvVarsSnapshotsTest {
+
+    private static final String FUNCTION_ARN = "arn:aws:lambda:us-west-2:123456789012:function:test";
+
+    private static Map<String, String> envVars(String... nameValues) {
+        Map<String, String> envVars = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            envVars.put(nameValues[i], nameValues[i + 1]);
+        }
+        return envVars;
+    }
+
+    @Test
+    public void deltaShouldBeResolvedOverBaseSnapshot() throws Exception {
+        EnvVarsSnapshots snapshots = new EnvVarsSnapshots();
+        snapshots.resolve(FUNCTION_ARN, "h1", null, envVars("A", "1", "B", "2"), null);
+
+        Map<String, String> resolved =
+                snapshots.resolve(FUNCTION_ARN, "h2", "h1", envVars("A", "3"), Collections.singletonList("B"));
+
+        assertEquals(envVars("A", "3"), resolved);
+        // Resolved one becomes a base as well
+        assertEquals(envVars("A", "3"), snapshots.resolve(FUNCTION_ARN, "h2", "h2", null, null));
+    }
+
+    @Test
+    public void snapshotsOfSameFunctionWithDifferentEnvVarsShouldNotEvictEachOther() throws Exception {
+        EnvVarsSnapshots snapshots = new EnvVarsSnapshots();
+        // Two GateKeeper containers of the same function with different environment variables
+        snapshots.resolve(FUNCTION_ARN, "h1", null, envVars("VERSION", "1"), null);
+        snapshots.resolve(FUNCTION_ARN, "h2", null, envVars("VERSION", "2"), null);
+
+        assertEquals(envVars("VERSION", "1"), snapshots.resolve(FUNCTION_ARN, "h1", "h1", null, null));
+        assertEquals(envVars("VERSION", "2"), snapshots.resolve(FUNCTION_ARN, "h2", "h2", null, null));
+    }
+
+    @Test(expected = EnvVarsMismatchException.class)
+    public void unknownBaseHashShouldFail() throws Exception {
+        EnvVarsSnapshots snapshots = new EnvVarsSnapshots();
+        snapshots.resolve(FUNCTION_ARN, "h1", null, envVars("A", "1"), null);
+
+        snapshots.resolve("arn:aws:lambda:us-west-2:123456789012:function:other", "h1", "h1", null, null);
+    }
+
+    @Test
+    public void leastRecentlyUsedSnapshotShouldBeEvicted() throws Exception {
+        EnvVarsSnapshots snapshots = new EnvVarsSnapshots(2);
+        snapshots.resolve(FUNCTION_ARN, "h1", null, envVars("VERSION", "1"), null);
+        snapshots.resolve(FUNCTION_ARN, "h2", null, envVars("VERSION", "2"), null);
+        // Makes "h2" the least recently used one
+        snapshots.resolve(FUNCTION_ARN, "h1", "h1", null, null);
+        snapshots.resolve(FUNCTION_ARN, "h3", null, envVars("VERSION", "3"), null);
+
+        assertEquals(envVars("VERSION", "1"), snapshots.resolve(FUNCTION_ARN, "h1", "h1", null, null));
+        assertEquals(envVars("VERSION", "3"), snapshots.resolve(FUNCTION_ARN, "h3", "h3", null, null));
+        try {
+            snapshots.resolve(FUNCTION_ARN, "h2", "h2", null, null);
+            fail("Evicted snapshot should not be resolved");
+        } catch (EnvVarsMismatchException e) {
+            // Expected, so GateKeeper sends the full environment variables again
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package io.thundra.merloc.aws.lambda.core.handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of buffering the request in <code>WrapperLambdaHandler</code>:
+ * reading byte by byte into a fixed size buffer and copying it (previous path),
+ * bulk reading into the pooled buffers (current path)
+ * and bulk reading into the newly allocated buffers (current path without pooling).
+ *
+ * It is in the package of the handler to access the package-private buffering internals.
+ * Run with <code>-prof gc</code> to compare the allocations as well.
+ *
+ * @author serkan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBufferingBenchmark {
+
+    private static final int FIXED_BUFFER_SIZE = 3 * 1024 * 1024; // 3MB
+    private static final long MAX_RETAINED_SIZE = 8 * 1024 * 1024; // 8MB
+
+    /**
+     * Size of the request, up to the size of the fixed buffer of the previous path
+     */
+    @Param({"1024", "65536", "1048576", "3145728"})
+    private int requestSize;
+
+    private byte[] request;
+    private final ByteBuffer fixedBuffer = ByteBuffer.allocate(FIXED_BUFFER_SIZE);
+    private final RequestBufferPool pool = new RequestBufferPool(MAX_RETAINED_SIZE);
+    // Nothing is retained, so every request allocates its buffer
+    private final RequestBufferPool nonRetainingPool = new RequestBufferPool(0);
+
+    @Setup
+    public void setUp() {
+        request = new byte[requestSize];
+        new Random(requestSize).nextBytes(request);
+    }
+
+    @Benchmark
+    public byte[] readByteByByteIntoFixedBuffer() throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(request);
+        fixedBuffer.clear();
+        while (inputStream.available() > 0) {
+            fixedBuffer.put((byte) inputStream.read());
+        }
+        return Arrays.copyOf(fixedBuffer.array(), fixedBuffer.position());
+    }
+
+    @Benchmark
+    public int readIntoPooledBuffer() throws IOException {
+        return readAndRelease(pool);
+    }
+
+    @Benchmark
+    public int readIntoAllocatedBuffer() throws IOException {
+        return readAndRelease(nonRetainingPool);
+    }
+
+    private int readAndRelease(RequestBufferPool requestBufferPool) throws IOException {
+        RequestInputStream requestStream =
+                WrapperLambdaHandler.wrapInputStream(new ByteArrayInputStream(request), requestBufferPool);
+        try {
+            return requestStream.getLength();
+        } finally {
+            requestBufferPool.release(requestStream.getBuffer());
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.thundra.merloc.benchmark.broker;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerEnvelope;
+import io.thundra.merloc.broker.client.BrokerPayload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the receive paths of the binary broker frames:
+ * decoding the frame into a string before parsing it (previous path)
+ * and parsing it directly over the frame bytes (current path of <code>OkHttpWebSocketBrokerClient</code>).
+ *
+ * Run with <code>-prof gc</code> to compare the allocations as well.
+ *
+ * @author serkan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryFrameReceiveBenchmark {
+
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().
+                    configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false).
+                    configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Size of the payload in the frame, up to the max frame size of the broker client
+     */
+    @Param({"256", "4096", "16384"})
+    private int payloadSize;
+
+    // Raw bytes are kept instead of "ByteString" as it caches its decoded string
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(payloadSize);
+        StringBuilder body = new StringBuilder(payloadSize);
+        while (body.length() < payloadSize) {
+            body.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(16) == 0) {
+                body.append('"');
+            }
+        }
+        String payload =
+                objectMapper.writeValueAsString(
+                        new BrokerPayload().withDataAttribute("request", body.toString()));
+        BrokerEnvelope envelope =
+                new BrokerEnvelope().
+                        withId(UUID.randomUUID().toString()).
+                        withConnectionName("benchmark").
+                        withSourceConnectionId(UUID.randomUUID().toString()).
+                        withSourceConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                        withTargetConnectionId(UUID.randomUUID().toString()).
+                        withTargetConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE).
+                        withType(BrokerConstants.CLIENT_REQUEST_MESSAGE_TYPE).
+                        withPayload(payload);
+        frame = objectMapper.writeValueAsString(envelope).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public BrokerEnvelope parseFromDecodedString() throws IOException {
+        // Equivalent of "ByteString.utf8()" on a newly received frame
+        return objectMapper.readValue(new String(frame, StandardCharsets.UTF_8), BrokerEnvelope.class);
+    }
+
+    @Benchmark
+    public BrokerEnvelope parseFromFrameBytes() throws IOException {
+        // Equivalent of "ByteString.asByteBuffer()" which wraps the frame bytes without copying
+        try (InputStream inputStream = new ByteBufferBackedInputStream(ByteBuffer.wrap(frame).asReadOnlyBuffer())) {
+            return objectMapper.readValue(inputStream, BrokerEnvelope.class);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package io.thundra.merloc.benchmark.gatekeeper;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import io.thundra.merloc.aws.lambda.gatekeeper.handler.GateKeeperLambdaHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cold start (loading and creating the handler and serving the first request)
+ * of the GateKeeper while MerLoc is disabled, compared to the original handler alone.
+ *
+ * Each invocation loads the classes from scratch by a new class loader,
+ * so the classes loaded by the previous invocations don't hide the cost of loading them.
+ *
+ * @author serkan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(3)
+public class ColdStartBenchmark {
+
+    private static final byte[] REQUEST = "{\"hello\":\"world\"}".getBytes(StandardCharsets.UTF_8);
+
+    private URL[] classPath;
+    private URLClassLoader classLoader;
+
+    public static class EchoHandler implements RequestStreamHandler {
+
+        @Override
+        public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("merloc.enable", "false");
+        System.setProperty("merloc.aws.lambda.handler", EchoHandler.class.getName());
+        List<URL> urls = new ArrayList<>();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+        classPath = urls.toArray(new URL[0]);
+    }
+
+    @Setup(Level.Invocation)
+    public void createClassLoader() {
+        // Not delegated to the application class loader, so all the classes are loaded again
+        classLoader = new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeClassLoader() throws IOException {
+        classLoader.close();
+    }
+
+    private byte[] handleFirstRequest(String handlerClassName) throws Exception {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader originalContextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            Class<?> handlerClass = classLoader.loadClass(handlerClassName);
+            Object handler = handlerClass.getConstructor().newInstance();
+            Method handleRequestMethod =
+                    handlerClass.getMethod(
+                            "handleRequest",
+                            InputStream.class, OutputStream.class, classLoader.loadClass(Context.class.getName()));
+            ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+            handleRequestMethod.invoke(handler, new ByteArrayInputStream(REQUEST), responseStream, null);
+            return responseStream.toByteArray();
+        } finally {
+            currentThread.setContextClassLoader(originalContextClassLoader);
+        }
+    }
+
+    @Benchmark
+    public byte[] originalHandler() throws Exception {
+        return handleFirstRequest(EchoHandler.class.getName());
+    }
+
+    @Benchmark
+    public byte[] disabledGateKeeper() throws Exception {
+        return handleFirstRequest(GateKeeperLambdaHandler.class.getName());
+    }
+
+}
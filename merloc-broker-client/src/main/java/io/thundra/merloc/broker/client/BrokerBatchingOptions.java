@@ -0,0 +1,105 @@
+package io.thundra.merloc.broker.client;
+
+import io.thundra.merloc.common.config.ConfigManager;
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options for coalescing small outbound broker messages into a single frame.
+ *
+ * Only messages whose type has a positive batch window are batched.
+ * Other messages (e.g. latency-sensitive replies) are sent immediately as their own frame.
+ *
+ * @author serkan
+ */
+public class BrokerBatchingOptions {
+
+    /**
+     * Comma separated <code>&lt;message type&gt;=&lt;window in millis&gt;</code> pairs,
+     * for example <code>client.pong=20,client.response=5</code>
+     */
+    public static final String BATCH_WINDOWS_CONFIG_NAME = "merloc.broker.batch.windows";
+    public static final String BATCH_MAX_SIZE_CONFIG_NAME = "merloc.broker.batch.max.size";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16 * 1024;
+
+    private final Map<String, Long> batchWindows = new HashMap<>();
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    public static BrokerBatchingOptions fromConfig() {
+        String batchWindowsConfig = ConfigManager.getConfig(BATCH_WINDOWS_CONFIG_NAME);
+        if (StringUtils.isNullOrEmpty(batchWindowsConfig)) {
+            return null;
+        }
+        BrokerBatchingOptions options =
+                new BrokerBatchingOptions().
+                        withMaxBatchSize(
+                                ConfigManager.getIntegerConfig(
+                                        BATCH_MAX_SIZE_CONFIG_NAME, DEFAULT_MAX_BATCH_SIZE));
+        for (String batchWindowConfig : batchWindowsConfig.split(",")) {
+            int idx = batchWindowConfig.indexOf('=');
+            if (idx <= 0) {
+                StdLogger.warn(String.format("Ignoring invalid batch window config: %s", batchWindowConfig));
+                continue;
+            }
+            String messageType = batchWindowConfig.substring(0, idx).trim();
+            try {
+                long window = Long.parseLong(batchWindowConfig.substring(idx + 1).trim());
+                options.withBatchWindow(messageType, window);
+            } catch (NumberFormatException e) {
+                StdLogger.warn(String.format("Ignoring invalid batch window config: %s", batchWindowConfig));
+            }
+        }
+        return options.isEnabled() ? options : null;
+    }
+
+    public boolean isEnabled() {
+        for (Long window : batchWindows.values()) {
+            if (window > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getBatchWindow(String messageType) {
+        if (messageType == null) {
+            return 0;
+        }
+        return batchWindows.getOrDefault(messageType, 0L);
+    }
+
+    public Map<String, Long> getBatchWindows() {
+        return batchWindows;
+    }
+
+    public BrokerBatchingOptions withBatchWindow(String messageType, long windowMillis) {
+        batchWindows.put(messageType, windowMillis);
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public BrokerBatchingOptions withMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerBatchingOptions{" +
+                "batchWindows=" + batchWindows +
+                ", maxBatchSize=" + maxBatchSize +
+                '}';
+    }
+
+}
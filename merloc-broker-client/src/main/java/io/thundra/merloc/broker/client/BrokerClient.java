@@ -1,6 +1,7 @@
 package io.thundra.merloc.broker.client;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -13,10 +14,20 @@ public interface BrokerClient {
     boolean isConnected();
     boolean waitUntilConnected();
     boolean waitUntilConnected(long timeout, TimeUnit unit);
+    default boolean isOpen() {
+        return isConnected();
+    }
 
     void send(BrokerMessage brokerMessage) throws IOException;
     BrokerMessage sendAndGetResponse(BrokerMessage brokerMessage,
                                      long timeout, TimeUnit timeUnit) throws IOException;
+    // Waits for the response before returning,
+    // so the implementations should override it to send without waiting
+    default CompletableFuture<BrokerMessage> sendAndGetResponseFuture(BrokerMessage brokerMessage,
+                                                                      long timeout,
+                                                                      TimeUnit timeUnit) throws IOException {
+        return CompletableFuture.completedFuture(sendAndGetResponse(brokerMessage, timeout, timeUnit));
+    }
 
     void sendCloseMessage(int code, String reason) throws IOException;
     void close();
@@ -22,4 +22,28 @@ public final class BrokerClientFactory {
                 brokerMessageCallback, null, connectedFuture, closedFuture);
     }
 
+    public static BrokerClient createWebSocketClient(String url,
+                                                     BrokerCredentials brokerCredentials,
+                                                     BrokerMessageCallback brokerMessageCallback,
+                                                     CompletableFuture connectedFuture,
+                                                     CompletableFuture closedFuture,
+                                                     BrokerBatchingOptions batchingOptions) throws Exception {
+        return new OkHttpWebSocketBrokerClient(
+                url, brokerCredentials,
+                brokerMessageCallback, null, connectedFuture, closedFuture, batchingOptions);
+    }
+
+    public static BrokerClient createWebSocketClient(String url,
+                                                     BrokerCredentials brokerCredentials,
+                                                     BrokerMessageCallback brokerMessageCallback,
+                                                     CompletableFuture connectedFuture,
+                                                     CompletableFuture closedFuture,
+                                                     BrokerBatchingOptions batchingOptions,
+                                                     BrokerRetransmitOptions retransmitOptions) throws Exception {
+        return new OkHttpWebSocketBrokerClient(
+                url, brokerCredentials,
+                brokerMessageCallback, null, connectedFuture, closedFuture,
+                batchingOptions, retransmitOptions);
+    }
+
 }
@@ -20,9 +20,15 @@ public interface BrokerConstants {
     String CLIENT_PONG_MESSAGE_TYPE = "client.pong";
     String CLIENT_REQUEST_MESSAGE_TYPE = "client.request";
     String CLIENT_RESPONSE_MESSAGE_TYPE = "client.response";
+    String CLIENT_RESPONSE_PART_MESSAGE_TYPE = "client.response.part";
+    String CLIENT_CAPACITY_MESSAGE_TYPE = "client.capacity";
+    String CLIENT_CONNECT_MESSAGE_TYPE = "client.connect";
     String CLIENT_DISCONNECT_MESSAGE_TYPE = "client.disconnect";
     String CLIENT_ERROR_MESSAGE_TYPE = "client.error";
     String CLIENT_CONNECTION_OVERRIDE_MESSAGE_TYPE = "client.connectionOverride";
     String BROKER_ERROR_MESSAGE_TYPE = "broker.error";
+    String BATCH_MESSAGE_TYPE = "batch";
+    String FRAGMENT_ACK_MESSAGE_TYPE = "fragment.ack";
+    String FRAGMENT_NACK_MESSAGE_TYPE = "fragment.nack";
 
 }
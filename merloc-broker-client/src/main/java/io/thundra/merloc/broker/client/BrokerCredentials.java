@@ -8,6 +8,7 @@ public class BrokerCredentials {
     private String connectionName;
     private BrokerConnectionType connectionType;
     private String apiKey;
+    private String instanceId;
 
     public String getConnectionName() {
         return connectionName;
@@ -48,4 +49,22 @@ public class BrokerCredentials {
         return this;
     }
 
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    /**
+     * Sets the instance id to register this connection to the pool of the connection name,
+     * so the connection coexists with the other connections having the same name but different instance ids
+     * instead of overriding them.
+     */
+    public BrokerCredentials withInstanceId(String instanceId) {
+        this.instanceId = instanceId;
+        return this;
+    }
+
 }
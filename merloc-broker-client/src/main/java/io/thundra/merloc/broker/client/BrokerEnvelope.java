@@ -19,6 +19,7 @@ public class BrokerEnvelope {
     private boolean fragmented;
     private int fragmentNo = -1;
     private int fragmentCount = -1;
+    private long fragmentChecksum = -1;
 
     public String getId() {
         return id;
@@ -176,6 +177,19 @@ public class BrokerEnvelope {
         return this;
     }
 
+    public long getFragmentChecksum() {
+        return fragmentChecksum;
+    }
+
+    public void setFragmentChecksum(long fragmentChecksum) {
+        this.fragmentChecksum = fragmentChecksum;
+    }
+
+    public BrokerEnvelope withFragmentChecksum(long fragmentChecksum) {
+        this.fragmentChecksum = fragmentChecksum;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "BrokerEnvelope{" +
@@ -191,6 +205,7 @@ public class BrokerEnvelope {
                 ", fragmented=" + fragmented +
                 ", fragmentNo=" + fragmentNo +
                 ", fragmentCount=" + fragmentCount +
+                ", fragmentChecksum=" + fragmentChecksum +
                 '}';
     }
 
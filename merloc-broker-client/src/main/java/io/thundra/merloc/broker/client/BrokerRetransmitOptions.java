@@ -0,0 +1,57 @@
+package io.thundra.merloc.broker.client;
+
+import io.thundra.merloc.common.config.ConfigManager;
+
+/**
+ * Options for selective retransmission of the lost or corrupted fragments of large outbound broker messages.
+ *
+ * When enabled, fragments are sent with their checksums and
+ * the fragmented messages are retained in a bounded buffer until they are acknowledged by the receiver,
+ * so the receiver can request only the missing fragments instead of waiting for the whole message again.
+ *
+ * @author serkan
+ */
+public class BrokerRetransmitOptions {
+
+    public static final String RETRANSMIT_ENABLE_CONFIG_NAME = "merloc.broker.retransmit.enable";
+    public static final String RETRANSMIT_BUFFER_SIZE_CONFIG_NAME = "merloc.broker.retransmit.buffer.size";
+
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+
+    public static BrokerRetransmitOptions fromConfig() {
+        if (!ConfigManager.getBooleanConfig(RETRANSMIT_ENABLE_CONFIG_NAME, false)) {
+            return null;
+        }
+        return new BrokerRetransmitOptions().
+                withMaxBufferSize(
+                        ConfigManager.getIntegerConfig(
+                                RETRANSMIT_BUFFER_SIZE_CONFIG_NAME, DEFAULT_MAX_BUFFER_SIZE));
+    }
+
+    public boolean isEnabled() {
+        return maxBufferSize > 0;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    public BrokerRetransmitOptions withMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerRetransmitOptions{" +
+                "maxBufferSize=" + maxBufferSize +
+                '}';
+    }
+
+}
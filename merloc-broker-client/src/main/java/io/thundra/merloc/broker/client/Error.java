@@ -10,6 +10,7 @@ public class Error {
     private String type;
     private String message;
     private String stackTrace[];
+    private StackFrame stackFrames[];
     private Integer code;
     private boolean internal;
 
@@ -52,6 +53,19 @@ public class Error {
         return this;
     }
 
+    public StackFrame[] getStackFrames() {
+        return stackFrames;
+    }
+
+    public void setStackFrames(StackFrame[] stackFrames) {
+        this.stackFrames = stackFrames;
+    }
+
+    public Error withStackFrames(StackFrame[] stackFrames) {
+        this.stackFrames = stackFrames;
+        return this;
+    }
+
     public Integer getCode() {
         return code;
     }
@@ -0,0 +1,84 @@
+package io.thundra.merloc.broker.client;
+
+/**
+ * Structured stack trace element of an {@link Error}.
+ *
+ * @author serkan
+ */
+public class StackFrame {
+
+    private String className;
+    private String methodName;
+    private String fileName;
+    private int lineNumber;
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public StackFrame withClassName(String className) {
+        this.className = className;
+        return this;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public void setMethodName(String methodName) {
+        this.methodName = methodName;
+    }
+
+    public StackFrame withMethodName(String methodName) {
+        this.methodName = methodName;
+        return this;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public StackFrame withFileName(String fileName) {
+        this.fileName = fileName;
+        return this;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    public StackFrame withLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+        return this;
+    }
+
+    public static StackFrame of(StackTraceElement ste) {
+        return new StackFrame().
+                withClassName(ste.getClassName()).
+                withMethodName(ste.getMethodName()).
+                withFileName(ste.getFileName()).
+                withLineNumber(ste.getLineNumber());
+    }
+
+    public StackTraceElement toStackTraceElement() {
+        return new StackTraceElement(className, methodName, fileName, lineNumber);
+    }
+
+    @Override
+    public String toString() {
+        return toStackTraceElement().toString();
+    }
+
+}
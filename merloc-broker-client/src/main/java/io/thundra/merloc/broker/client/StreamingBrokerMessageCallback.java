@@ -0,0 +1,34 @@
+package io.thundra.merloc.broker.client;
+
+import java.io.InputStream;
+
+/**
+ * {@link BrokerMessageCallback} which can consume fragmented messages progressively
+ * while their remaining fragments are still in transit.
+ *
+ * @author serkan
+ */
+public interface StreamingBrokerMessageCallback extends BrokerMessageCallback {
+
+    /**
+     * Checks whether fragmented messages of the given type should be delivered as stream.
+     *
+     * @param messageType type of the message
+     * @return <code>true</code> if messages of the given type should be streamed,
+     *         <code>false</code> otherwise
+     */
+    boolean isStreamingSupported(String messageType);
+
+    /**
+     * Called when the first fragment of a streamable message has been received.
+     *
+     * @param brokerClient  the {@link BrokerClient} which receives the message
+     * @param brokerMessage the received message without its data and error
+     * @param payloadStream the stream which provides the serialized {@link BrokerPayload} of the message
+     *                      in order as its fragments arrive.
+     *                      Reads block until the next fragment arrives
+     *                      and fail if the remaining fragments are not received in time.
+     */
+    void onMessageStream(BrokerClient brokerClient, BrokerMessage brokerMessage, InputStream payloadStream);
+
+}
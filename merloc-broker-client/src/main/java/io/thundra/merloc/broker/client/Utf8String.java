@@ -0,0 +1,75 @@
+package io.thundra.merloc.broker.client;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * String value backed by its UTF-8 encoded bytes.
+ *
+ * It is serialized as JSON string by decoding and escaping its bytes on the fly,
+ * so large values (for example, the raw request) can be put into {@link Data}
+ * without being materialized as {@link String}.
+ *
+ * @author serkan
+ */
+@JsonSerialize(using = Utf8String.Serializer.class)
+public class Utf8String {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    public Utf8String(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public Utf8String(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public Reader openReader() {
+        return new InputStreamReader(new ByteArrayInputStream(bytes, offset, length), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    public static class Serializer extends StdSerializer<Utf8String> {
+
+        public Serializer() {
+            super(Utf8String.class);
+        }
+
+        @Override
+        public void serialize(Utf8String value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            // Length is given in chars, so it is unknown without decoding the whole value
+            gen.writeString(value.openReader(), -1);
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package io.thundra.merloc.broker.client.impl;
+
+import java.io.Writer;
+
+/**
+ * {@link Writer} which collects the written chars up to a limit and only counts them after the limit is exceeded.
+ *
+ * @author serkan
+ */
+final class BoundedStringWriter extends Writer {
+
+    private final int limit;
+    private final StringBuilder builder = new StringBuilder();
+    private long length;
+
+    BoundedStringWriter(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        if (length + len <= limit) {
+            builder.append(cbuf, off, len);
+        } else if (builder.length() > 0) {
+            // Limit is exceeded, so no need to keep the collected chars anymore
+            builder.setLength(0);
+            builder.trimToSize();
+        }
+        length += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        if (length + len <= limit) {
+            builder.append(str, off, off + len);
+        } else if (builder.length() > 0) {
+            builder.setLength(0);
+            builder.trimToSize();
+        }
+        length += len;
+    }
+
+    boolean isExceeded() {
+        return length > limit;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the written string, <code>null</code> if the limit has been exceeded
+     */
+    String getString() {
+        return isExceeded() ? null : builder.toString();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
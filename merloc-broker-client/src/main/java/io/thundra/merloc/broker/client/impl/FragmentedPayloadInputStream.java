@@ -0,0 +1,171 @@
+package io.thundra.merloc.broker.client.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link InputStream} which is fed by the fragments of a message in fragment order
+ * while they are arriving in any order.
+ *
+ * @author serkan
+ */
+final class FragmentedPayloadInputStream extends InputStream {
+
+    private final int fragmentCount;
+    private final Map<Integer, String> outOfOrderFragments = new HashMap<>();
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private int nextFragmentNo;
+    private String danglingHighSurrogate;
+    private byte[] currentChunk;
+    private int currentChunkPos;
+    private boolean completed;
+    private boolean closed;
+    private IOException error;
+
+    FragmentedPayloadInputStream(int fragmentCount) {
+        this.fragmentCount = fragmentCount;
+    }
+
+    /**
+     * Adds the given fragment.
+     *
+     * @return <code>true</code> if this fragment completes the message, <code>false</code> otherwise
+     */
+    synchronized boolean addFragment(int fragmentNo, String payload) {
+        if (completed || error != null
+                || fragmentNo < nextFragmentNo || outOfOrderFragments.containsKey(fragmentNo)) {
+            // Duplicate or late fragment
+            return false;
+        }
+        outOfOrderFragments.put(fragmentNo, payload);
+        String fragment;
+        while ((fragment = outOfOrderFragments.remove(nextFragmentNo)) != null) {
+            nextFragmentNo++;
+            if (!closed) {
+                enqueue(fragment, nextFragmentNo == fragmentCount);
+            }
+        }
+        if (nextFragmentNo == fragmentCount) {
+            completed = true;
+        }
+        notifyAll();
+        return completed;
+    }
+
+    /**
+     * Gets the numbers of the fragments which have not been received yet.
+     *
+     * @return the numbers of the missing fragments
+     */
+    synchronized List<Integer> getMissingFragmentNos() {
+        List<Integer> missingFragmentNos = new ArrayList<>();
+        if (completed || error != null) {
+            return missingFragmentNos;
+        }
+        for (int i = nextFragmentNo; i < fragmentCount; i++) {
+            if (!outOfOrderFragments.containsKey(i)) {
+                missingFragmentNos.add(i);
+            }
+        }
+        return missingFragmentNos;
+    }
+
+    private void enqueue(String fragment, boolean last) {
+        if (danglingHighSurrogate != null) {
+            fragment = danglingHighSurrogate + fragment;
+            danglingHighSurrogate = null;
+        }
+        // Fragments are split by chars, so a surrogate pair might be split between two fragments.
+        // In this case, keep the high surrogate to encode it together with the next fragment.
+        int length = fragment.length();
+        if (!last && length > 0 && Character.isHighSurrogate(fragment.charAt(length - 1))) {
+            danglingHighSurrogate = fragment.substring(length - 1);
+            fragment = fragment.substring(0, length - 1);
+        }
+        if (fragment.length() > 0) {
+            chunks.add(fragment.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    synchronized void abort(IOException cause) {
+        if (!completed && error == null) {
+            error = cause;
+            outOfOrderFragments.clear();
+            notifyAll();
+        }
+    }
+
+    private boolean ensureChunk() throws IOException {
+        while (currentChunk == null || currentChunkPos >= currentChunk.length) {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            byte[] chunk = chunks.poll();
+            if (chunk != null) {
+                currentChunk = chunk;
+                currentChunkPos = 0;
+                continue;
+            }
+            if (completed) {
+                return false;
+            }
+            if (error != null) {
+                throw error;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for fragments", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return currentChunk[currentChunkPos++] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, currentChunk.length - currentChunkPos);
+        System.arraycopy(currentChunk, currentChunkPos, b, off, count);
+        currentChunkPos += count;
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        int available = currentChunk != null ? currentChunk.length - currentChunkPos : 0;
+        for (byte[] chunk : chunks) {
+            available += chunk.length;
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        chunks.clear();
+        currentChunk = null;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,81 @@
+package io.thundra.merloc.broker.client.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * {@link Writer} which splits the written chars into fixed size fragments
+ * and passes each fragment to the given consumer as soon as it is filled.
+ *
+ * @author serkan
+ */
+final class FragmentingWriter extends Writer {
+
+    private final char[] buffer;
+    private final FragmentConsumer fragmentConsumer;
+    private int bufferPos;
+    private int fragmentNo;
+
+    FragmentingWriter(int fragmentSize, FragmentConsumer fragmentConsumer) {
+        this.buffer = new char[fragmentSize];
+        this.fragmentConsumer = fragmentConsumer;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, buffer.length - bufferPos);
+            System.arraycopy(cbuf, off, buffer, bufferPos, count);
+            bufferPos += count;
+            off += count;
+            len -= count;
+            if (bufferPos == buffer.length) {
+                emitFragment();
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, buffer.length - bufferPos);
+            str.getChars(off, off + count, buffer, bufferPos);
+            bufferPos += count;
+            off += count;
+            len -= count;
+            if (bufferPos == buffer.length) {
+                emitFragment();
+            }
+        }
+    }
+
+    private void emitFragment() throws IOException {
+        fragmentConsumer.accept(fragmentNo++, new String(buffer, 0, bufferPos));
+        bufferPos = 0;
+    }
+
+    int getFragmentCount() {
+        return fragmentNo;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Emits the last partially filled fragment, if there is.
+     */
+    @Override
+    public void close() throws IOException {
+        if (bufferPos > 0) {
+            emitFragment();
+        }
+    }
+
+    interface FragmentConsumer {
+
+        void accept(int fragmentNo, String fragment) throws IOException;
+
+    }
+
+}
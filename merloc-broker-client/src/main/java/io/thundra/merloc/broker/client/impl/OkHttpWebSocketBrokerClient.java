@@ -3,6 +3,8 @@ package io.thundra.merloc.broker.client.impl;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import io.thundra.merloc.broker.client.BrokerBatchingOptions;
 import io.thundra.merloc.broker.client.BrokerConnectionType;
 import io.thundra.merloc.broker.client.BrokerConstants;
 import io.thundra.merloc.broker.client.BrokerCredentials;
@@ -11,9 +13,14 @@ import io.thundra.merloc.broker.client.BrokerMessage;
 import io.thundra.merloc.broker.client.BrokerMessageCallback;
 import io.thundra.merloc.broker.client.BrokerClient;
 import io.thundra.merloc.broker.client.BrokerPayload;
+import io.thundra.merloc.broker.client.BrokerRetransmitOptions;
+import io.thundra.merloc.broker.client.StreamingBrokerMessageCallback;
+import io.thundra.merloc.common.crac.CheckpointListener;
+import io.thundra.merloc.common.crac.CracSupport;
 import io.thundra.merloc.common.logger.StdLogger;
 import io.thundra.merloc.common.utils.ExceptionUtils;
 import io.thundra.merloc.common.utils.ExecutorUtils;
+import io.thundra.merloc.common.utils.IdUtils;
 import io.thundra.merloc.common.utils.StringUtils;
 import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
@@ -24,12 +31,16 @@ import okhttp3.WebSocketListener;
 import okio.ByteString;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -39,6 +50,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 /**
  * @author serkan
@@ -48,8 +60,14 @@ public final class OkHttpWebSocketBrokerClient
         implements BrokerClient {
 
     private static final String API_KEY_HEADER_NAME = "x-api-key";
-    private static final int MAX_FRAME_SIZE = (16 * 1024);
+    private static final String INSTANCE_ID_HEADER_NAME = "x-merloc-instance-id";
+    static final int MAX_FRAME_SIZE = (16 * 1024);
     private static final int NORMAL_CLOSE_CODE = 1000;
+    static final long ENVELOPE_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    static final long ENVELOPE_IDLE_CHECK_PERIOD = TimeUnit.SECONDS.toMillis(10);
+    private static final long FRAGMENT_NACK_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long FRAGMENT_NACK_CHECK_PERIOD = 250;
+    private static final int MAX_FRAGMENT_NACK_COUNT = 3;
 
     private static final OkHttpClient baseClient =
             new OkHttpClient.Builder().
@@ -60,6 +78,20 @@ public final class OkHttpWebSocketBrokerClient
                     pingInterval(30, TimeUnit.SECONDS).
                     build();
 
+    static {
+        CracSupport.register("broker client connection pool", new CheckpointListener() {
+            @Override
+            public void beforeCheckpoint() {
+                // Pooled connections are not valid anymore after restore
+                baseClient.connectionPool().evictAll();
+            }
+
+            @Override
+            public void afterRestore() {
+            }
+        });
+    }
+
     private final ObjectMapper objectMapper =
             new ObjectMapper().
                     configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false).
@@ -72,12 +104,17 @@ public final class OkHttpWebSocketBrokerClient
             ExecutorUtils.newScheduledExecutorService(1, "broker-client-envelope-cleaner");
     private final Map<String, InFlightMessage> messageMap = new ConcurrentHashMap<>();
     private final EnvelopeGlue envelopeGlue = new EnvelopeGlue();
-    private final OkHttpClient client;
     private final WebSocket webSocket;
     private final BrokerMessageCallback messageCallback;
     private final CompletableFuture<Boolean> connectedFuture;
     private final CompletableFuture<Boolean> closedFuture;
     private final String fullConnectionName;
+    private final BrokerBatchingOptions batchingOptions;
+    private final ScheduledExecutorService batchFlusherExecutorService;
+    private final Object batchLock = new Object();
+    private PendingBatch pendingBatch;
+    private final RetransmitBuffer retransmitBuffer;
+    private volatile boolean closing;
 
     public OkHttpWebSocketBrokerClient(String url,
                                        BrokerCredentials brokerCredentials,
@@ -91,7 +128,54 @@ public final class OkHttpWebSocketBrokerClient
                                        Map<String, String> headers,
                                        CompletableFuture connectedFuture,
                                        CompletableFuture closedFuture) {
+        this(url, brokerCredentials, messageCallback, headers, connectedFuture, closedFuture, null);
+    }
+
+    public OkHttpWebSocketBrokerClient(String url,
+                                       BrokerCredentials brokerCredentials,
+                                       BrokerMessageCallback messageCallback,
+                                       Map<String, String> headers,
+                                       CompletableFuture connectedFuture,
+                                       CompletableFuture closedFuture,
+                                       BrokerBatchingOptions batchingOptions) {
+        this(url, brokerCredentials, messageCallback, headers, connectedFuture, closedFuture, batchingOptions, null);
+    }
+
+    public OkHttpWebSocketBrokerClient(String url,
+                                       BrokerCredentials brokerCredentials,
+                                       BrokerMessageCallback messageCallback,
+                                       Map<String, String> headers,
+                                       CompletableFuture connectedFuture,
+                                       CompletableFuture closedFuture,
+                                       BrokerBatchingOptions batchingOptions,
+                                       BrokerRetransmitOptions retransmitOptions) {
+        this(baseClient.newBuilder().build(), url, brokerCredentials, messageCallback, headers,
+             connectedFuture, closedFuture, batchingOptions, retransmitOptions);
+    }
+
+    // Visible for testing, so the connection can be opened over an in-memory transport
+    OkHttpWebSocketBrokerClient(WebSocket.Factory webSocketFactory,
+                                String url,
+                                BrokerCredentials brokerCredentials,
+                                BrokerMessageCallback messageCallback,
+                                Map<String, String> headers,
+                                CompletableFuture connectedFuture,
+                                CompletableFuture closedFuture,
+                                BrokerBatchingOptions batchingOptions,
+                                BrokerRetransmitOptions retransmitOptions) {
         this.messageCallback = messageCallback;
+        this.batchingOptions =
+                batchingOptions != null && batchingOptions.isEnabled()
+                        ? batchingOptions
+                        : null;
+        this.batchFlusherExecutorService =
+                this.batchingOptions != null
+                        ? ExecutorUtils.newScheduledExecutorService(1, "broker-client-batch-flusher")
+                        : null;
+        this.retransmitBuffer =
+                retransmitOptions != null && retransmitOptions.isEnabled()
+                        ? new RetransmitBuffer(retransmitOptions.getMaxBufferSize())
+                        : null;
         this.connectedFuture =
                 connectedFuture == null
                         ? new CompletableFuture()
@@ -101,11 +185,14 @@ public final class OkHttpWebSocketBrokerClient
                         ? new CompletableFuture()
                         : closedFuture;
         Request request = buildRequest(url, brokerCredentials, headers);
-        this.client = baseClient.newBuilder().build();
-        this.webSocket = client.newWebSocket(request, this);
+        this.webSocket = webSocketFactory.newWebSocket(request, this);
         this.fullConnectionName = generateFullConnectionName(brokerCredentials);
         idleEnvelopeCleanerExecutorService.scheduleAtFixedRate(
-                () -> envelopeGlue.cleanIdleEnvelopes(), 1, 1, TimeUnit.MINUTES);
+                () -> envelopeGlue.cleanIdleEnvelopes(System.currentTimeMillis()),
+                ENVELOPE_IDLE_CHECK_PERIOD, ENVELOPE_IDLE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+        idleEnvelopeCleanerExecutorService.scheduleAtFixedRate(
+                () -> envelopeGlue.requestMissingFragments(),
+                FRAGMENT_NACK_CHECK_PERIOD, FRAGMENT_NACK_CHECK_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     private static String generateTypedFullConnectionName(BrokerCredentials brokerCredentials) {
@@ -135,6 +222,9 @@ public final class OkHttpWebSocketBrokerClient
         if (typedFullConnectionName != null) {
             builder.header(API_KEY_HEADER_NAME, typedFullConnectionName);
         }
+        if (brokerCredentials.getInstanceId() != null) {
+            builder.header(INSTANCE_ID_HEADER_NAME, brokerCredentials.getInstanceId());
+        }
         if (headers != null) {
             for (Map.Entry<String, String> e : headers.entrySet()) {
                 String headerName = e.getKey();
@@ -174,6 +264,12 @@ public final class OkHttpWebSocketBrokerClient
         return connectedFuture.isDone() && !connectedFuture.isCompletedExceptionally();
     }
 
+    @Override
+    public boolean isOpen() {
+        // Connected, and neither closed, failed nor closing
+        return isConnected() && !closing && !closedFuture.isDone();
+    }
+
     @Override
     public boolean waitUntilConnected() {
         try {
@@ -194,45 +290,62 @@ public final class OkHttpWebSocketBrokerClient
 
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    private static BrokerEnvelope createEnvelope(BrokerMessage message, String payloadStr) {
+        return new BrokerEnvelope().
+                withId(message.getId()).
+                withResponseOf(message.getResponseOf()).
+                withConnectionName(message.getConnectionName()).
+                withSourceConnectionId(message.getSourceConnectionId()).
+                withSourceConnectionType(message.getSourceConnectionType()).
+                withTargetConnectionId(message.getTargetConnectionId()).
+                withTargetConnectionType(message.getTargetConnectionType()).
+                withType(message.getType()).
+                withPayload(payloadStr);
+    }
+
+    private static long checksum(String fragmentedPayload) {
+        CRC32 crc = new CRC32();
+        crc.update(fragmentedPayload.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static int getFragmentCount(int payloadLength) {
+        return (payloadLength / MAX_FRAME_SIZE) + (payloadLength % MAX_FRAME_SIZE == 0 ? 0 : 1);
+    }
+
+    private BrokerEnvelope createFragmentEnvelope(BrokerMessage message, String payloadStr,
+                                                  int fragmentNo, int fragmentCount) {
+        String fragmentedPayload =
+                payloadStr.substring(
+                        fragmentNo * MAX_FRAME_SIZE,
+                        Math.min((fragmentNo + 1) * MAX_FRAME_SIZE, payloadStr.length()));
+        BrokerEnvelope envelope =
+                createEnvelope(message, fragmentedPayload).
+                        withFragmented(true).
+                        withFragmentNo(fragmentNo).
+                        withFragmentCount(fragmentCount);
+        if (retransmitBuffer != null) {
+            // Checksum tells the receiver that corrupted or missing fragments can be requested again
+            envelope.setFragmentChecksum(checksum(fragmentedPayload));
+        }
+        return envelope;
+    }
+
     private void doSend(BrokerMessage message, String payloadStr) throws IOException {
         int payloadLength = payloadStr.length();
         if (payloadLength < MAX_FRAME_SIZE) {
-            BrokerEnvelope envelope =
-                    new BrokerEnvelope().
-                            withId(message.getId()).
-                            withResponseOf(message.getResponseOf()).
-                            withConnectionName(message.getConnectionName()).
-                            withSourceConnectionId(message.getSourceConnectionId()).
-                            withSourceConnectionType(message.getSourceConnectionType()).
-                            withTargetConnectionId(message.getTargetConnectionId()).
-                            withTargetConnectionType(message.getTargetConnectionType()).
-                            withType(message.getType()).
-                            withPayload(payloadStr);
+            BrokerEnvelope envelope = createEnvelope(message, payloadStr);
             String envelopeStr = objectMapper.writeValueAsString(envelope);
             if (!webSocket.send(envelopeStr)) {
                 throw new IOException("Unable to send message");
             }
         } else {
-            int fragmentCount = (payloadLength / MAX_FRAME_SIZE) + (payloadLength % MAX_FRAME_SIZE == 0 ? 0 : 1);
+            int fragmentCount = getFragmentCount(payloadLength);
+            if (retransmitBuffer != null) {
+                retransmitBuffer.retain(message, payloadStr);
+            }
             for (int i = 0; i < fragmentCount; i++) {
-                String fragmentedPayload =
-                        payloadStr.substring(
-                                i * MAX_FRAME_SIZE,
-                                Math.min((i + 1) * MAX_FRAME_SIZE, payloadLength));
-                BrokerEnvelope envelope =
-                        new BrokerEnvelope().
-                                withId(message.getId()).
-                                withResponseOf(message.getResponseOf()).
-                                withConnectionName(message.getConnectionName()).
-                                withSourceConnectionId(message.getSourceConnectionId()).
-                                withSourceConnectionType(message.getSourceConnectionType()).
-                                withTargetConnectionId(message.getTargetConnectionId()).
-                                withTargetConnectionType(message.getTargetConnectionType()).
-                                withType(message.getType()).
-                                withPayload(fragmentedPayload).
-                                withFragmented(true).
-                                withFragmentNo(i).
-                                withFragmentCount(fragmentCount);
+                BrokerEnvelope envelope = createFragmentEnvelope(message, payloadStr, i, fragmentCount);
                 String envelopeStr = objectMapper.writeValueAsString(envelope);
                 if (!webSocket.send(envelopeStr)) {
                     throw new IOException("Unable to send message");
@@ -241,24 +354,263 @@ public final class OkHttpWebSocketBrokerClient
         }
     }
 
+    private void retransmitFragments(String messageId, int[] fragmentNos) throws IOException {
+        RetransmitBuffer.RetainedMessage retainedMessage =
+                retransmitBuffer != null ? retransmitBuffer.get(messageId) : null;
+        if (retainedMessage == null) {
+            StdLogger.debug(String.format(
+                    "Unable to retransmit fragments of message with id %s as it is not retained", messageId));
+            return;
+        }
+        int fragmentCount = getFragmentCount(retainedMessage.payload.length());
+        for (int fragmentNo : fragmentNos) {
+            if (fragmentNo < 0 || fragmentNo >= fragmentCount) {
+                continue;
+            }
+            StdLogger.debug(String.format(
+                    "Retransmitting fragment %d/%d of message with id %s", fragmentNo, fragmentCount, messageId));
+            BrokerEnvelope envelope =
+                    createFragmentEnvelope(retainedMessage.message, retainedMessage.payload, fragmentNo, fragmentCount);
+            if (!webSocket.send(objectMapper.writeValueAsString(envelope))) {
+                throw new IOException("Unable to send message");
+            }
+        }
+    }
+
+    private void sendFragmentControlMessage(BrokerEnvelope fragmentEnvelope, String type, List<Integer> fragmentNos) {
+        try {
+            // Control message goes back to the sender of the fragment
+            BrokerEnvelope envelope =
+                    new BrokerEnvelope().
+                            withId(IdUtils.generateId()).
+                            withResponseOf(fragmentEnvelope.getId()).
+                            withConnectionName(fragmentEnvelope.getConnectionName()).
+                            withSourceConnectionId(fragmentEnvelope.getTargetConnectionId()).
+                            withSourceConnectionType(fragmentEnvelope.getTargetConnectionType()).
+                            withTargetConnectionId(fragmentEnvelope.getSourceConnectionId()).
+                            withTargetConnectionType(fragmentEnvelope.getSourceConnectionType()).
+                            withType(type).
+                            withPayload(objectMapper.writeValueAsString(fragmentNos));
+            if (!webSocket.send(objectMapper.writeValueAsString(envelope))) {
+                StdLogger.debug(String.format(
+                        "Unable to send %s message for message with id %s", type, fragmentEnvelope.getId()));
+            }
+        } catch (Throwable t) {
+            StdLogger.error(String.format(
+                    "Unable to send %s message for message with id %s", type, fragmentEnvelope.getId()), t);
+        }
+    }
+
     @Override
     public void send(BrokerMessage message) throws IOException {
         if (StringUtils.isNullOrEmpty(message.getId())) {
-            message.setId(UUID.randomUUID().toString());
+            message.setId(IdUtils.generateId());
         }
         BrokerPayload payload =
                 new BrokerPayload().
                         withData(message.getData()).
                         withError(message.getError());
-        String payloadStr = objectMapper.writeValueAsString(payload);
-        doSend(message, payloadStr);
+        // Payload is collected as string only if it fits into a single frame
+        BoundedStringWriter payloadWriter = new BoundedStringWriter(MAX_FRAME_SIZE - 1);
+        objectMapper.writeValue(payloadWriter, payload);
+        String payloadStr = payloadWriter.getString();
+        long batchWindow = batchingOptions != null ? batchingOptions.getBatchWindow(message.getType()) : 0;
+        if (batchWindow > 0 && payloadStr != null) {
+            addToBatch(message, payloadStr, batchWindow);
+        } else {
+            if (batchingOptions != null) {
+                // Flush already queued messages first to keep the send order
+                flushBatch();
+            }
+            if (payloadStr != null) {
+                doSend(message, payloadStr);
+            } else if (retransmitBuffer != null) {
+                // Whole payload needs to be retained for retransmission
+                doSend(message, objectMapper.writeValueAsString(payload));
+            } else {
+                doSendFragmented(message, payload, payloadWriter.getLength());
+            }
+        }
+    }
+
+    private void doSendFragmented(BrokerMessage message, BrokerPayload payload, long payloadLength) throws IOException {
+        int fragmentCount = (int) ((payloadLength + MAX_FRAME_SIZE - 1) / MAX_FRAME_SIZE);
+        // Serialize payload directly into the fragments to send them
+        // without materializing the whole payload as string
+        FragmentingWriter fragmentingWriter =
+                new FragmentingWriter(MAX_FRAME_SIZE, (fragmentNo, fragmentedPayload) -> {
+                    BrokerEnvelope envelope =
+                            createEnvelope(message, fragmentedPayload).
+                                    withFragmented(true).
+                                    withFragmentNo(fragmentNo).
+                                    withFragmentCount(fragmentCount);
+                    String envelopeStr = objectMapper.writeValueAsString(envelope);
+                    if (!webSocket.send(envelopeStr)) {
+                        throw new IOException("Unable to send message");
+                    }
+                });
+        objectMapper.writeValue(fragmentingWriter, payload);
+        fragmentingWriter.close();
+        if (fragmentingWriter.getFragmentCount() != fragmentCount) {
+            throw new IOException(String.format(
+                    "Message with id %s has been modified while being sent", message.getId()));
+        }
+    }
+
+    private static String getRoutingKey(BrokerMessage message) {
+        return message.getConnectionName() + "|" +
+                message.getTargetConnectionId() + "|" +
+                message.getTargetConnectionType();
+    }
+
+    private static int getEscapedLength(String str) {
+        // Length of the given string once it is written as JSON string value (without the quotes)
+        int length = str.length();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\' || c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+                length += 1;
+            } else if (c < 0x20) {
+                length += 5;
+            }
+        }
+        return length;
+    }
+
+    private BrokerEnvelope createBatchEnvelope(BrokerMessage firstMessage) {
+        return new BrokerEnvelope().
+                withId(IdUtils.generateId()).
+                withConnectionName(firstMessage.getConnectionName()).
+                withSourceConnectionId(firstMessage.getSourceConnectionId()).
+                withSourceConnectionType(firstMessage.getSourceConnectionType()).
+                withTargetConnectionId(firstMessage.getTargetConnectionId()).
+                withTargetConnectionType(firstMessage.getTargetConnectionType()).
+                withType(BrokerConstants.BATCH_MESSAGE_TYPE);
+    }
+
+    private void addToBatch(BrokerMessage message, String payloadStr, long batchWindow) throws IOException {
+        String envelopeStr = objectMapper.writeValueAsString(createEnvelope(message, payloadStr));
+        // Batched envelopes are escaped once more as they are embedded into the batch envelope as string,
+        // so the batch is budgeted by the size of the batch frame to be sent, not by the size of its envelopes
+        int escapedLength = getEscapedLength(envelopeStr);
+        int maxFrameSize = Math.min(batchingOptions.getMaxBatchSize(), MAX_FRAME_SIZE);
+        String routingKey = getRoutingKey(message);
+        long deadline = System.currentTimeMillis() + batchWindow;
+        synchronized (batchLock) {
+            // All the messages in a batch must be routed to the same target by the broker
+            if (pendingBatch != null
+                    && (!pendingBatch.routingKey.equals(routingKey)
+                        || pendingBatch.frameSize + escapedLength + 1 > maxFrameSize)) {
+                sendBatch(takeBatch());
+            }
+            if (pendingBatch == null) {
+                BrokerEnvelope batchEnvelope = createBatchEnvelope(message);
+                // Size of the batch frame with an empty array payload
+                int frameSize = objectMapper.writeValueAsString(batchEnvelope.withPayload("[]")).length();
+                pendingBatch = new PendingBatch(batchEnvelope, routingKey, frameSize);
+            }
+            if (!pendingBatch.envelopes.isEmpty()) {
+                pendingBatch.frameSize++;
+            }
+            pendingBatch.envelopes.add(envelopeStr);
+            pendingBatch.size += envelopeStr.length() + 1;
+            pendingBatch.frameSize += escapedLength;
+            if (deadline < pendingBatch.deadline) {
+                if (pendingBatch.flushFuture != null) {
+                    pendingBatch.flushFuture.cancel(false);
+                }
+                pendingBatch.deadline = deadline;
+                pendingBatch.flushFuture =
+                        batchFlusherExecutorService.schedule(
+                                this::flushBatchSafe, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private PendingBatch takeBatch() {
+        PendingBatch batch = pendingBatch;
+        pendingBatch = null;
+        if (batch != null && batch.flushFuture != null) {
+            batch.flushFuture.cancel(false);
+        }
+        return batch;
+    }
+
+    private void flushBatch() throws IOException {
+        PendingBatch batch;
+        synchronized (batchLock) {
+            batch = takeBatch();
+            sendBatch(batch);
+        }
+    }
+
+    private void flushBatchSafe() {
+        try {
+            flushBatch();
+        } catch (Throwable t) {
+            StdLogger.error("Unable to send batched messages", t);
+        }
+    }
+
+    private void sendBatch(PendingBatch batch) throws IOException {
+        if (batch == null || batch.envelopes.isEmpty()) {
+            return;
+        }
+        if (batch.envelopes.size() == 1) {
+            // Single envelope is sent as is, as it has been sent if it was not batched
+            sendEnvelope(batch.envelopes.get(0));
+            return;
+        }
+        StringBuilder payloadBuilder = new StringBuilder(batch.size + 2);
+        payloadBuilder.append('[');
+        for (int i = 0; i < batch.envelopes.size(); i++) {
+            if (i > 0) {
+                payloadBuilder.append(',');
+            }
+            payloadBuilder.append(batch.envelopes.get(i));
+        }
+        payloadBuilder.append(']');
+        String envelopeStr = objectMapper.writeValueAsString(batch.envelope.withPayload(payloadBuilder.toString()));
+        if (envelopeStr.length() > MAX_FRAME_SIZE) {
+            // Not expected as the batch is budgeted by its frame size, but never send a frame over the limit
+            StdLogger.debug(String.format(
+                    "Sending %d batched messages individually as their batch frame size %d exceeds the limit",
+                    batch.envelopes.size(), envelopeStr.length()));
+            for (String batchedEnvelopeStr : batch.envelopes) {
+                sendEnvelope(batchedEnvelopeStr);
+            }
+            return;
+        }
+        sendEnvelope(envelopeStr);
+    }
+
+    private void sendEnvelope(String envelopeStr) throws IOException {
+        if (!webSocket.send(envelopeStr)) {
+            throw new IOException("Unable to send message");
+        }
     }
 
     @Override
     public BrokerMessage sendAndGetResponse(BrokerMessage message,
                                             long timeout, TimeUnit timeUnit) throws IOException {
+        CompletableFuture<BrokerMessage> responseFuture = sendAndGetResponseFuture(message, timeout, timeUnit);
+        try {
+            return responseFuture.get(timeout, timeUnit);
+        } catch (Throwable t) {
+            if (t instanceof ExecutionException) {
+                t = t.getCause();
+            }
+            StdLogger.error("Unable to get response", t);
+            return null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<BrokerMessage> sendAndGetResponseFuture(BrokerMessage message,
+                                                                     long timeout,
+                                                                     TimeUnit timeUnit) throws IOException {
         if (StringUtils.isNullOrEmpty(message.getId())) {
-            message.setId(UUID.randomUUID().toString());
+            message.setId(IdUtils.generateId());
         }
         CompletableFuture<BrokerMessage> responseFuture = new CompletableFuture();
         ScheduledFuture scheduledFuture =
@@ -282,19 +634,12 @@ public final class OkHttpWebSocketBrokerClient
             scheduledFuture.cancel(true);
             ExceptionUtils.sneakyThrow(t);
         }
-        try {
-            return responseFuture.get(timeout, timeUnit);
-        } catch (Throwable t) {
-            if (t instanceof ExecutionException) {
-                t = t.getCause();
-            }
-            StdLogger.error("Unable to get response", t);
-            return null;
-        }
+        return responseFuture;
     }
 
     @Override
     public void sendCloseMessage(int code, String reason) throws IOException {
+        closing = true;
         if (!webSocket.close(code, reason)) {
             throw new IOException("Unable to send message");
         }
@@ -304,6 +649,10 @@ public final class OkHttpWebSocketBrokerClient
 
     @Override
     public void close() {
+        closing = true;
+        if (batchingOptions != null) {
+            flushBatchSafe();
+        }
         try {
             webSocket.close(NORMAL_CLOSE_CODE, null);
         } catch (Exception e) {
@@ -312,12 +661,20 @@ public final class OkHttpWebSocketBrokerClient
 
     @Override
     public void destroy() {
+        closing = true;
         try {
             webSocket.cancel();
         } catch (Exception e) {
         }
         inFlightMessageCleanerExecutorService.shutdownNow();
         idleEnvelopeCleanerExecutorService.shutdownNow();
+        if (batchFlusherExecutorService != null) {
+            batchFlusherExecutorService.shutdownNow();
+        }
+        envelopeGlue.clearEnvelopes();
+        if (retransmitBuffer != null) {
+            retransmitBuffer.clear();
+        }
     }
 
     @Override
@@ -343,6 +700,21 @@ public final class OkHttpWebSocketBrokerClient
         }
     }
 
+    // Visible for testing
+    int getPartialMessageCount() {
+        return envelopeGlue.getPartialMessageCount();
+    }
+
+    // Visible for testing
+    void cleanIdleEnvelopes(long currentTime) {
+        envelopeGlue.cleanIdleEnvelopes(currentTime);
+    }
+
+    // Visible for testing
+    int getRetainedPayloadSize() {
+        return retransmitBuffer != null ? retransmitBuffer.getSize() : 0;
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     @Override
@@ -361,22 +733,57 @@ public final class OkHttpWebSocketBrokerClient
 
     @Override
     public void onMessage(WebSocket webSocket, ByteString bytes) {
-        String text = bytes.utf8();
         if (StdLogger.DEBUG_ENABLED) {
-            StdLogger.debug("MESSAGE: " + text);
+            StdLogger.debug("BINARY MESSAGE: " + bytes.size() + " bytes");
         }
-        receiveMessage(text);
+        receiveMessage(bytes);
     }
 
     private void receiveMessage(String text) {
+        BrokerEnvelope envelope;
+        try {
+            envelope = objectMapper.readValue(text, BrokerEnvelope.class);
+        } catch (Throwable error) {
+            StdLogger.error(String.format(
+                    "Unable to deserialize broker message with size %d", text.length()), error);
+            return;
+        }
+        receiveEnvelope(envelope);
+    }
+
+    private void receiveMessage(ByteString bytes) {
+        BrokerEnvelope envelope;
+        // Parse directly over the frame bytes without decoding them into an intermediate string
+        try (InputStream inputStream = new ByteBufferBackedInputStream(bytes.asByteBuffer())) {
+            envelope = objectMapper.readValue(inputStream, BrokerEnvelope.class);
+        } catch (Throwable error) {
+            StdLogger.error(String.format(
+                    "Unable to deserialize binary broker message with size %d", bytes.size()), error);
+            return;
+        }
+        receiveEnvelope(envelope);
+    }
+
+    private void receiveEnvelope(BrokerEnvelope envelope) {
         try {
-            BrokerEnvelope envelope = objectMapper.readValue(text, BrokerEnvelope.class);
             String payloadStr = envelope.getPayload();
             if (StringUtils.isNullOrEmpty(payloadStr)) {
                 StdLogger.error("Empty payload in envelope");
                 return;
             }
-            if (envelope.isFragmented()) {
+            if (BrokerConstants.BATCH_MESSAGE_TYPE.equals(envelope.getType())) {
+                // Unpack batched envelopes and handle each of them individually in order
+                BrokerEnvelope[] batchedEnvelopes = objectMapper.readValue(payloadStr, BrokerEnvelope[].class);
+                for (BrokerEnvelope batchedEnvelope : batchedEnvelopes) {
+                    receiveEnvelope(batchedEnvelope);
+                }
+            } else if (BrokerConstants.FRAGMENT_NACK_MESSAGE_TYPE.equals(envelope.getType())) {
+                retransmitFragments(envelope.getResponseOf(), objectMapper.readValue(payloadStr, int[].class));
+            } else if (BrokerConstants.FRAGMENT_ACK_MESSAGE_TYPE.equals(envelope.getType())) {
+                if (retransmitBuffer != null) {
+                    retransmitBuffer.release(envelope.getResponseOf());
+                }
+            } else if (envelope.isFragmented()) {
                 envelopeGlue.glue(envelope);
             } else {
                 BrokerPayload payload = objectMapper.readValue(payloadStr, BrokerPayload.class);
@@ -399,7 +806,11 @@ public final class OkHttpWebSocketBrokerClient
                 handleMessage(message);
             }
         } catch (Throwable error) {
-            StdLogger.error(String.format("Unable to deserialize broker message: %s", text), error);
+            // Payload is not logged as it might be large and might contain sensitive data
+            StdLogger.error(String.format(
+                    "Unable to deserialize broker message (id=%s, type=%s, fragmentNo=%d, fragmentCount=%d)",
+                    envelope.getId(), envelope.getType(), envelope.getFragmentNo(), envelope.getFragmentCount()),
+                    error);
         }
     }
 
@@ -421,18 +832,23 @@ public final class OkHttpWebSocketBrokerClient
                     try {
                         messageCallback.onMessage(this, message);
                     } catch (Throwable error) {
-                        StdLogger.error(String.format("Unable to handle broker message: %s", message), error);
+                        StdLogger.error(String.format(
+                                "Unable to handle broker message (id=%s, type=%s)",
+                                message.getId(), message.getType()), error);
                     }
                 });
             }
         } catch (Throwable error) {
-            StdLogger.error(String.format("Unable to handle broker message: %s", message), error);
+            StdLogger.error(String.format(
+                    "Unable to handle broker message (id=%s, type=%s)",
+                    message.getId(), message.getType()), error);
         }
     }
 
     @Override
     public void onClosing(WebSocket webSocket, int code, String reason) {
         StdLogger.debug("CLOSING: " + code + " " + reason);
+        closing = true;
         webSocket.close(1000, null);
     }
 
@@ -441,6 +857,7 @@ public final class OkHttpWebSocketBrokerClient
         StdLogger.debug("CLOSED: " + code + " " + reason);
         closedFuture.complete(true);
         destroyInFlightMessages(code, reason);
+        envelopeGlue.clearEnvelopes();
     }
 
     @Override
@@ -457,6 +874,7 @@ public final class OkHttpWebSocketBrokerClient
         }
         closedFuture.completeExceptionally(t);
         destroyInFlightMessages(-1, t.getMessage());
+        envelopeGlue.clearEnvelopes();
     }
 
     private void destroyInFlightMessages(int code, String reason) {
@@ -479,6 +897,24 @@ public final class OkHttpWebSocketBrokerClient
         }
     }
 
+    private static class PendingBatch {
+
+        private final BrokerEnvelope envelope;
+        private final String routingKey;
+        private final List<String> envelopes = new ArrayList<>();
+        private int size;
+        private int frameSize;
+        private long deadline = Long.MAX_VALUE;
+        private ScheduledFuture flushFuture;
+
+        private PendingBatch(BrokerEnvelope envelope, String routingKey, int frameSize) {
+            this.envelope = envelope;
+            this.routingKey = routingKey;
+            this.frameSize = frameSize;
+        }
+
+    }
+
     private class InFlightMessage {
 
         private final CompletableFuture completableFuture;
@@ -491,6 +927,19 @@ public final class OkHttpWebSocketBrokerClient
 
     }
 
+    private static class RetransmitState {
+
+        private final BrokerEnvelope firstEnvelope;
+        private volatile long lastFragmentTime;
+        private volatile int nackCount;
+
+        private RetransmitState(BrokerEnvelope firstEnvelope, long lastFragmentTime) {
+            this.firstEnvelope = firstEnvelope;
+            this.lastFragmentTime = lastFragmentTime;
+        }
+
+    }
+
     private static class BrokerEnvelopeKey {
 
         private final String id;
@@ -518,9 +967,97 @@ public final class OkHttpWebSocketBrokerClient
 
     private class EnvelopeGlue {
 
-        private final long ENVELOPE_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
-
         private final Map<BrokerEnvelopeKey, Set<BrokerEnvelope>> envelopeMap = new ConcurrentHashMap<>();
+        private final Map<BrokerEnvelopeKey, FragmentedPayloadInputStream> streamMap = new ConcurrentHashMap<>();
+        private final Map<BrokerEnvelopeKey, RetransmitState> retransmitStateMap = new ConcurrentHashMap<>();
+        private final Map<String, Long> completedMessageMap = new ConcurrentHashMap<>();
+
+        private boolean isStreamable(BrokerEnvelope envelope) {
+            if (!(messageCallback instanceof StreamingBrokerMessageCallback)) {
+                return false;
+            }
+            // Responses waited by "sendAndGetResponse" are completed with the whole message
+            if (StringUtils.hasValue(envelope.getResponseOf()) && messageMap.containsKey(envelope.getResponseOf())) {
+                return false;
+            }
+            return ((StreamingBrokerMessageCallback) messageCallback).isStreamingSupported(envelope.getType());
+        }
+
+        /**
+         * Decides whether the message is streamed or buffered only once, by its first received fragment,
+         * so its fragments cannot be split between a stream and a buffer
+         * when the decision changes in the meantime (for example, when the waiter of the response times out).
+         */
+        private boolean isStreamed(BrokerEnvelopeKey key, BrokerEnvelope envelope) {
+            if (streamMap.containsKey(key)) {
+                return true;
+            }
+            if (envelopeMap.containsKey(key)) {
+                return false;
+            }
+            synchronized (this) {
+                if (streamMap.containsKey(key)) {
+                    return true;
+                }
+                if (envelopeMap.containsKey(key)) {
+                    return false;
+                }
+                if (isStreamable(envelope)) {
+                    FragmentedPayloadInputStream payloadStream =
+                            new FragmentedPayloadInputStream(envelope.getFragmentCount());
+                    streamMap.put(key, payloadStream);
+                    // First received fragment of the message, so start delivering it as stream
+                    deliverStream(envelope, payloadStream);
+                    return true;
+                } else {
+                    envelopeMap.put(key, createSiblingEnvelopes());
+                    return false;
+                }
+            }
+        }
+
+        private Set<BrokerEnvelope> createSiblingEnvelopes() {
+            return new ConcurrentSkipListSet<>(Comparator.comparingInt(BrokerEnvelope::getFragmentNo));
+        }
+
+        private void stream(BrokerEnvelopeKey key, BrokerEnvelope envelope) {
+            FragmentedPayloadInputStream payloadStream = streamMap.get(key);
+            if (payloadStream == null) {
+                // Already completed or dropped in the meantime
+                return;
+            }
+            if (payloadStream.addFragment(envelope.getFragmentNo(), envelope.getPayload())) {
+                // Mark as completed before removing the stream,
+                // so a late duplicate cannot start a new stream in the meantime
+                completedMessageMap.put(key.id, System.currentTimeMillis());
+                if (streamMap.remove(key, payloadStream)) {
+                    onMessageCompleted(key);
+                }
+            }
+        }
+
+        private void deliverStream(BrokerEnvelope envelope, FragmentedPayloadInputStream payloadStream) {
+            BrokerMessage message =
+                    new BrokerMessage().
+                            withId(envelope.getId()).
+                            withResponseOf(envelope.getResponseOf()).
+                            withConnectionName(envelope.getConnectionName()).
+                            withSourceConnectionId(envelope.getSourceConnectionId()).
+                            withSourceConnectionType(envelope.getSourceConnectionType()).
+                            withTargetConnectionId(envelope.getTargetConnectionId()).
+                            withTargetConnectionType(envelope.getTargetConnectionType()).
+                            withType(envelope.getType());
+            StreamingBrokerMessageCallback streamingMessageCallback = (StreamingBrokerMessageCallback) messageCallback;
+            messageHandlerExecutorService.submit(() -> {
+                try {
+                    streamingMessageCallback.onMessageStream(OkHttpWebSocketBrokerClient.this, message, payloadStream);
+                } catch (Throwable error) {
+                    StdLogger.error(String.format("Unable to handle broker message stream: %s", message), error);
+                } finally {
+                    payloadStream.close();
+                }
+            });
+        }
 
         private void glueSiblingEnvelopesAndHandleMessage(Set<BrokerEnvelope> siblingEnvelopes) {
             BrokerEnvelope firstEnvelope = siblingEnvelopes.iterator().next();
@@ -546,34 +1083,131 @@ public final class OkHttpWebSocketBrokerClient
                 handleMessage(message);
             } catch (Throwable t) {
                 StdLogger.error(String.format(
-                        "Unable to deserialize broker message from glued data: %s", payloadStr),
+                        "Unable to deserialize broker message from glued data (id=%s, type=%s, size=%d)",
+                        firstEnvelope.getId(), firstEnvelope.getType(), payloadStr.length()),
                         t);
             }
         }
 
         private void glue(BrokerEnvelope envelope) {
             String id = envelope.getId();
+            int fragmentNo = envelope.getFragmentNo();
             int fragmentCount = envelope.getFragmentCount();
-            BrokerEnvelopeKey key = new BrokerEnvelopeKey(id, System.currentTimeMillis());
+            if (fragmentCount <= 0 || fragmentNo < 0 || fragmentNo >= fragmentCount) {
+                StdLogger.error(String.format(
+                        "Ignoring invalid fragment (id=%s, fragmentNo=%d, fragmentCount=%d)",
+                        id, fragmentNo, fragmentCount));
+                return;
+            }
+            if (completedMessageMap.containsKey(id)) {
+                // Late or retransmitted duplicate of an already completed message
+                return;
+            }
+            long currentTime = System.currentTimeMillis();
+            BrokerEnvelopeKey key = new BrokerEnvelopeKey(id, currentTime);
+            if (envelope.getFragmentChecksum() >= 0) {
+                // Sender retains the message, so we can ask for the fragments which are lost or corrupted
+                RetransmitState retransmitState = retransmitStateMap.get(key);
+                if (retransmitState == null) {
+                    retransmitState = retransmitStateMap.computeIfAbsent(key, k -> new RetransmitState(envelope, currentTime));
+                }
+                retransmitState.lastFragmentTime = currentTime;
+                if (envelope.getFragmentChecksum() != checksum(envelope.getPayload())) {
+                    StdLogger.debug(String.format(
+                            "Dropping corrupted fragment (id=%s, fragmentNo=%d, fragmentCount=%d)",
+                            id, fragmentNo, fragmentCount));
+                    sendFragmentControlMessage(
+                            envelope, BrokerConstants.FRAGMENT_NACK_MESSAGE_TYPE,
+                            Collections.singletonList(fragmentNo));
+                    return;
+                }
+            }
+            if (isStreamed(key, envelope)) {
+                stream(key, envelope);
+                return;
+            }
             Set<BrokerEnvelope> siblingEnvelopes = envelopeMap.get(key);
             if (siblingEnvelopes == null) {
-                siblingEnvelopes = new ConcurrentSkipListSet<>(Comparator.comparingInt(BrokerEnvelope::getFragmentNo));
+                siblingEnvelopes = createSiblingEnvelopes();
                 Set<BrokerEnvelope> existingSiblingEnvelopes = envelopeMap.putIfAbsent(key, siblingEnvelopes);
                 if (existingSiblingEnvelopes != null) {
                     siblingEnvelopes = existingSiblingEnvelopes;
                 }
             }
+            // Duplicate fragments are dropped by the set as siblings are compared by their fragment numbers
             siblingEnvelopes.add(envelope);
-            // Check whether we collect all the fragments
+            // Check whether we collect all the fragments.
+            // Only the one which removes the entry handles the message,
+            // so concurrently received last fragments cannot deliver it twice.
             if (siblingEnvelopes.size() == fragmentCount) {
-                envelopeMap.remove(key);
+                completedMessageMap.put(id, System.currentTimeMillis());
+                if (!envelopeMap.remove(key, siblingEnvelopes)) {
+                    return;
+                }
+                onMessageCompleted(key);
                 // If so, glue all the fragments to build original message
                 glueSiblingEnvelopesAndHandleMessage(siblingEnvelopes);
             }
         }
 
-        private void cleanIdleEnvelopes() {
+        private void onMessageCompleted(BrokerEnvelopeKey key) {
+            RetransmitState retransmitState = retransmitStateMap.remove(key);
+            if (retransmitState != null) {
+                // Let the sender release the retained message
+                sendFragmentControlMessage(
+                        retransmitState.firstEnvelope, BrokerConstants.FRAGMENT_ACK_MESSAGE_TYPE,
+                        Collections.emptyList());
+            }
+        }
+
+        private List<Integer> getMissingFragmentNos(BrokerEnvelopeKey key, int fragmentCount) {
+            FragmentedPayloadInputStream payloadStream = streamMap.get(key);
+            if (payloadStream != null) {
+                return payloadStream.getMissingFragmentNos();
+            }
+            List<Integer> missingFragmentNos = new ArrayList<>();
+            Set<BrokerEnvelope> siblingEnvelopes = envelopeMap.get(key);
+            BrokerEnvelope probeEnvelope = new BrokerEnvelope();
+            for (int i = 0; i < fragmentCount; i++) {
+                probeEnvelope.setFragmentNo(i);
+                if (siblingEnvelopes == null || !siblingEnvelopes.contains(probeEnvelope)) {
+                    missingFragmentNos.add(i);
+                }
+            }
+            return missingFragmentNos;
+        }
+
+        private void requestMissingFragments() {
+            if (retransmitStateMap.isEmpty()) {
+                return;
+            }
             long currentTime = System.currentTimeMillis();
+            for (Map.Entry<BrokerEnvelopeKey, RetransmitState> e : retransmitStateMap.entrySet()) {
+                BrokerEnvelopeKey key = e.getKey();
+                RetransmitState retransmitState = e.getValue();
+                // Fragments are expected to arrive back to back,
+                // so a message which has not received any fragment for a while has lost some
+                if (currentTime - retransmitState.lastFragmentTime < FRAGMENT_NACK_DELAY
+                        || retransmitState.nackCount >= MAX_FRAGMENT_NACK_COUNT) {
+                    continue;
+                }
+                List<Integer> missingFragmentNos =
+                        getMissingFragmentNos(key, retransmitState.firstEnvelope.getFragmentCount());
+                if (missingFragmentNos.isEmpty()) {
+                    continue;
+                }
+                StdLogger.debug(String.format(
+                        "Requesting %d missing fragments of message with id %s",
+                        missingFragmentNos.size(), key.id));
+                retransmitState.nackCount++;
+                retransmitState.lastFragmentTime = currentTime;
+                sendFragmentControlMessage(
+                        retransmitState.firstEnvelope, BrokerConstants.FRAGMENT_NACK_MESSAGE_TYPE,
+                        missingFragmentNos);
+            }
+        }
+
+        private void cleanIdleEnvelopes(long currentTime) {
             Iterator<BrokerEnvelopeKey> iter = envelopeMap.keySet().iterator();
             while (iter.hasNext()) {
                 BrokerEnvelopeKey key = iter.next();
@@ -581,9 +1215,51 @@ public final class OkHttpWebSocketBrokerClient
                 // Normally this is not an expected case,
                 // but it can happen if some fragments were not able to transmitted or processed somehow.
                 if (currentTime - key.initTime > ENVELOPE_IDLE_TIMEOUT) {
+                    StdLogger.debug(String.format(
+                            "Dropping idle fragments of message with id %s", key.id));
                     iter.remove();
                 }
             }
+            retransmitStateMap.keySet().removeIf(key -> currentTime - key.initTime > ENVELOPE_IDLE_TIMEOUT);
+            completedMessageMap.values().removeIf(completeTime -> currentTime - completeTime > ENVELOPE_IDLE_TIMEOUT);
+            if (retransmitBuffer != null) {
+                retransmitBuffer.releaseExpired(ENVELOPE_IDLE_TIMEOUT);
+            }
+            Iterator<Map.Entry<BrokerEnvelopeKey, FragmentedPayloadInputStream>> streamIter =
+                    streamMap.entrySet().iterator();
+            while (streamIter.hasNext()) {
+                Map.Entry<BrokerEnvelopeKey, FragmentedPayloadInputStream> e = streamIter.next();
+                BrokerEnvelopeKey key = e.getKey();
+                if (currentTime - key.initTime > ENVELOPE_IDLE_TIMEOUT) {
+                    StdLogger.debug(String.format(
+                            "Aborting idle stream of message with id %s", key.id));
+                    streamIter.remove();
+                    e.getValue().abort(new IOException(String.format(
+                            "Timed out while waiting fragments of message with id %s", key.id)));
+                }
+            }
+        }
+
+        private int getPartialMessageCount() {
+            return envelopeMap.size() + streamMap.size() + retransmitStateMap.size();
+        }
+
+        private void clearEnvelopes() {
+            // Fragments of a message cannot continue on another connection,
+            // so partially received messages are dropped when the connection is gone
+            if (!envelopeMap.isEmpty()) {
+                StdLogger.debug(String.format(
+                        "Dropping fragments of %d partially received messages", envelopeMap.size()));
+                envelopeMap.clear();
+            }
+            retransmitStateMap.clear();
+            completedMessageMap.clear();
+            Iterator<FragmentedPayloadInputStream> streamIter = streamMap.values().iterator();
+            while (streamIter.hasNext()) {
+                FragmentedPayloadInputStream payloadStream = streamIter.next();
+                streamIter.remove();
+                payloadStream.abort(new IOException("Connection is closed while waiting fragments"));
+            }
         }
 
     }
@@ -0,0 +1,94 @@
+package io.thundra.merloc.broker.client.impl;
+
+import io.thundra.merloc.broker.client.BrokerMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded buffer which retains the payloads of the sent fragmented messages
+ * until they are acknowledged by the receiver, so their fragments can be retransmitted on demand.
+ *
+ * When the buffer is full, the oldest messages are evicted first.
+ *
+ * @author serkan
+ */
+final class RetransmitBuffer {
+
+    private final int maxSize;
+    private final Map<String, RetainedMessage> messageMap = new LinkedHashMap<>();
+    private int size;
+
+    RetransmitBuffer(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized void retain(BrokerMessage message, String payload) {
+        int payloadSize = payload.length();
+        if (payloadSize > maxSize) {
+            return;
+        }
+        RetainedMessage previousMessage = messageMap.remove(message.getId());
+        if (previousMessage != null) {
+            size -= previousMessage.payload.length();
+        }
+        Iterator<RetainedMessage> iter = messageMap.values().iterator();
+        while (size + payloadSize > maxSize && iter.hasNext()) {
+            RetainedMessage oldestMessage = iter.next();
+            iter.remove();
+            size -= oldestMessage.payload.length();
+        }
+        messageMap.put(message.getId(), new RetainedMessage(message, payload, System.currentTimeMillis()));
+        size += payloadSize;
+    }
+
+    synchronized RetainedMessage get(String messageId) {
+        return messageMap.get(messageId);
+    }
+
+    synchronized void release(String messageId) {
+        RetainedMessage retainedMessage = messageMap.remove(messageId);
+        if (retainedMessage != null) {
+            size -= retainedMessage.payload.length();
+        }
+    }
+
+    synchronized void releaseExpired(long timeout) {
+        long currentTime = System.currentTimeMillis();
+        Iterator<RetainedMessage> iter = messageMap.values().iterator();
+        // Messages are kept in send order, so stop at the first one which has not expired yet
+        while (iter.hasNext()) {
+            RetainedMessage retainedMessage = iter.next();
+            if (currentTime - retainedMessage.sendTime <= timeout) {
+                break;
+            }
+            iter.remove();
+            size -= retainedMessage.payload.length();
+        }
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized void clear() {
+        messageMap.clear();
+        size = 0;
+    }
+
+    static final class RetainedMessage {
+
+        final BrokerMessage message;
+        final String payload;
+        final long sendTime;
+
+        private RetainedMessage(BrokerMessage message, String payload, long sendTime) {
+            this.message = message;
+            this.payload = payload;
+            this.sendTime = sendTime;
+        }
+
+    }
+
+}
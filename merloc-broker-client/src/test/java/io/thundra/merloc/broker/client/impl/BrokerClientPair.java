@@ -0,0 +1,98 @@
+package io.thundra.merloc.broker.client.impl;
+
+import io.thundra.merloc.broker.client.BrokerConnectionType;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerCredentials;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import io.thundra.merloc.broker.client.BrokerRetransmitOptions;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pair of {@link OkHttpWebSocketBrokerClient}s connected over a {@link FaultInjectingTransport}.
+ *
+ * @author serkan
+ */
+final class BrokerClientPair implements Closeable {
+
+    static final String BODY_ATTRIBUTE_NAME = "body";
+
+    private static final String CHARS = "abcdefghijklmnopqrstuvwxyz0123456789 \"\\\néü中";
+
+    final FaultInjectingTransport transport;
+    final OkHttpWebSocketBrokerClient sender;
+    final OkHttpWebSocketBrokerClient receiver;
+
+    BrokerClientPair(FaultSchedule schedule,
+                     BrokerMessageCallback senderCallback,
+                     BrokerMessageCallback receiverCallback,
+                     boolean retransmit) {
+        this.transport = new FaultInjectingTransport(schedule);
+        BrokerRetransmitOptions retransmitOptions = retransmit ? new BrokerRetransmitOptions() : null;
+        this.sender =
+                new OkHttpWebSocketBrokerClient(
+                        transport.getWebSocketFactory(), "ws://localhost",
+                        new BrokerCredentials().
+                                withConnectionName("test").
+                                withConnectionType(BrokerConnectionType.GATEKEEPER),
+                        senderCallback, null, null, null, null, retransmitOptions);
+        this.receiver =
+                new OkHttpWebSocketBrokerClient(
+                        transport.getWebSocketFactory(), "ws://localhost",
+                        new BrokerCredentials().
+                                withConnectionName("test").
+                                withConnectionType(BrokerConnectionType.CLIENT),
+                        receiverCallback, null, null, null, null, retransmitOptions);
+        if (!sender.waitUntilConnected(5, TimeUnit.SECONDS) || !receiver.waitUntilConnected(5, TimeUnit.SECONDS)) {
+            close();
+            throw new IllegalStateException("Unable to connect clients over transport");
+        }
+    }
+
+    /**
+     * Generates a body which covers chars to be escaped and multi-byte chars (including surrogate pairs),
+     * so the fragment boundaries fall on them as well.
+     */
+    static String generateBody(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            if (random.nextInt(64) == 0) {
+                sb.append("😀");
+            } else {
+                sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    static BrokerMessage createRequest(String body) {
+        return new BrokerMessage().
+                withType(BrokerConstants.CLIENT_REQUEST_MESSAGE_TYPE).
+                withConnectionName("test").
+                withSourceConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                withTargetConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE).
+                withDataAttribute(BODY_ATTRIBUTE_NAME, body);
+    }
+
+    static BrokerMessage createResponse(BrokerMessage request, String body) {
+        return new BrokerMessage().
+                withResponseOf(request.getId()).
+                withType(BrokerConstants.CLIENT_RESPONSE_MESSAGE_TYPE).
+                withConnectionName(request.getConnectionName()).
+                withSourceConnectionType(BrokerConstants.CLIENT_CONNECTION_TYPE).
+                withTargetConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                withDataAttribute(BODY_ATTRIBUTE_NAME, body);
+    }
+
+    @Override
+    public void close() {
+        sender.destroy();
+        receiver.destroy();
+        transport.close();
+    }
+
+}
@@ -0,0 +1,320 @@
+package io.thundra.merloc.broker.client.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerConnectionType;
+import io.thundra.merloc.broker.client.BrokerCredentials;
+import io.thundra.merloc.broker.client.BrokerEnvelope;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import io.thundra.merloc.broker.client.BrokerPayload;
+import io.thundra.merloc.broker.client.StreamingBrokerMessageCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the reassembly of the fragmented messages received by {@link OkHttpWebSocketBrokerClient}.
+ *
+ * @author serkan
+ */
+public class EnvelopeGlueTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<BrokerMessage> receivedMessages = new LinkedBlockingQueue<>();
+    private final BrokerMessageCallback callback =
+            (BrokerClient brokerClient, BrokerMessage brokerMessage) -> receivedMessages.add(brokerMessage);
+    private RecordingWebSocket receiverWebSocket;
+    private OkHttpWebSocketBrokerClient receiver;
+
+    @Before
+    public void setUp() {
+        receiverWebSocket = new RecordingWebSocket();
+        receiver = createClient(receiverWebSocket, callback);
+    }
+
+    @After
+    public void tearDown() {
+        receiver.destroy();
+    }
+
+    private static OkHttpWebSocketBrokerClient createClient(RecordingWebSocket webSocket,
+                                                            BrokerMessageCallback callback) {
+        return new OkHttpWebSocketBrokerClient(
+                webSocket, "ws://localhost",
+                new BrokerCredentials().
+                        withConnectionName("test").
+                        withConnectionType(BrokerConnectionType.CLIENT),
+                callback, null, null, null, null, null);
+    }
+
+    private static List<String> fragment(String body) throws IOException {
+        return fragment(BrokerClientPair.createRequest(body));
+    }
+
+    private static List<String> fragment(BrokerMessage message) throws IOException {
+        RecordingWebSocket senderWebSocket = new RecordingWebSocket();
+        OkHttpWebSocketBrokerClient sender = createClient(senderWebSocket, null);
+        try {
+            sender.send(message);
+        } finally {
+            sender.destroy();
+        }
+        List<String> frames = senderWebSocket.getFrames();
+        assertTrue("Message should have been fragmented", frames.size() > 1);
+        return new ArrayList<>(frames);
+    }
+
+    private void receive(String frame) {
+        receiver.onMessage(receiverWebSocket, frame);
+    }
+
+    private String modify(String frame, int fragmentNo, int fragmentCount) throws IOException {
+        BrokerEnvelope envelope = objectMapper.readValue(frame, BrokerEnvelope.class);
+        envelope.setFragmentNo(fragmentNo);
+        envelope.setFragmentCount(fragmentCount);
+        return objectMapper.writeValueAsString(envelope);
+    }
+
+    @Test
+    public void fragmentsWithInvalidNumbersShouldBeIgnored() throws Exception {
+        List<String> frames = fragment(BrokerClientPair.generateBody(1, 64 * 1024));
+        int fragmentCount = frames.size();
+        String frame = frames.get(0);
+
+        receive(modify(frame, -1, fragmentCount));
+        receive(modify(frame, fragmentCount, fragmentCount));
+        receive(modify(frame, 0, 0));
+        receive(modify(frame, 0, -1));
+
+        assertEquals(0, receiver.getPartialMessageCount());
+        assertNull(receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void duplicatedFragmentsShouldDeliverMessageOnce() throws Exception {
+        String body = BrokerClientPair.generateBody(2, 64 * 1024);
+        List<String> frames = fragment(body);
+
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            receive(frames.get(i));
+            if (i > 0) {
+                receive(frames.get(i));
+            }
+        }
+
+        BrokerMessage message = receivedMessages.poll(1, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(body, message.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+        assertNull(receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void concurrentlyReceivedLastFragmentsShouldDeliverMessageOnce() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            List<String> frames = fragment(BrokerClientPair.generateBody(i, 32 * 1024));
+            String lastFrame = frames.remove(frames.size() - 1);
+            for (String frame : frames) {
+                receive(frame);
+            }
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int j = 0; j < 4; j++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    receive(lastFrame);
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            startLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNotNull("Message has not been delivered in iteration " + i,
+                    receivedMessages.poll(1, TimeUnit.SECONDS));
+        }
+        assertNull("Message has been delivered more than once", receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void lateDuplicatesOfCompletedMessageShouldBeDropped() throws Exception {
+        List<String> frames = fragment(BrokerClientPair.generateBody(4, 64 * 1024));
+        for (String frame : frames) {
+            receive(frame);
+        }
+        assertNotNull(receivedMessages.poll(1, TimeUnit.SECONDS));
+
+        for (String frame : frames) {
+            receive(frame);
+        }
+        assertNull(receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void lateDuplicatesOfCompletedStreamShouldNotStartNewStream() throws Exception {
+        BlockingQueue<String> streamedBodies = new LinkedBlockingQueue<>();
+        StreamingBrokerMessageCallback streamingCallback = new StreamingBrokerMessageCallback() {
+            @Override
+            public boolean isStreamingSupported(String messageType) {
+                return true;
+            }
+
+            @Override
+            public void onMessageStream(BrokerClient brokerClient, BrokerMessage brokerMessage,
+                                        InputStream payloadStream) {
+                try {
+                    BrokerPayload payload = objectMapper.readValue(payloadStream, BrokerPayload.class);
+                    streamedBodies.add(payload.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+                } catch (IOException e) {
+                    streamedBodies.add("<failed: " + e.getMessage() + ">");
+                }
+            }
+
+            @Override
+            public void onMessage(BrokerClient brokerClient, BrokerMessage brokerMessage) {
+            }
+        };
+        RecordingWebSocket streamingWebSocket = new RecordingWebSocket();
+        OkHttpWebSocketBrokerClient streamingReceiver = createClient(streamingWebSocket, streamingCallback);
+        try {
+            String body = BrokerClientPair.generateBody(5, 64 * 1024);
+            List<String> frames = fragment(body);
+            for (String frame : frames) {
+                streamingReceiver.onMessage(streamingWebSocket, frame);
+            }
+            assertEquals(body, streamedBodies.poll(1, TimeUnit.SECONDS));
+
+            // Neither checksum nor retransmission is enabled, so duplicates are recognized by their ids
+            streamingReceiver.onMessage(streamingWebSocket, frames.get(1));
+            streamingReceiver.onMessage(streamingWebSocket, frames.get(0));
+            assertNull(streamedBodies.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals(0, streamingReceiver.getPartialMessageCount());
+        } finally {
+            streamingReceiver.destroy();
+        }
+    }
+
+    @Test
+    public void responseShouldNotBeSplitBetweenBufferAndStreamWhenItsWaiterTimesOut() throws Exception {
+        BlockingQueue<String> streamedMessageIds = new LinkedBlockingQueue<>();
+        BlockingQueue<BrokerMessage> bufferedMessages = new LinkedBlockingQueue<>();
+        StreamingBrokerMessageCallback streamingCallback = new StreamingBrokerMessageCallback() {
+            @Override
+            public boolean isStreamingSupported(String messageType) {
+                return true;
+            }
+
+            @Override
+            public void onMessageStream(BrokerClient brokerClient, BrokerMessage brokerMessage,
+                                        InputStream payloadStream) {
+                streamedMessageIds.add(brokerMessage.getId());
+            }
+
+            @Override
+            public void onMessage(BrokerClient brokerClient, BrokerMessage brokerMessage) {
+                bufferedMessages.add(brokerMessage);
+            }
+        };
+        RecordingWebSocket streamingWebSocket = new RecordingWebSocket();
+        OkHttpWebSocketBrokerClient streamingReceiver = createClient(streamingWebSocket, streamingCallback);
+        try {
+            BrokerMessage request = BrokerClientPair.createRequest("request");
+            CompletableFuture<BrokerMessage> responseFuture =
+                    streamingReceiver.sendAndGetResponseFuture(request, 100, TimeUnit.MILLISECONDS);
+            String body = BrokerClientPair.generateBody(6, 64 * 1024);
+            List<String> frames = fragment(BrokerClientPair.createResponse(request, body));
+
+            // Waited by "sendAndGetResponse", so the response is buffered
+            streamingReceiver.onMessage(streamingWebSocket, frames.get(0));
+            try {
+                responseFuture.get(1, TimeUnit.SECONDS);
+                fail("Response should have timed-out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            // Not waited anymore, but the rest of the fragments should still go to the buffer
+            for (int i = 1; i < frames.size(); i++) {
+                streamingReceiver.onMessage(streamingWebSocket, frames.get(i));
+            }
+
+            BrokerMessage message = bufferedMessages.poll(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(body, message.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+            assertNull(bufferedMessages.poll(100, TimeUnit.MILLISECONDS));
+            assertNull(streamedMessageIds.poll());
+            assertEquals(0, streamingReceiver.getPartialMessageCount());
+        } finally {
+            streamingReceiver.destroy();
+        }
+    }
+
+    private void receivePartially() throws IOException {
+        List<String> frames = fragment(BrokerClientPair.generateBody(3, 64 * 1024));
+        for (int i = 0; i < frames.size() - 1; i++) {
+            receive(frames.get(i));
+        }
+        assertEquals(1, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void idlePartiallyReceivedMessagesShouldBeDropped() throws Exception {
+        receivePartially();
+        long currentTime = System.currentTimeMillis();
+
+        receiver.cleanIdleEnvelopes(currentTime);
+        assertEquals(1, receiver.getPartialMessageCount());
+
+        // Idle check runs periodically, so an idle message is dropped at most one period after its timeout
+        receiver.cleanIdleEnvelopes(
+                currentTime + OkHttpWebSocketBrokerClient.ENVELOPE_IDLE_TIMEOUT
+                        + OkHttpWebSocketBrokerClient.ENVELOPE_IDLE_CHECK_PERIOD);
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void partiallyReceivedMessagesShouldBeDroppedWhenConnectionIsClosed() throws Exception {
+        receivePartially();
+        receiver.onClosed(receiverWebSocket, 1000, null);
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void partiallyReceivedMessagesShouldBeDroppedWhenConnectionFails() throws Exception {
+        receivePartially();
+        receiver.onFailure(receiverWebSocket, new IOException("Connection reset"), null);
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+    @Test
+    public void partiallyReceivedMessagesShouldBeDroppedWhenClientIsDestroyed() throws Exception {
+        receivePartially();
+        receiver.destroy();
+        assertEquals(0, receiver.getPartialMessageCount());
+    }
+
+}
@@ -0,0 +1,333 @@
+package io.thundra.merloc.broker.client.impl;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.thundra.merloc.broker.client.BrokerEnvelope;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory WebSocket transport between two {@link OkHttpWebSocketBrokerClient}s
+ * which injects the faults scheduled by a {@link FaultSchedule} into the frames passing through it.
+ *
+ * Frames are delivered to each endpoint one by one on its own thread in the transport order,
+ * as OkHttp does, so only the scheduled faults change the order of the frames.
+ *
+ * @author serkan
+ */
+final class FaultInjectingTransport implements Closeable {
+
+    private static final long REORDER_HOLD_TIMEOUT = 100;
+
+    private final FaultSchedule schedule;
+    private final Random random;
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().
+                    configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false).
+                    configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final ScheduledExecutorService reorderFlusherExecutorService =
+            Executors.newSingleThreadScheduledExecutor();
+    private final List<Endpoint> endpoints = new ArrayList<>(2);
+    private final AtomicInteger transmittedFrames = new AtomicInteger();
+    private final AtomicInteger deliveredFrames = new AtomicInteger();
+    private final AtomicInteger droppedFrames = new AtomicInteger();
+    private final AtomicInteger duplicatedFrames = new AtomicInteger();
+    private final AtomicInteger reorderedFrames = new AtomicInteger();
+    private final AtomicInteger corruptedFrames = new AtomicInteger();
+    private volatile boolean cut;
+
+    FaultInjectingTransport(FaultSchedule schedule) {
+        this.schedule = schedule;
+        this.random = new Random(schedule.getSeed());
+    }
+
+    /**
+     * @return the factory to be given to the {@link OkHttpWebSocketBrokerClient}s to be connected,
+     *         connection is opened once both of them have been created
+     */
+    WebSocket.Factory getWebSocketFactory() {
+        return this::attach;
+    }
+
+    private synchronized WebSocket attach(Request request, WebSocketListener listener) {
+        if (endpoints.size() == 2) {
+            throw new IllegalStateException("Transport has already been connected");
+        }
+        Endpoint endpoint = new Endpoint(request, listener, endpoints.size());
+        endpoints.add(endpoint);
+        if (endpoints.size() == 2) {
+            for (Endpoint e : endpoints) {
+                Response response =
+                        new Response.Builder().
+                                request(e.request).
+                                protocol(Protocol.HTTP_1_1).
+                                code(101).
+                                message("Switching Protocols").
+                                build();
+                e.inbox.execute(() -> e.listener.onOpen(e, response));
+            }
+        }
+        return endpoint;
+    }
+
+    private synchronized void transmit(Endpoint target, String frame) {
+        // Random values are always drawn in the same order, so the same seed gives the same faults
+        double dropDice = random.nextDouble();
+        double corruptDice = random.nextDouble();
+        double reorderDice = random.nextDouble();
+        double duplicateDice = random.nextDouble();
+        int corruptIndexDice = random.nextInt(Integer.MAX_VALUE);
+        boolean faultable = !schedule.isFragmentsOnly() || frame.contains("\"fragmented\":true");
+        String heldFrame = target.heldFrame;
+        target.heldFrame = null;
+        if (faultable && dropDice < schedule.getDropRate()) {
+            droppedFrames.incrementAndGet();
+        } else {
+            if (faultable && corruptDice < schedule.getCorruptRate()) {
+                frame = corrupt(frame, corruptIndexDice);
+            }
+            if (faultable && heldFrame == null && reorderDice < schedule.getReorderRate()) {
+                // Hold the frame to deliver it after the next one
+                reorderedFrames.incrementAndGet();
+                target.heldFrame = frame;
+                reorderFlusherExecutorService.schedule(
+                        () -> flushHeldFrame(target), REORDER_HOLD_TIMEOUT, TimeUnit.MILLISECONDS);
+            } else {
+                enqueue(target, frame);
+                if (faultable && duplicateDice < schedule.getDuplicateRate()) {
+                    duplicatedFrames.incrementAndGet();
+                    enqueue(target, frame);
+                }
+            }
+        }
+        if (heldFrame != null) {
+            enqueue(target, heldFrame);
+        }
+    }
+
+    private synchronized void flushHeldFrame(Endpoint target) {
+        String heldFrame = target.heldFrame;
+        if (heldFrame != null) {
+            target.heldFrame = null;
+            enqueue(target, heldFrame);
+        }
+    }
+
+    private String corrupt(String frame, int indexDice) {
+        try {
+            BrokerEnvelope envelope = objectMapper.readValue(frame, BrokerEnvelope.class);
+            String payload = envelope.getPayload();
+            if (payload == null || payload.isEmpty()) {
+                return frame;
+            }
+            // Flip a single char of the payload, so the frame is still valid but its content is not
+            char[] chars = payload.toCharArray();
+            int index = indexDice % chars.length;
+            chars[index] = chars[index] == 'x' ? 'y' : 'x';
+            envelope.setPayload(new String(chars));
+            corruptedFrames.incrementAndGet();
+            return objectMapper.writeValueAsString(envelope);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void enqueue(Endpoint target, String frame) {
+        int cutAfterFrames = schedule.getCutAfterFrames();
+        if (cutAfterFrames >= 0 && transmittedFrames.get() >= cutAfterFrames) {
+            cut();
+            return;
+        }
+        transmittedFrames.incrementAndGet();
+        target.inbox.execute(() -> {
+            if (cut) {
+                return;
+            }
+            sleep(getTransferTime(frame));
+            if (cut) {
+                return;
+            }
+            deliveredFrames.incrementAndGet();
+            if (schedule.isBinaryFrames()) {
+                target.listener.onMessage(target, ByteString.encodeUtf8(frame));
+            } else {
+                target.listener.onMessage(target, frame);
+            }
+        });
+    }
+
+    private long getTransferTime(String frame) {
+        long transferTime = schedule.getDelayMillis();
+        if (schedule.getBandwidthBytesPerSecond() > 0) {
+            transferTime +=
+                    (frame.getBytes(StandardCharsets.UTF_8).length * 1000L) / schedule.getBandwidthBytesPerSecond();
+        }
+        return transferTime;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cuts the connection, so the frames in transit are lost and both endpoints fail.
+     */
+    synchronized void cut() {
+        if (cut) {
+            return;
+        }
+        cut = true;
+        for (Endpoint endpoint : endpoints) {
+            endpoint.closed = true;
+            endpoint.inbox.execute(() -> {
+                if (endpoint.closeNotified.compareAndSet(false, true)) {
+                    endpoint.listener.onFailure(
+                            endpoint, new IOException("Connection has been cut by fault schedule"), null);
+                }
+            });
+        }
+    }
+
+    int getTransmittedFrames() {
+        return transmittedFrames.get();
+    }
+
+    int getDeliveredFrames() {
+        return deliveredFrames.get();
+    }
+
+    int getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    int getDuplicatedFrames() {
+        return duplicatedFrames.get();
+    }
+
+    int getReorderedFrames() {
+        return reorderedFrames.get();
+    }
+
+    int getCorruptedFrames() {
+        return corruptedFrames.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        reorderFlusherExecutorService.shutdownNow();
+        for (Endpoint endpoint : endpoints) {
+            endpoint.inbox.shutdownNow();
+        }
+    }
+
+    private final class Endpoint implements WebSocket {
+
+        private final Request request;
+        private final WebSocketListener listener;
+        private final ExecutorService inbox;
+        private final AtomicBoolean closeNotified = new AtomicBoolean();
+        private volatile boolean closed;
+        private String heldFrame;
+
+        private Endpoint(Request request, WebSocketListener listener, int index) {
+            this.request = request;
+            this.listener = listener;
+            this.inbox = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "fault-injecting-transport-inbox-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private Endpoint getPeer() {
+            synchronized (FaultInjectingTransport.this) {
+                if (endpoints.size() < 2) {
+                    return null;
+                }
+                return endpoints.get(0) == this ? endpoints.get(1) : endpoints.get(0);
+            }
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public long queueSize() {
+            return 0;
+        }
+
+        @Override
+        public boolean send(String text) {
+            Endpoint peer = getPeer();
+            if (closed || cut || peer == null) {
+                return false;
+            }
+            transmit(peer, text);
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteString bytes) {
+            return send(bytes.utf8());
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            Endpoint peer = getPeer();
+            if (peer != null) {
+                peer.inbox.execute(() -> {
+                    if (!peer.closed) {
+                        peer.listener.onClosing(peer, code, reason);
+                    }
+                    peer.notifyClosed(code, reason);
+                });
+            }
+            inbox.execute(() -> notifyClosed(code, reason));
+            return true;
+        }
+
+        private void notifyClosed(int code, String reason) {
+            if (closeNotified.compareAndSet(false, true)) {
+                listener.onClosed(this, code, reason);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cut();
+        }
+
+    }
+
+}
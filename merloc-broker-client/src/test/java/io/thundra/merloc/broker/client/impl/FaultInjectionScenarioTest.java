@@ -0,0 +1,267 @@
+package io.thundra.merloc.broker.client.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import io.thundra.merloc.broker.client.BrokerPayload;
+import io.thundra.merloc.broker.client.StreamingBrokerMessageCallback;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Scenarios which run {@link OkHttpWebSocketBrokerClient}s over a {@link FaultInjectingTransport}
+ * and check the correctness, latency and retained memory of the fragment reassembly under the faults.
+ *
+ * @author serkan
+ */
+public class FaultInjectionScenarioTest {
+
+    private static final int LARGE_BODY_LENGTH = 200 * 1024;
+    private static final long[] SEEDS = {1, 7, 42, 1234, 98765};
+
+    private static final class CollectingCallback implements BrokerMessageCallback {
+
+        private final BlockingQueue<BrokerMessage> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(BrokerClient brokerClient, BrokerMessage brokerMessage) {
+            messages.add(brokerMessage);
+        }
+
+    }
+
+    private static void assertReleasedEventually(String what, IntSupplier sizeSupplier) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (sizeSupplier.getAsInt() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(what + " should have been released", 0, sizeSupplier.getAsInt());
+    }
+
+    private static void sendAndAssertDeliveredOnce(FaultSchedule schedule, boolean retransmit,
+                                                   long maxLatency) throws Exception {
+        CollectingCallback receiverCallback = new CollectingCallback();
+        try (BrokerClientPair pair = new BrokerClientPair(schedule, null, receiverCallback, retransmit)) {
+            String body = BrokerClientPair.generateBody(schedule.getSeed(), LARGE_BODY_LENGTH);
+            long startTime = System.currentTimeMillis();
+            pair.sender.send(BrokerClientPair.createRequest(body));
+
+            BrokerMessage received = receiverCallback.messages.poll(maxLatency, TimeUnit.MILLISECONDS);
+            long latency = System.currentTimeMillis() - startTime;
+            assertNotNull(
+                    String.format("Message has not been received in %d ms with %s", maxLatency, schedule),
+                    received);
+            assertEquals(
+                    "Received body is different with " + schedule,
+                    body, received.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+            assertTrue("Latency " + latency + " ms exceeds " + maxLatency + " ms", latency <= maxLatency);
+
+            // Late duplicates must neither deliver the message again nor be retained
+            assertNull(
+                    "Message has been delivered more than once with " + schedule,
+                    receiverCallback.messages.poll(500, TimeUnit.MILLISECONDS));
+            assertReleasedEventually("Partially received messages", pair.receiver::getPartialMessageCount);
+            assertReleasedEventually("Retained payloads", pair.sender::getRetainedPayloadSize);
+            assertFaultsInjected(schedule, pair.transport);
+        }
+    }
+
+    private static void assertFaultsInjected(FaultSchedule schedule, FaultInjectingTransport transport) {
+        // Scenario is meaningless if the schedule has not injected any fault with the seed
+        int faults =
+                transport.getDroppedFrames() + transport.getDuplicatedFrames()
+                        + transport.getReorderedFrames() + transport.getCorruptedFrames();
+        assertTrue("No fault has been injected with " + schedule, faults > 0);
+    }
+
+    @Test
+    public void reorderedAndDuplicatedFragmentsShouldBeReassembledOnce() throws Exception {
+        for (long seed : SEEDS) {
+            FaultSchedule schedule =
+                    new FaultSchedule().
+                            withSeed(seed).
+                            withReorderRate(0.3).
+                            withDuplicateRate(0.3);
+            sendAndAssertDeliveredOnce(schedule, true, 2000);
+        }
+    }
+
+    @Test
+    public void reorderedFragmentsShouldBeReassembledFromBinaryFrames() throws Exception {
+        for (long seed : SEEDS) {
+            FaultSchedule schedule =
+                    new FaultSchedule().
+                            withSeed(seed).
+                            withReorderRate(0.5).
+                            withBinaryFrames(true);
+            sendAndAssertDeliveredOnce(schedule, false, 2000);
+        }
+    }
+
+    @Test
+    public void droppedAndCorruptedFragmentsShouldBeRetransmitted() throws Exception {
+        for (long seed : SEEDS) {
+            FaultSchedule schedule =
+                    new FaultSchedule().
+                            withSeed(seed).
+                            withDropRate(0.1).
+                            withCorruptRate(0.1).
+                            withReorderRate(0.1);
+            // Each missing fragment is requested again after a second without any fragment
+            sendAndAssertDeliveredOnce(schedule, true, 8000);
+        }
+    }
+
+    @Test
+    public void bandwidthCapShouldBoundLatency() throws Exception {
+        long bandwidth = 1024 * 1024;
+        FaultSchedule schedule =
+                new FaultSchedule().
+                        withSeed(1).
+                        withBandwidthBytesPerSecond(bandwidth);
+        CollectingCallback receiverCallback = new CollectingCallback();
+        try (BrokerClientPair pair = new BrokerClientPair(schedule, null, receiverCallback, false)) {
+            String body = BrokerClientPair.generateBody(schedule.getSeed(), LARGE_BODY_LENGTH);
+            long startTime = System.currentTimeMillis();
+            pair.sender.send(BrokerClientPair.createRequest(body));
+
+            BrokerMessage received = receiverCallback.messages.poll(5, TimeUnit.SECONDS);
+            long latency = System.currentTimeMillis() - startTime;
+            assertNotNull(received);
+            assertEquals(body, received.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+            // Message cannot be received faster than the link allows
+            long minLatency = (LARGE_BODY_LENGTH * 1000L) / bandwidth;
+            assertTrue("Latency " + latency + " ms is less than " + minLatency + " ms", latency >= minLatency);
+        }
+    }
+
+    @Test
+    public void slowConsumerShouldReadStreamedFragmentsAsTheyArrive() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        CompletableFuture<Integer> streamStartFrames = new CompletableFuture<>();
+        CompletableFuture<BrokerPayload> streamedPayload = new CompletableFuture<>();
+        FaultSchedule schedule =
+                new FaultSchedule().
+                        withSeed(1).
+                        withDelayMillis(20).
+                        withReorderRate(0.2);
+        FaultInjectingTransport[] transportRef = new FaultInjectingTransport[1];
+        StreamingBrokerMessageCallback receiverCallback = new StreamingBrokerMessageCallback() {
+            @Override
+            public boolean isStreamingSupported(String messageType) {
+                return true;
+            }
+
+            @Override
+            public void onMessageStream(BrokerClient brokerClient, BrokerMessage brokerMessage,
+                                        InputStream payloadStream) {
+                streamStartFrames.complete(transportRef[0].getDeliveredFrames());
+                try {
+                    streamedPayload.complete(objectMapper.readValue(payloadStream, BrokerPayload.class));
+                } catch (IOException e) {
+                    streamedPayload.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onMessage(BrokerClient brokerClient, BrokerMessage brokerMessage) {
+            }
+        };
+        try (BrokerClientPair pair = new BrokerClientPair(schedule, null, receiverCallback, false)) {
+            transportRef[0] = pair.transport;
+            String body = BrokerClientPair.generateBody(schedule.getSeed(), LARGE_BODY_LENGTH);
+            pair.sender.send(BrokerClientPair.createRequest(body));
+
+            BrokerPayload payload = streamedPayload.get(10, TimeUnit.SECONDS);
+            assertEquals(body, payload.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+            // Consumer has started before the last fragment arrived
+            assertTrue(streamStartFrames.get() < pair.transport.getDeliveredFrames());
+            assertReleasedEventually("Partially received messages", pair.receiver::getPartialMessageCount);
+        }
+    }
+
+    @Test
+    public void connectionCutInTheMiddleOfMessageShouldFailRequestAndReleaseFragments() throws Exception {
+        for (boolean retransmit : new boolean[] {false, true}) {
+            FaultSchedule schedule =
+                    new FaultSchedule().
+                            withSeed(1).
+                            withDelayMillis(5).
+                            withCutAfterFrames(5);
+            CollectingCallback receiverCallback = new CollectingCallback();
+            try (BrokerClientPair pair = new BrokerClientPair(schedule, null, receiverCallback, retransmit)) {
+                String body = BrokerClientPair.generateBody(schedule.getSeed(), LARGE_BODY_LENGTH);
+                CompletableFuture<BrokerMessage> responseFuture;
+                try {
+                    responseFuture =
+                            pair.sender.sendAndGetResponseFuture(
+                                    BrokerClientPair.createRequest(body), 10, TimeUnit.SECONDS);
+                } catch (IOException e) {
+                    // Connection has been cut while the fragments were being sent
+                    responseFuture = null;
+                }
+                if (responseFuture != null) {
+                    try {
+                        responseFuture.get(2, TimeUnit.SECONDS);
+                        fail("Request should have failed as the connection has been cut");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof IOException);
+                    }
+                }
+                assertNull(receiverCallback.messages.poll(200, TimeUnit.MILLISECONDS));
+                assertReleasedEventually("Partially received messages", pair.receiver::getPartialMessageCount);
+                assertTrue(pair.sender.isClosed() || !pair.sender.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void requestsAndResponsesShouldNotLeakUnderFaults() throws Exception {
+        FaultSchedule schedule =
+                new FaultSchedule().
+                        withSeed(42).
+                        withDuplicateRate(0.2).
+                        withReorderRate(0.2).
+                        withCorruptRate(0.05).
+                        withDropRate(0.05);
+        BrokerMessageCallback echoCallback = (brokerClient, brokerMessage) -> {
+            try {
+                brokerClient.send(
+                        BrokerClientPair.createResponse(
+                                brokerMessage,
+                                brokerMessage.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        try (BrokerClientPair pair = new BrokerClientPair(schedule, null, echoCallback, true)) {
+            for (int i = 0; i < 20; i++) {
+                String body = BrokerClientPair.generateBody(i, 40 * 1024);
+                BrokerMessage response =
+                        pair.sender.sendAndGetResponse(BrokerClientPair.createRequest(body), 10, TimeUnit.SECONDS);
+                assertNotNull("No response for request " + i, response);
+                assertEquals(body, response.getDataAttribute(BrokerClientPair.BODY_ATTRIBUTE_NAME));
+            }
+            assertReleasedEventually("Partially received requests", pair.receiver::getPartialMessageCount);
+            assertReleasedEventually("Partially received responses", pair.sender::getPartialMessageCount);
+            assertReleasedEventually("Retained requests", pair.sender::getRetainedPayloadSize);
+            assertReleasedEventually("Retained responses", pair.receiver::getRetainedPayloadSize);
+        }
+    }
+
+}
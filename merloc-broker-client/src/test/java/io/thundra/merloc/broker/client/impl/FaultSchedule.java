@@ -0,0 +1,146 @@
+package io.thundra.merloc.broker.client.impl;
+
+/**
+ * Seeded schedule of the faults injected by {@link FaultInjectingTransport}.
+ *
+ * Faults are decided by a random generator seeded with {@link #getSeed()} in the send order of the frames,
+ * so a failing scenario can be reproduced by running it with the same seed.
+ * By default faults are applied only to the fragment frames,
+ * as only fragmented messages can recover from the lost and corrupted frames.
+ *
+ * @author serkan
+ */
+final class FaultSchedule {
+
+    private long seed;
+    private double dropRate;
+    private double duplicateRate;
+    private double reorderRate;
+    private double corruptRate;
+    private long delayMillis;
+    private long bandwidthBytesPerSecond;
+    private int cutAfterFrames = -1;
+    private boolean fragmentsOnly = true;
+    private boolean binaryFrames;
+
+    long getSeed() {
+        return seed;
+    }
+
+    FaultSchedule withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    double getDropRate() {
+        return dropRate;
+    }
+
+    FaultSchedule withDropRate(double dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    double getDuplicateRate() {
+        return duplicateRate;
+    }
+
+    FaultSchedule withDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+        return this;
+    }
+
+    double getReorderRate() {
+        return reorderRate;
+    }
+
+    FaultSchedule withReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+        return this;
+    }
+
+    double getCorruptRate() {
+        return corruptRate;
+    }
+
+    FaultSchedule withCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+        return this;
+    }
+
+    long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * @param delayMillis the time each frame is delayed before it is delivered,
+     *                    also simulates slow consumers as the frames are delivered one by one
+     */
+    FaultSchedule withDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    /**
+     * @param bandwidthBytesPerSecond the bandwidth cap of each direction, <code>0</code> for no cap
+     */
+    FaultSchedule withBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        return this;
+    }
+
+    int getCutAfterFrames() {
+        return cutAfterFrames;
+    }
+
+    /**
+     * @param cutAfterFrames the number of the frames to be delivered before the connection is cut,
+     *                       <code>-1</code> to never cut the connection
+     */
+    FaultSchedule withCutAfterFrames(int cutAfterFrames) {
+        this.cutAfterFrames = cutAfterFrames;
+        return this;
+    }
+
+    boolean isFragmentsOnly() {
+        return fragmentsOnly;
+    }
+
+    FaultSchedule withFragmentsOnly(boolean fragmentsOnly) {
+        this.fragmentsOnly = fragmentsOnly;
+        return this;
+    }
+
+    boolean isBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * @param binaryFrames <code>true</code> to deliver the text frames as binary frames
+     */
+    FaultSchedule withBinaryFrames(boolean binaryFrames) {
+        this.binaryFrames = binaryFrames;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "FaultSchedule{" +
+                "seed=" + seed +
+                ", dropRate=" + dropRate +
+                ", duplicateRate=" + duplicateRate +
+                ", reorderRate=" + reorderRate +
+                ", corruptRate=" + corruptRate +
+                ", delayMillis=" + delayMillis +
+                ", bandwidthBytesPerSecond=" + bandwidthBytesPerSecond +
+                ", cutAfterFrames=" + cutAfterFrames +
+                ", fragmentsOnly=" + fragmentsOnly +
+                ", binaryFrames=" + binaryFrames +
+                '}';
+    }
+
+}
@@ -0,0 +1,132 @@
+package io.thundra.merloc.broker.client.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.thundra.merloc.broker.client.BrokerBatchingOptions;
+import io.thundra.merloc.broker.client.BrokerClient;
+import io.thundra.merloc.broker.client.BrokerConnectionType;
+import io.thundra.merloc.broker.client.BrokerConstants;
+import io.thundra.merloc.broker.client.BrokerCredentials;
+import io.thundra.merloc.broker.client.BrokerEnvelope;
+import io.thundra.merloc.broker.client.BrokerMessage;
+import io.thundra.merloc.broker.client.BrokerMessageCallback;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests batching of the small outbound messages by {@link OkHttpWebSocketBrokerClient}.
+ *
+ * @author serkan
+ */
+public class MessageBatchingTest {
+
+    private static final int MESSAGE_COUNT = 200;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static OkHttpWebSocketBrokerClient createClient(RecordingWebSocket webSocket,
+                                                            BrokerMessageCallback callback,
+                                                            BrokerBatchingOptions batchingOptions) {
+        return new OkHttpWebSocketBrokerClient(
+                webSocket, "ws://localhost",
+                new BrokerCredentials().
+                        withConnectionName("test").
+                        withConnectionType(BrokerConnectionType.CLIENT),
+                callback, null, null, null, batchingOptions, null);
+    }
+
+    private static String generateValue(int i) {
+        // Quotes and backslashes are escaped in each envelope and once more in the batch envelope
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 100 + (i % 7) * 50; j++) {
+            sb.append(j % 3 == 0 ? '"' : (j % 3 == 1 ? '\\' : (char) ('a' + (i % 26))));
+        }
+        return sb.append('\n').append(i).toString();
+    }
+
+    private void sendAndCheckFrames(int maxBatchSize) throws Exception {
+        RecordingWebSocket senderWebSocket = new RecordingWebSocket();
+        OkHttpWebSocketBrokerClient sender =
+                createClient(
+                        senderWebSocket, null,
+                        new BrokerBatchingOptions().
+                                withBatchWindow(BrokerConstants.CLIENT_PONG_MESSAGE_TYPE, 60000).
+                                withMaxBatchSize(maxBatchSize));
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                sender.send(
+                        new BrokerMessage().
+                                withType(BrokerConstants.CLIENT_PONG_MESSAGE_TYPE).
+                                withConnectionName("test").
+                                withTargetConnectionType(BrokerConstants.GATEKEEPER_CONNECTION_TYPE).
+                                withDataAttribute("value", generateValue(i)));
+            }
+            // Closing flushes the pending batch
+            sender.close();
+        } finally {
+            sender.destroy();
+        }
+
+        List<String> frames = senderWebSocket.getFrames();
+        int batchFrameCount = 0;
+        for (String frame : frames) {
+            BrokerEnvelope envelope = objectMapper.readValue(frame, BrokerEnvelope.class);
+            if (BrokerConstants.BATCH_MESSAGE_TYPE.equals(envelope.getType())) {
+                batchFrameCount++;
+                assertTrue(
+                        String.format("Batch frame size %d exceeds %d", frame.length(), maxBatchSize),
+                        frame.length() <= Math.min(maxBatchSize, OkHttpWebSocketBrokerClient.MAX_FRAME_SIZE));
+            }
+        }
+        assertTrue("Messages should have been batched", batchFrameCount > 0);
+        assertTrue("Messages should have been batched", frames.size() < MESSAGE_COUNT);
+
+        // All the messages are received (they are handed to the callback concurrently, so in any order)
+        BlockingQueue<BrokerMessage> receivedMessages = new LinkedBlockingQueue<>();
+        RecordingWebSocket receiverWebSocket = new RecordingWebSocket();
+        OkHttpWebSocketBrokerClient receiver =
+                createClient(receiverWebSocket, (brokerClient, brokerMessage) -> receivedMessages.add(brokerMessage),
+                        null);
+        try {
+            for (String frame : frames) {
+                receiver.onMessage(receiverWebSocket, frame);
+            }
+            Set<String> expectedValues = new HashSet<>();
+            Set<String> receivedValues = new HashSet<>();
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                BrokerMessage message = receivedMessages.poll(1, TimeUnit.SECONDS);
+                assertNotNull("Only " + i + " messages have been received", message);
+                expectedValues.add(generateValue(i));
+                receivedValues.add(message.getDataAttribute("value"));
+            }
+            assertEquals(expectedValues, receivedValues);
+        } finally {
+            receiver.destroy();
+        }
+    }
+
+    @Test
+    public void batchFrameShouldNotExceedMaxFrameSize() throws Exception {
+        sendAndCheckFrames(BrokerBatchingOptions.DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void batchFrameShouldNotExceedMaxFrameSizeEvenIfMaxBatchSizeIsLarger() throws Exception {
+        sendAndCheckFrames(1024 * 1024);
+    }
+
+    @Test
+    public void batchFrameShouldNotExceedMaxBatchSize() throws Exception {
+        sendAndCheckFrames(4 * 1024);
+    }
+
+}
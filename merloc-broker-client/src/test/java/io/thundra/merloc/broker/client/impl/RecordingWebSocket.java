@@ -0,0 +1,63 @@
+package io.thundra.merloc.broker.client.impl;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link WebSocket} which records the sent frames instead of sending them,
+ * so the frames can be fed into another {@link OkHttpWebSocketBrokerClient} in any order.
+ *
+ * @author serkan
+ */
+final class RecordingWebSocket implements WebSocket, WebSocket.Factory {
+
+    private final List<String> frames = new CopyOnWriteArrayList<>();
+    private Request request;
+
+    List<String> getFrames() {
+        return frames;
+    }
+
+    @Override
+    public WebSocket newWebSocket(Request request, WebSocketListener listener) {
+        this.request = request;
+        return this;
+    }
+
+    @Override
+    public Request request() {
+        return request;
+    }
+
+    @Override
+    public long queueSize() {
+        return 0;
+    }
+
+    @Override
+    public boolean send(String text) {
+        frames.add(text);
+        return true;
+    }
+
+    @Override
+    public boolean send(ByteString bytes) {
+        frames.add(bytes.utf8());
+        return true;
+    }
+
+    @Override
+    public boolean close(int code, String reason) {
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+}
@@ -0,0 +1,26 @@
+package io.thundra.merloc.common.crac;
+
+/**
+ * Listener to be notified about the checkpoint/restore
+ * (for example, AWS Lambda SnapStart) of the JVM.
+ *
+ * @author serkan
+ */
+public interface CheckpointListener {
+
+    /**
+     * Called before the JVM is checkpointed.
+     * Connections, threads and time based state which become invalid after restore should be released here.
+     *
+     * @throws Exception if the listener fails
+     */
+    void beforeCheckpoint() throws Exception;
+
+    /**
+     * Called after the JVM is restored from the checkpoint.
+     *
+     * @throws Exception if the listener fails
+     */
+    void afterRestore() throws Exception;
+
+}
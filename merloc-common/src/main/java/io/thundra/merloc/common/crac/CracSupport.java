@@ -0,0 +1,107 @@
+package io.thundra.merloc.common.crac;
+
+import io.thundra.merloc.common.logger.StdLogger;
+import io.thundra.merloc.common.utils.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registers {@link CheckpointListener}s to the CRaC (Coordinated Restore at Checkpoint) API
+ * which is used by AWS Lambda SnapStart.
+ *
+ * CRaC API is accessed reflectively, so there is no dependency to it
+ * and registration is skipped silently if it is not available.
+ * <code>org.crac</code> API (which is what the function is expected to provide for SnapStart)
+ * is preferred over the <code>jdk.crac</code> API of the CRaC enabled JDKs.
+ *
+ * @author serkan
+ */
+public final class CracSupport {
+
+    private static final String[] CRAC_PACKAGES = { "org.crac", "jdk.crac" };
+
+    // CRaC holds the registered resources weakly, so they are kept here
+    private static final List<Object> RESOURCES = new CopyOnWriteArrayList<>();
+
+    private CracSupport() {
+    }
+
+    /**
+     * Registers the given listener to be notified about the checkpoint/restore.
+     *
+     * @param name     the name of the listener to be logged
+     * @param listener the listener
+     * @return <code>true</code> if the listener is registered,
+     *         <code>false</code> if CRaC API is not available
+     */
+    public static boolean register(String name, CheckpointListener listener) {
+        ClassLoader classLoader = CracSupport.class.getClassLoader();
+        for (String cracPackage : CRAC_PACKAGES) {
+            Class<?> coreClass = ClassUtils.getClass(classLoader, cracPackage + ".Core");
+            Class<?> contextClass = ClassUtils.getClass(classLoader, cracPackage + ".Context");
+            Class<?> resourceClass = ClassUtils.getClass(classLoader, cracPackage + ".Resource");
+            if (coreClass == null || contextClass == null || resourceClass == null) {
+                continue;
+            }
+            try {
+                Object context = coreClass.getMethod("getGlobalContext").invoke(null);
+                Object resource = createResource(resourceClass, name, listener);
+                // Looked up from the public API class as the actual context class might not be accessible
+                Method registerMethod = contextClass.getMethod("register", resourceClass);
+                registerMethod.invoke(context, resource);
+                RESOURCES.add(resource);
+                StdLogger.debug(String.format("Registered %s to %s checkpoint/restore", name, cracPackage));
+                return true;
+            } catch (Throwable t) {
+                StdLogger.error(String.format("Unable to register %s to %s checkpoint/restore", name, cracPackage), t);
+            }
+        }
+        return false;
+    }
+
+    private static Object createResource(Class<?> resourceClass, String name, CheckpointListener listener) {
+        return Proxy.newProxyInstance(
+                resourceClass.getClassLoader(),
+                new Class[] { resourceClass },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "beforeCheckpoint":
+                            notify(name, "before checkpoint", listener::beforeCheckpoint);
+                            return null;
+                        case "afterRestore":
+                            notify(name, "after restore", listener::afterRestore);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return name;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private interface Callback {
+
+        void call() throws Exception;
+
+    }
+
+    private static void notify(String name, String phase, Callback callback) {
+        StdLogger.debug(String.format("Notifying %s %s ...", name, phase));
+        try {
+            callback.call();
+            StdLogger.debug(String.format("Notified %s %s", name, phase));
+        } catch (Throwable t) {
+            // Failing here would fail the checkpoint/restore of the whole function,
+            // but the listener state is only an optimization, so just log it
+            StdLogger.error(String.format("Failed notifying %s %s", name, phase), t);
+        }
+    }
+
+}
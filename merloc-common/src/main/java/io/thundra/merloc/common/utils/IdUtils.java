@@ -0,0 +1,133 @@
+package io.thundra.merloc.common.utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility class for generating ids without contention.
+ *
+ * Ids are built from a random per-process node prefix and a monotonically increasing counter,
+ * so they are unique in the process and ordered by generation
+ * without going through the shared {@link SecureRandom} used by {@link java.util.UUID}.
+ *
+ * As the node prefix, the counter and the random state are captured by the JVM snapshots
+ * (for example, AWS Lambda SnapStart), they must be reseeded by {@link #reseed()} after each restore.
+ * Otherwise, all the JVMs restored from the same snapshot generate the same ids.
+ *
+ * @author serkan
+ */
+public final class IdUtils {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String TRACE_ID_VERSION = "1";
+    // Increment of the SplitMix64 generator (same as the one used by "java.util.SplittableRandom")
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // Replaced as a whole, so an id is never built from the mix of two seeds
+    private static volatile Seed seed =
+            new Seed(ThreadLocalRandom.current().nextLong(),
+                     ThreadLocalRandom.current().nextInt() & 0xFFFFFFFFL,
+                     ThreadLocalRandom.current().nextLong());
+
+    private IdUtils() {
+    }
+
+    private static final class Seed {
+
+        private final long nodeId;
+        private final AtomicLong counter;
+        private final AtomicLong randomState;
+
+        private Seed(long nodeId, long counter, long randomState) {
+            this.nodeId = nodeId;
+            this.counter = new AtomicLong(counter);
+            this.randomState = new AtomicLong(randomState);
+        }
+
+    }
+
+    /**
+     * Reseeds the node prefix, the counter and the random state of the generated ids.
+     *
+     * {@link ThreadLocalRandom} states of the threads are captured by the JVM snapshots as well,
+     * so the new seed is taken from {@link SecureRandom} which is reseeded by the runtime after restore.
+     */
+    public static void reseed() {
+        SecureRandom random = new SecureRandom();
+        seed = new Seed(random.nextLong(), random.nextInt() & 0xFFFFFFFFL, random.nextLong());
+    }
+
+    /**
+     * Visible for testing
+     */
+    static long getNodeId() {
+        return seed.nodeId;
+    }
+
+    private static long nextRandom(Seed currentSeed) {
+        // SplitMix64 over the reseedable state instead of "ThreadLocalRandom"
+        long z = currentSeed.randomState.addAndGet(GOLDEN_GAMMA);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Generates a new id in UUID string format (<code>8-4-4-4-12</code> hex digits).
+     *
+     * @return the generated id
+     */
+    public static String generateId() {
+        Seed currentSeed = seed;
+        long nodeId = currentSeed.nodeId;
+        long counter = currentSeed.counter.incrementAndGet();
+        char[] chars = new char[36];
+        writeHex(chars, 0, nodeId >>> 32, 8);
+        chars[8] = '-';
+        writeHex(chars, 9, nodeId >>> 16, 4);
+        chars[13] = '-';
+        writeHex(chars, 14, nodeId, 4);
+        chars[18] = '-';
+        writeHex(chars, 19, counter >>> 48, 4);
+        chars[23] = '-';
+        writeHex(chars, 24, counter, 12);
+        return new String(chars);
+    }
+
+    /**
+     * Generates a new AWS X-Ray trace header value
+     * (for example, <code>Root=1-5759e988-bd862e3fe1be46a994272793;Parent=53995c3f42cd8ad8;Sampled=0</code>)
+     * to be used as <code>_X_AMZN_TRACE_ID</code>.
+     *
+     * @return the generated trace header value
+     */
+    public static String generateTraceHeader() {
+        Seed currentSeed = seed;
+        long epochSeconds = System.currentTimeMillis() / 1000;
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("Root=").append(TRACE_ID_VERSION).append('-');
+        appendHex(sb, epochSeconds, 8);
+        sb.append('-');
+        appendHex(sb, nextRandom(currentSeed), 8);
+        appendHex(sb, nextRandom(currentSeed), 16);
+        sb.append(";Parent=");
+        appendHex(sb, nextRandom(currentSeed), 16);
+        sb.append(";Sampled=0");
+        return sb.toString();
+    }
+
+    private static void writeHex(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, long value, int digits) {
+        for (int i = (digits - 1) * 4; i >= 0; i -= 4) {
+            sb.append(HEX_DIGITS[(int) ((value >>> i) & 0xF)]);
+        }
+    }
+
+}
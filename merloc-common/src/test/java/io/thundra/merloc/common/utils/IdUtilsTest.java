@@ -0,0 +1,59 @@
+package io.thundra.merloc.common.utils;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author serkan
+ */
+public class IdUtilsTest {
+
+    private static final Pattern ID_PATTERN =
+            Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static final Pattern TRACE_HEADER_PATTERN =
+            Pattern.compile("Root=1-[0-9a-f]{8}-[0-9a-f]{24};Parent=[0-9a-f]{16};Sampled=0");
+
+    @Test
+    public void generatedIdsShouldBeUniqueAndOrdered() {
+        String previousId = IdUtils.generateId();
+        for (int i = 0; i < 1000; i++) {
+            String id = IdUtils.generateId();
+            assertTrue(id, ID_PATTERN.matcher(id).matches());
+            assertTrue(id.compareTo(previousId) > 0);
+            previousId = id;
+        }
+    }
+
+    @Test
+    public void reseedShouldChangeNodeIdAndKeepIdsUnique() {
+        Set<String> ids = new HashSet<>();
+        Set<Long> nodeIds = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            nodeIds.add(IdUtils.getNodeId());
+            for (int j = 0; j < 100; j++) {
+                assertTrue(ids.add(IdUtils.generateId()));
+            }
+            IdUtils.reseed();
+        }
+        assertEquals(10, nodeIds.size());
+    }
+
+    @Test
+    public void reseedShouldChangeTraceIds() {
+        String traceHeader = IdUtils.generateTraceHeader();
+        assertTrue(traceHeader, TRACE_HEADER_PATTERN.matcher(traceHeader).matches());
+        IdUtils.reseed();
+        String reseededTraceHeader = IdUtils.generateTraceHeader();
+        assertTrue(reseededTraceHeader, TRACE_HEADER_PATTERN.matcher(reseededTraceHeader).matches());
+        assertNotEquals(traceHeader.substring(traceHeader.indexOf(';')),
+                        reseededTraceHeader.substring(reseededTraceHeader.indexOf(';')));
+    }
+
+}